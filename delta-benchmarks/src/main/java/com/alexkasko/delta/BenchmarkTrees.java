@@ -0,0 +1,45 @@
+package com.alexkasko.delta;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Old and new versions of synthetic tree shared between benchmark iterations
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+@State(Scope.Benchmark)
+public class BenchmarkTrees {
+    @Param({"SMALL_FILES", "HUGE_BINARIES", "MIXED"})
+    public String profile;
+    @Param({"0.01", "0.1", "0.5"})
+    public double churn;
+
+    File baseDir;
+    File oldDir;
+    File newDir;
+    long newSize;
+    int newFiles;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        baseDir = Files.createTempDir();
+        oldDir = new File(baseDir, "old");
+        newDir = new File(baseDir, "new");
+        FileUtils.forceMkdir(oldDir);
+        FileUtils.forceMkdir(newDir);
+        new TreeGenerator(TreeGenerator.Profile.valueOf(profile), churn).generate(oldDir, newDir);
+        newSize = TreeGenerator.treeSize(newDir);
+        newFiles = TreeGenerator.treeFiles(newDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(baseDir);
+    }
+}
@@ -0,0 +1,52 @@
+package com.alexkasko.delta;
+
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link DirDeltaCreator#create(java.io.File, java.io.File, org.apache.commons.io.filefilter.IOFileFilter, java.io.OutputStream)}
+ * throughput, patch is written into {@link NullOutputStream}. Throughput counters are reported
+ * for the new version of tree.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class CreateBenchmark {
+    @Param({"1", "4"})
+    public int threads;
+
+    // "default" deflates everything, "adaptive" stores incompressible files
+    @Param({"default", "adaptive"})
+    public String compression;
+
+    @Param({"ZIP", "LZ4"})
+    public PatchContainer container;
+
+    // "javaxdelta" indexes the whole old file, "rolling" uses bounded index
+    @Param({"javaxdelta", "rolling"})
+    public String engine;
+
+    private DirDeltaCreator creator;
+
+    @Setup
+    public void setup() {
+        CompressionPolicy policy = "adaptive".equals(compression) ? CompressionPolicy.adaptive() : new CompressionPolicy();
+        creator = new DirDeltaCreator().withThreads(threads).withCompression(policy).withContainer(container)
+                .withDeltaEngine("rolling".equals(engine) ? new RollingHashDeltaEngine() : new JavaxDeltaEngine());
+    }
+
+    @Benchmark
+    public void create(BenchmarkTrees trees, Throughput tp) throws IOException {
+        creator.create(trees.oldDir, trees.newDir, TrueFileFilter.TRUE, new NullOutputStream());
+        tp.add(trees.newSize, trees.newFiles);
+    }
+}
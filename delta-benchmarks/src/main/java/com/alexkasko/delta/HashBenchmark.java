@@ -0,0 +1,90 @@
+package com.alexkasko.delta;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link HashUtils#computeSha1(java.io.File)} with stream-based implementation
+ * used before 1.1.4. Each invocation hashes all files of the tree of specified file size.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HashBenchmark {
+    private static final long TREE_SIZE = 64 * 1024 * 1024;
+
+    @Param({"4096", "1048576", "67108864"})
+    public int fileSize;
+
+    private File dir;
+    private File[] files;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDir();
+        Random random = new Random(42);
+        int count = (int) Math.max(1, TREE_SIZE / fileSize);
+        files = new File[count];
+        byte[] data = new byte[fileSize];
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(data);
+            files[i] = new File(dir, i + ".bin");
+            FileUtils.writeByteArrayToFile(files[i], data);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public void current(Blackhole bh, Throughput tp) {
+        for (File fi : files) {
+            bh.consume(HashUtils.computeSha1(fi));
+        }
+        tp.add((long) fileSize * files.length, files.length);
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh, Throughput tp) throws Exception {
+        for (File fi : files) {
+            bh.consume(legacySha1(fi));
+        }
+        tp.add((long) fileSize * files.length, files.length);
+    }
+
+    private static String legacySha1(File file) throws Exception {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            DigestInputStream dis = new DigestInputStream(is, md);
+            IOUtils.copyLarge(dis, new NullOutputStream());
+            dis.close();
+            byte[] bytes = dis.getMessageDigest().digest();
+            return String.format("%040x", new BigInteger(1, bytes));
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+}
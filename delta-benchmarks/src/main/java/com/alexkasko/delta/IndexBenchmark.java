@@ -0,0 +1,80 @@
+package com.alexkasko.delta;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CountingOutputStream;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures '.index' file serialization and parsing throughput for both formats,
+ * files counter is reported as index entries per second.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+    @Param({"100000"})
+    public int entries;
+
+    @Param({"JSON", "BINARY"})
+    public IndexFormat format;
+
+    private DeltaIndex index;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        ImmutableList.Builder<IndexEntry.Unchanged> unchanged = ImmutableList.builder();
+        ImmutableList.Builder<IndexEntry.Updated> updated = ImmutableList.builder();
+        for (int i = 0; i < entries; i++) {
+            String path = "dir" + (i / 500) + "/subdir" + (i % 7) + "/file" + i + ".bin";
+            String oldSha1 = randomSha1(random);
+            if (0 == i % 10) {
+                updated.add(new IndexEntry.Updated(path, oldSha1, randomSha1(random)));
+            } else {
+                unchanged.add(new IndexEntry.Unchanged(path, oldSha1, oldSha1));
+            }
+        }
+        index = new DeltaIndex(ImmutableList.<IndexEntry.Created>of(), ImmutableList.<IndexEntry.Deleted>of(),
+                updated.build(), unchanged.build());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IndexCodec.write(index.getAll(), baos, format);
+        serialized = baos.toByteArray();
+    }
+
+    @Benchmark
+    public void write(Throughput tp) throws IOException {
+        CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+        IndexCodec.write(index.getAll(), out, format);
+        tp.add(out.getCount(), entries);
+    }
+
+    @Benchmark
+    public void read(Blackhole bh, Throughput tp) throws IOException {
+        Iterator<IndexEntry> iter = IndexCodec.read(new ByteArrayInputStream(serialized));
+        while (iter.hasNext()) {
+            bh.consume(iter.next());
+        }
+        tp.add(serialized.length, entries);
+    }
+
+    private static String randomSha1(Random random) {
+        byte[] bytes = new byte[20];
+        random.nextBytes(bytes);
+        return HashUtils.hex(bytes);
+    }
+}
@@ -0,0 +1,73 @@
+package com.alexkasko.delta;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link DirDeltaPatcher#patch(java.io.File, java.io.File)} throughput. Patch is applied
+ * to a hard-linked copy of old tree, that is safe because patcher doesn't write into existing files.
+ * Throughput counters are reported for the new version of tree.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class PatchBenchmark {
+    @Param({"ZIP", "LZ4"})
+    public PatchContainer container;
+
+    private BenchmarkTrees trees;
+    private File patch;
+    private File workDir;
+
+    @Setup(Level.Trial)
+    public void setupPatch(BenchmarkTrees trees) throws IOException {
+        this.trees = trees;
+        this.patch = new File(trees.baseDir, "patch." + container.name().toLowerCase());
+        new DirDeltaCreator().withContainer(container).create(trees.oldDir, trees.newDir, patch);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupWorkDir() throws IOException {
+        workDir = new File(trees.baseDir, "work");
+        linkTree(trees.oldDir.toPath(), workDir.toPath());
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownWorkDir() throws IOException {
+        FileUtils.deleteDirectory(workDir);
+    }
+
+    @Benchmark
+    public void patch(Throughput tp) throws IOException {
+        new DirDeltaPatcher().patch(workDir, patch);
+        tp.add(trees.newSize, trees.newFiles);
+    }
+
+    private static void linkTree(final Path from, final Path to) throws IOException {
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.createLink(to.resolve(from.relativize(file)), file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
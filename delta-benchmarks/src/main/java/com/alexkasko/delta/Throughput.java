@@ -0,0 +1,32 @@
+package com.alexkasko.delta;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary benchmark metrics, in throughput mode they are reported
+ * per second, as MB/s and files/s
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+    private static final double MB = 1024 * 1024;
+
+    public double megabytes;
+    public long files;
+
+    /**
+     * Adds processed data to counters
+     *
+     * @param bytes bytes processed
+     * @param filesCount files processed
+     */
+    void add(long bytes, long filesCount) {
+        this.megabytes += bytes / MB;
+        this.files += filesCount;
+    }
+}
@@ -0,0 +1,148 @@
+package com.alexkasko.delta;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Generates pair of synthetic directory trees (old and new versions) for benchmarks.
+ * Files contents are random, {@code churn} part of files is changed in new tree:
+ * half of them are updated in a few places, quarter is deleted and quarter is created.
+ * Generation is deterministic for the same arguments.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class TreeGenerator {
+    private static final int FILES_PER_DIR = 500;
+    private static final int CHANGED_RANGES = 4;
+    private static final int CHANGED_RANGE_SIZE = 512;
+
+    /**
+     * Tree shapes used in benchmarks
+     */
+    enum Profile {
+        SMALL_FILES(20000, 4 * 1024, 0, 0),
+        HUGE_BINARIES(0, 0, 3, 256 * 1024 * 1024),
+        MIXED(5000, 16 * 1024, 2, 64 * 1024 * 1024);
+
+        private final int smallCount;
+        private final int smallSize;
+        private final int hugeCount;
+        private final int hugeSize;
+
+        Profile(int smallCount, int smallSize, int hugeCount, int hugeSize) {
+            this.smallCount = smallCount;
+            this.smallSize = smallSize;
+            this.hugeCount = hugeCount;
+            this.hugeSize = hugeSize;
+        }
+    }
+
+    private final Profile profile;
+    private final double churn;
+    private final Random random = new Random(42);
+
+    /**
+     * @param profile tree shape
+     * @param churn part of files to change in new tree, from 0 to 1
+     */
+    TreeGenerator(Profile profile, double churn) {
+        checkArgument(churn >= 0 && churn <= 1, "Invalid churn: [%s]", churn);
+        this.profile = profile;
+        this.churn = churn;
+    }
+
+    /**
+     * Generates trees into specified directories
+     *
+     * @param oldDir old version directory
+     * @param newDir new version directory
+     * @throws IOException on io error
+     */
+    void generate(File oldDir, File newDir) throws IOException {
+        int idx = 0;
+        for (int i = 0; i < profile.smallCount; i++) {
+            generateFile(oldDir, newDir, idx++, profile.smallSize);
+        }
+        for (int i = 0; i < profile.hugeCount; i++) {
+            generateFile(oldDir, newDir, idx++, profile.hugeSize);
+        }
+    }
+
+    /**
+     * Total size of files in directory
+     *
+     * @param dir directory
+     * @return size in bytes
+     */
+    static long treeSize(File dir) {
+        return FileUtils.sizeOfDirectory(dir);
+    }
+
+    /**
+     * Number of files in directory
+     *
+     * @param dir directory
+     * @return files count
+     */
+    static int treeFiles(File dir) {
+        return FileUtils.listFiles(dir, null, true).size();
+    }
+
+    private void generateFile(File oldDir, File newDir, int idx, int size) throws IOException {
+        String path = "dir" + (idx / FILES_PER_DIR) + "/file" + idx + ".bin";
+        File oldFile = new File(oldDir, path);
+        File newFile = new File(newDir, path);
+        double dice = random.nextDouble();
+        if (dice < churn / 4) {
+            // created
+            writeRandom(newFile, size);
+        } else if (dice < churn / 2) {
+            // deleted
+            writeRandom(oldFile, size);
+        } else if (dice < churn) {
+            // updated
+            writeRandom(oldFile, size);
+            FileUtils.copyFile(oldFile, newFile);
+            changeRanges(newFile);
+        } else {
+            // unchanged
+            writeRandom(oldFile, size);
+            FileUtils.copyFile(oldFile, newFile);
+        }
+    }
+
+    private void writeRandom(File file, int size) throws IOException {
+        FileUtils.forceMkdir(file.getParentFile());
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            byte[] buf = new byte[64 * 1024];
+            for (int written = 0; written < size; written += buf.length) {
+                random.nextBytes(buf);
+                out.write(buf, 0, Math.min(buf.length, size - written));
+            }
+        } finally {
+            if (null != out) out.close();
+        }
+    }
+
+    private void changeRanges(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long len = raf.length();
+            byte[] buf = new byte[(int) Math.min(CHANGED_RANGE_SIZE, len)];
+            for (int i = 0; i < CHANGED_RANGES; i++) {
+                random.nextBytes(buf);
+                raf.seek((long) (random.nextDouble() * (len - buf.length)));
+                raf.write(buf);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.alexkasko.delta;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.alexkasko.delta.HashUtils.hex;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Computes hash sums of consecutive fixed-size blocks of data, the last block may be shorter.
+ * Data is fed along with whole file digest, so blocks are hashed in the same pass.
+ * Instances are not thread-safe.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class BlockDigester {
+    private final MessageDigest md;
+    private final int blockSize;
+    private final List<String> blocks = new ArrayList<String>();
+    private long length = 0;
+    // bytes of current block
+    private int filled = 0;
+
+    /**
+     * @param algorithm digest algorithm
+     * @param blockSize block size
+     */
+    BlockDigester(DigestAlgorithm algorithm, int blockSize) {
+        checkArgument(blockSize > 0, "Block size must be positive, but was: %s", blockSize);
+        this.md = algorithm.newDigest();
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Counts number of blocks in file of specified size
+     *
+     * @param size file size
+     * @param blockSize block size
+     * @return blocks count
+     */
+    static long blocksCount(long size, int blockSize) {
+        return (size + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * Digests remaining bytes of provided buffer, buffer position is moved to its limit
+     *
+     * @param buf data
+     */
+    void update(ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            int len = Math.min(buf.remaining(), blockSize - filled);
+            ByteBuffer slice = buf.duplicate();
+            slice.limit(slice.position() + len);
+            md.update(slice);
+            buf.position(buf.position() + len);
+            filled += len;
+            length += len;
+            if(blockSize == filled) {
+                blocks.add(hex(md.digest()));
+                filled = 0;
+            }
+        }
+    }
+
+    /**
+     * Digests specified part of array
+     *
+     * @param data data
+     * @param off offset
+     * @param len length
+     */
+    void update(byte[] data, int off, int len) {
+        update(ByteBuffer.wrap(data, off, len));
+    }
+
+    /**
+     * Wraps output stream digesting all data written into it
+     *
+     * @param out output stream
+     * @return digesting stream, its closing closes provided stream
+     */
+    OutputStream digesting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                update(new byte[]{(byte) b}, 0, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                update(b, off, len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Finishes digesting
+     *
+     * @return block hash sums, null if data is not larger than single block
+     */
+    List<String> finish() {
+        if(length <= blockSize) return null;
+        if(filled > 0) blocks.add(hex(md.digest()));
+        filled = 0;
+        return ImmutableList.copyOf(blocks);
+    }
+}
@@ -0,0 +1,197 @@
+package com.alexkasko.delta;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang.UnhandledException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+
+/**
+ * Helpers for processing files in worker threads while keeping results in input order
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class ConcurrencyUtils {
+
+    /**
+     * Creates executor for the specified number of threads, single thread means
+     * that tasks will be executed in calling thread
+     *
+     * @param threads number of worker threads
+     * @param name worker thread name prefix
+     * @return executor, must be shut down by caller
+     */
+    static ExecutorService newExecutor(int threads, String name) {
+        checkArgument(threads > 0, "Threads count must be positive, but was: %s", threads);
+        if(1 == threads) return MoreExecutors.sameThreadExecutor();
+        ThreadFactory tf = new ThreadFactoryBuilder()
+                .setNameFormat(name + "-%d")
+                .setDaemon(true)
+                .build();
+        return Executors.newFixedThreadPool(threads, tf);
+    }
+
+    /**
+     * Lazily applies function to input elements using provided executor. At most {@code window}
+     * elements are processed ahead of consumer, results are returned in input order.
+     *
+     * @param input input elements
+     * @param fun function to apply
+     * @param executor executor to run function in
+     * @param window max number of elements being processed simultaneously
+     * @return iterator over results in input order
+     */
+    static <F, T> Iterator<T> transformOrdered(Iterator<F> input, Function<? super F, ? extends T> fun,
+                                               ExecutorService executor, int window) {
+        checkArgument(window > 0, "Window must be positive, but was: %s", window);
+        return new OrderedTransformIterator<F, T>(input, fun, executor, window);
+    }
+
+    /**
+     * Applies action to all input elements using provided executor. At most {@code window}
+     * elements are processed simultaneously. Fails fast: on first failed action all running ones
+     * are interrupted, pending ones are not started and failure is rethrown.
+     *
+     * @param input input elements
+     * @param action action to apply
+     * @param executor executor to run action in
+     * @param window max number of elements being processed simultaneously
+     * @throws IOException first failure thrown by action
+     */
+    static <T> void forEach(Iterator<? extends T> input, Action<? super T> action,
+                            ExecutorService executor, int window) throws IOException {
+        checkArgument(window > 0, "Window must be positive, but was: %s", window);
+        CompletionService<Void> cs = new ExecutorCompletionService<Void>(executor);
+        List<Future<Void>> running = new ArrayList<Future<Void>>();
+        try {
+            int active = 0;
+            while (input.hasNext() || active > 0) {
+                while (active < window && input.hasNext()) {
+                    running.add(cs.submit(new ActionTask<T>(action, input.next())));
+                    active += 1;
+                }
+                Future<Void> done = takeUninterruptibly(cs);
+                running.remove(done);
+                active -= 1;
+                getUninterruptibly(done);
+            }
+        } catch (ExecutionException e) {
+            for (Future<Void> fu : running) {
+                fu.cancel(true);
+            }
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw new UnhandledException(cause);
+        }
+    }
+
+    /**
+     * Action applied to elements by {@link #forEach(java.util.Iterator, ConcurrencyUtils.Action, java.util.concurrent.ExecutorService, int)}
+     */
+    interface Action<T> {
+        /**
+         * @param input input element
+         * @throws IOException on io or consistency problem
+         */
+        void apply(T input) throws IOException;
+    }
+
+    private static Future<Void> takeUninterruptibly(CompletionService<Void> cs) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return cs.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class ActionTask<T> implements Callable<Void> {
+        private final Action<? super T> action;
+        private final T input;
+
+        private ActionTask(Action<? super T> action, T input) {
+            this.action = action;
+            this.input = input;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            action.apply(input);
+            return null;
+        }
+    }
+
+    private static class OrderedTransformIterator<F, T> extends AbstractIterator<T> {
+        private final Iterator<F> input;
+        private final Function<? super F, ? extends T> fun;
+        private final ExecutorService executor;
+        private final int window;
+        private final Queue<Future<T>> pending = new ArrayDeque<Future<T>>();
+
+        private OrderedTransformIterator(Iterator<F> input, Function<? super F, ? extends T> fun,
+                                         ExecutorService executor, int window) {
+            this.input = input;
+            this.fun = fun;
+            this.executor = executor;
+            this.window = window;
+        }
+
+        @Override
+        protected T computeNext() {
+            while (pending.size() < window && input.hasNext()) {
+                pending.add(executor.submit(new Task(input.next())));
+            }
+            Future<T> fu = pending.poll();
+            if(null == fu) return endOfData();
+            try {
+                return getUninterruptibly(fu);
+            } catch (ExecutionException e) {
+                cancelPending();
+                Throwable cause = e.getCause();
+                if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if(cause instanceof Error) throw (Error) cause;
+                throw new UnhandledException(cause);
+            }
+        }
+
+        private void cancelPending() {
+            for(Future<T> fu : pending) {
+                fu.cancel(true);
+            }
+            pending.clear();
+        }
+
+        private class Task implements Callable<T> {
+            private final F element;
+
+            private Task(F element) {
+                this.element = element;
+            }
+
+            @Override
+            public T call() throws Exception {
+                return fun.apply(element);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.alexkasko.delta;
+
+import com.nothome.delta.SeekableSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Computes and applies binary deltas of updated files. Deltas are written in GDIFF format,
+ * so patches created with any engine may be applied by any engine (and by patchers before 1.1.4).
+ * Implementations must be thread-safe.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+public interface DeltaEngine {
+
+    /**
+     * Computes delta between two versions of file
+     *
+     * @param source old version of file
+     * @param target new version of file
+     * @param delta stream to write GDIFF delta into, won't be closed
+     * @throws IOException on io error
+     */
+    void compute(File source, File target, OutputStream delta) throws IOException;
+
+    /**
+     * Applies delta to old version of file
+     *
+     * @param source old version of file
+     * @param delta GDIFF delta stream, won't be closed
+     * @param target stream to write new version of file into, won't be closed
+     * @throws IOException on io error or corrupted delta
+     */
+    void apply(SeekableSource source, InputStream delta, OutputStream target) throws IOException;
+}
@@ -8,20 +8,58 @@ import com.google.common.collect.Iterables;
  * Date: 11/18/11
  */
 class DeltaIndex {
-    final ImmutableList<IndexEntry.Unchanged> unchanged;
-    final ImmutableList<IndexEntry.Created> created;
-    final ImmutableList<IndexEntry.Updated> updated;
-    final ImmutableList<IndexEntry.Deleted> deleted;
+    final Iterable<IndexEntry.Unchanged> unchanged;
+    final Iterable<IndexEntry.Created> created;
+    final Iterable<IndexEntry.Updated> updated;
+    final Iterable<IndexEntry.Deleted> deleted;
+    final Iterable<IndexEntry.Moved> moved;
+    final Iterable<IndexEntry.CopiedFrom> copied;
+    final Iterable<IndexEntry.Duplicated> duplicated;
 
-    DeltaIndex(ImmutableList<IndexEntry.Created> created, ImmutableList<IndexEntry.Deleted> deleted,
-                      ImmutableList<IndexEntry.Updated> updated, ImmutableList<IndexEntry.Unchanged> unchanged) {
+    DeltaIndex(Iterable<IndexEntry.Created> created, Iterable<IndexEntry.Deleted> deleted,
+                      Iterable<IndexEntry.Updated> updated, Iterable<IndexEntry.Unchanged> unchanged) {
+        this(created, deleted, updated, unchanged, ImmutableList.<IndexEntry.Moved>of(),
+                ImmutableList.<IndexEntry.CopiedFrom>of(), ImmutableList.<IndexEntry.Duplicated>of());
+    }
+
+    DeltaIndex(Iterable<IndexEntry.Created> created, Iterable<IndexEntry.Deleted> deleted,
+               Iterable<IndexEntry.Updated> updated, Iterable<IndexEntry.Unchanged> unchanged,
+               Iterable<IndexEntry.Moved> moved, Iterable<IndexEntry.CopiedFrom> copied,
+               Iterable<IndexEntry.Duplicated> duplicated) {
         this.unchanged = unchanged;
         this.created = created;
         this.updated = updated;
         this.deleted = deleted;
+        this.moved = moved;
+        this.copied = copied;
+        this.duplicated = duplicated;
+    }
+
+    /**
+     * Creates index with lazy views over provided entries partitioned by state,
+     * each view iterates over all entries
+     *
+     * @param entries index entries in any order
+     * @return index
+     */
+    static DeltaIndex partition(Iterable<? extends IndexEntry> entries) {
+        return new DeltaIndex(Iterables.filter(entries, IndexEntry.Created.class),
+                Iterables.filter(entries, IndexEntry.Deleted.class),
+                Iterables.filter(entries, IndexEntry.Updated.class),
+                Iterables.filter(entries, IndexEntry.Unchanged.class),
+                Iterables.filter(entries, IndexEntry.Moved.class),
+                Iterables.filter(entries, IndexEntry.CopiedFrom.class),
+                Iterables.filter(entries, IndexEntry.Duplicated.class));
     }
 
+    /**
+     * Returns all entries in order they are applied: copies and moves read old files
+     * before they are updated or deleted, duplicates read created files
+     *
+     * @return all entries
+     */
     Iterable<? extends IndexEntry> getAll() {
-        return Iterables.concat(unchanged, created, updated, deleted);
+        return Iterables.concat(ImmutableList.<Iterable<? extends IndexEntry>>of(
+                unchanged, copied, moved, created, duplicated, updated, deleted));
     }
 }
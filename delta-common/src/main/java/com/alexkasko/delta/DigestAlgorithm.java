@@ -0,0 +1,65 @@
+package com.alexkasko.delta;
+
+import org.apache.commons.lang.UnhandledException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash sum algorithms for index entries, algorithm is recorded in index header
+ * and patcher checks files with the same algorithm
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+public enum DigestAlgorithm {
+    /**
+     * SHA-1, readable by all patcher versions
+     */
+    SHA1(1, "SHA-1", 20),
+    /**
+     * SHA-256, for patches of signed releases
+     */
+    SHA256(2, "SHA-256", 32),
+    /**
+     * Non-cryptographic 128-bit MurmurHash3 (x64 variant, zero seed), several times faster than SHA-1,
+     * detects changes but doesn't protect from deliberate collisions
+     */
+    MURMUR3_128(3, "MurmurHash3-128", 16);
+
+    final int id;
+    final String name;
+    final int length;
+
+    DigestAlgorithm(int id, String name, int length) {
+        this.id = id;
+        this.name = name;
+        this.length = length;
+    }
+
+    /**
+     * Creates new digest instance
+     *
+     * @return message digest
+     */
+    MessageDigest newDigest() {
+        if(MURMUR3_128 == this) return new Murmur3Digest();
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnhandledException(e);
+        }
+    }
+
+    /**
+     * @param id algorithm id from binary header
+     * @return algorithm with specified id
+     * @throws IllegalArgumentException on unknown id
+     */
+    static DigestAlgorithm forId(int id) {
+        for (DigestAlgorithm da : values()) {
+            if(id == da.id) return da;
+        }
+        throw new IllegalArgumentException("Unsupported digest algorithm id: " + id);
+    }
+}
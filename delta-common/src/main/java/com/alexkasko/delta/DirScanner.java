@@ -0,0 +1,150 @@
+package com.alexkasko.delta;
+
+import org.apache.commons.io.IOCase;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.IOFileFilter;
+import org.apache.commons.lang.UnhandledException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Walks directory tree collecting relative paths of files together with their sizes, modification times
+ * and file keys read in the same pass. Directories are listed and their children attributes are read
+ * in parallel in fork-join pool, that hides latencies of network file systems. Paths are returned in natural
+ * string order without sorting all paths: children are sorted in each directory the same way as in
+ * {@link SortedFileIterator}. Files and directories are selected with the same semantics as
+ * {@link org.apache.commons.io.FileUtils#listFiles(java.io.File, org.apache.commons.io.filefilter.IOFileFilter, org.apache.commons.io.filefilter.IOFileFilter)}
+ * with the same filter for files and directories, symbolic links are followed.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class DirScanner {
+
+    /**
+     * Scans directory tree
+     *
+     * @param root root directory
+     * @param filter IO filter to select files and directories
+     * @param caseSensitive case sensivity flag, paths are lower-cased for insensitive one
+     * @param threads number of threads to list directories with
+     * @return scanned files sorted by relative path
+     * @throws IOException on io error
+     * @throws IllegalStateException on paths collision in case insensitive mode
+     */
+    static List<ScannedFile> scan(File root, IOFileFilter filter, IOCase caseSensitive, int threads) throws IOException {
+        checkArgument(threads > 0, "Threads count must be positive: %s", threads);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new DirTask(root.toPath(), "", filter, caseSensitive));
+        } catch (UnhandledException e) {
+            // fork-join pool may rethrow exception wrapped into its copy
+            Throwable cause = e.getCause();
+            while (cause instanceof UnhandledException) cause = cause.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Scanned file attributes
+     */
+    static class ScannedFile {
+        final String path;
+        final long size;
+        final long mtime;
+        // null if not supported by file system
+        final Object fileKey;
+
+        private ScannedFile(String path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.size = attrs.size();
+            this.mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            this.fileKey = attrs.fileKey();
+        }
+    }
+
+    private static class DirTask extends RecursiveTask<List<ScannedFile>> {
+        private static final long serialVersionUID = -3394583431524283150L;
+        private final Path dir;
+        private final String prefix;
+        private final IOFileFilter filter;
+        private final IOCase caseSensitive;
+
+        private DirTask(Path dir, String prefix, IOFileFilter filter, IOCase caseSensitive) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.filter = filter;
+            this.caseSensitive = caseSensitive;
+        }
+
+        @Override
+        protected List<ScannedFile> compute() {
+            try {
+                SortedMap<String, Object> children = list();
+                // subdirectories are scanned concurrently
+                for (Object ch : children.values()) {
+                    if(ch instanceof DirTask) ((DirTask) ch).fork();
+                }
+                List<ScannedFile> res = new ArrayList<ScannedFile>();
+                for (Object ch : children.values()) {
+                    if(ch instanceof DirTask) res.addAll(((DirTask) ch).join());
+                    else res.add((ScannedFile) ch);
+                }
+                return res;
+            } catch (IOException e) {
+                throw new UnhandledException(e);
+            }
+        }
+
+        // directories are sorted with appended '/' among files
+        private SortedMap<String, Object> list() throws IOException {
+            SortedMap<String, Object> res = new TreeMap<String, Object>();
+            DirectoryStream<Path> stream = null;
+            try {
+                stream = Files.newDirectoryStream(dir);
+                for (Path pa : stream) {
+                    if(!filter.accept(pa.toFile())) continue;
+                    String name = pa.getFileName().toString();
+                    if(!caseSensitive.isCaseSensitive()) name = name.toLowerCase();
+                    BasicFileAttributes attrs = readAttributes(pa);
+                    String path = attrs.isDirectory() ? prefix + name + "/" : prefix + name;
+                    // names differing only in case are lower-cased to the same path
+                    checkState(!res.containsKey(path), "Paths collision in case insensitive mode: '%s', '%s'", path, pa);
+                    if(attrs.isDirectory()) {
+                        res.put(path, new DirTask(pa, path, filter, caseSensitive));
+                    } else {
+                        res.put(path, new ScannedFile(path, attrs));
+                    }
+                }
+                return res;
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+        }
+
+        // broken links are returned as files
+        private static BasicFileAttributes readAttributes(Path path) throws IOException {
+            try {
+                return Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.alexkasko.delta;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.UnhandledException;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.alexkasko.delta.HashUtils.hex;
+import static com.alexkasko.delta.HashUtils.unhex;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Persistent hash sums cache keyed by absolute path, size, modification time and inode.
+ * Cached hash sum is used only if all of them match current file attributes and it was computed
+ * with the digest algorithm of this instance, instances with different algorithms share
+ * entries (see {@link #withAlgorithm(DigestAlgorithm)}).
+ * Entries that were not touched (looked up or put) since loading are dropped on {@link #save()}.
+ * Cache file is rewritten atomically with compact binary format:
+ * <pre>
+ *  int magic, int entries count, entries: {UTF path, long size, long mtime nanos, long inode, byte algorithm id, byte[] hash}
+ * </pre>
+ * Files written by previous version without algorithm ids contain SHA-1 hash sums. Instances are thread-safe.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class HashCache {
+    // "DHC" + version
+    private static final int SHA1_MAGIC = 0x44484301;
+    private static final int MAGIC = 0x44484302;
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final boolean UNIX_ATTRS = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    private final File file;
+    private final Map<String, Entry> loaded;
+    private final Map<String, Entry> touched;
+    private final DigestAlgorithm algorithm;
+
+    private HashCache(File file, Map<String, Entry> loaded) {
+        this(file, loaded, new ConcurrentHashMap<String, Entry>(), DigestAlgorithm.SHA1);
+    }
+
+    private HashCache(File file, Map<String, Entry> loaded, Map<String, Entry> touched, DigestAlgorithm algorithm) {
+        this.file = file;
+        this.loaded = loaded;
+        this.touched = touched;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Returns cache instance that computes hash sums every time and doesn't store them
+     *
+     * @return disabled cache
+     */
+    static HashCache disabled() {
+        return new HashCache(null, new ConcurrentHashMap<String, Entry>());
+    }
+
+    /**
+     * Loads cache from specified file, empty cache is returned if file doesn't exist
+     * or has unsupported format
+     *
+     * @param file cache file, may be null
+     * @return cache instance with SHA-1 algorithm, disabled one if file is null
+     * @throws IOException on io error
+     */
+    static HashCache load(File file) throws IOException {
+        if(null == file) return disabled();
+        Map<String, Entry> loaded = new ConcurrentHashMap<String, Entry>();
+        if(!file.exists()) return new HashCache(file, loaded);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int magic = in.readInt();
+            if(MAGIC != magic && SHA1_MAGIC != magic) return new HashCache(file, loaded);
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                long inode = in.readLong();
+                DigestAlgorithm algorithm = MAGIC == magic ? DigestAlgorithm.forId(in.readUnsignedByte()) : DigestAlgorithm.SHA1;
+                byte[] hash = new byte[algorithm.length];
+                in.readFully(hash);
+                loaded.put(path, new Entry(size, mtime, inode, algorithm, hash));
+            }
+            return new HashCache(file, loaded);
+        } catch (EOFException e) {
+            // truncated cache is useless, but harmless
+            return new HashCache(file, new ConcurrentHashMap<String, Entry>());
+        } catch (IllegalArgumentException e) {
+            // unknown algorithm id in corrupted cache
+            return new HashCache(file, new ConcurrentHashMap<String, Entry>());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Returns cache that shares entries with this one and computes hash sums with specified algorithm
+     *
+     * @param algorithm digest algorithm
+     * @return cache with specified algorithm
+     */
+    HashCache withAlgorithm(DigestAlgorithm algorithm) {
+        return new HashCache(file, loaded, touched, algorithm);
+    }
+
+    /**
+     * @return digest algorithm of this cache
+     */
+    DigestAlgorithm algorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns cached hash sum if file wasn't changed, computes and caches it otherwise
+     *
+     * @param file file to hash
+     * @return hash sum in hex
+     */
+    String computeHash(File file) {
+        String cached = lookup(file);
+        if(null != cached) return cached;
+        return rehash(file);
+    }
+
+    /**
+     * Computes hash sum ignoring cached one and caches it
+     *
+     * @param file file to hash
+     * @return hash sum in hex
+     */
+    String rehash(File file) {
+        Entry attrs = readAttrs(file);
+        String hash = HashUtils.computeHash(file, algorithm);
+        putEntry(file, attrs, hash);
+        return hash;
+    }
+
+    /**
+     * Computes hash sum of file and hash sums of its blocks, if file is larger than single block.
+     * Block hash sums are not cached, so large files are read even if their hash sums are cached.
+     *
+     * @param file file to hash
+     * @param blockSize block size, {@code 0} to compute only hash sum of file
+     * @return hash sum with optional block hash sums
+     */
+    HashUtils.FileDigest computeDigest(File file, int blockSize) {
+        return computeDigest(file, blockSize, false);
+    }
+
+    /**
+     * Computes hash sum of file with optional hash sums of its blocks and CRC32 sum.
+     * CRC32 sums are not cached, so files are read even if their hash sums are cached.
+     *
+     * @param file file to hash
+     * @param blockSize block size, {@code 0} to skip block hash sums
+     * @param crc whether CRC32 sum should be computed
+     * @return hash sum with optional block hash sums and CRC32 sum
+     */
+    HashUtils.FileDigest computeDigest(File file, int blockSize, boolean crc) {
+        if(!crc && (0 == blockSize || file.length() <= blockSize)) return new HashUtils.FileDigest(computeHash(file), null);
+        Entry attrs = readAttrs(file);
+        HashUtils.FileDigest res = HashUtils.computeDigest(file, algorithm, blockSize, crc);
+        putEntry(file, attrs, res.hash);
+        return res;
+    }
+
+    /**
+     * Returns cached hash sum if file wasn't changed since it was cached
+     *
+     * @param file file to look up
+     * @return hash sum in hex or null
+     */
+    String lookup(File file) {
+        if(null == this.file) return null;
+        String key = key(file);
+        Entry en = touched.get(key);
+        if(null == en) en = loaded.get(key);
+        if(null == en) return null;
+        if(algorithm != en.algorithm) return null;
+        Entry attrs = readAttrs(file);
+        if(!attrs.matches(en)) return null;
+        touched.put(key, en);
+        return hex(en.hash);
+    }
+
+    /**
+     * Keeps loaded cache entry of file on {@link #save()} without reading file,
+     * used for files that were not checked
+     *
+     * @param file file
+     */
+    void keep(File file) {
+        if(null == this.file) return;
+        String key = key(file);
+        Entry en = loaded.get(key);
+        if(null != en && !touched.containsKey(key)) touched.put(key, en);
+    }
+
+    /**
+     * Caches hash sum computed for current file contents
+     *
+     * @param file file
+     * @param hash hash sum in hex
+     */
+    void put(File file, String hash) {
+        if(null == this.file) return;
+        putEntry(file, readAttrs(file), hash);
+    }
+
+    /**
+     * Drops cached hash sum for file
+     *
+     * @param file file
+     */
+    void remove(File file) {
+        if(null == this.file) return;
+        touched.remove(key(file));
+    }
+
+    /**
+     * Moves cached entries of files under one directory to another directory,
+     * used when directory is renamed or its files are hard-linked into another one
+     *
+     * @param fromDir directory entries are cached for
+     * @param toDir directory with the same files
+     */
+    void relocate(File fromDir, File toDir) {
+        if(null == this.file) return;
+        String from = key(fromDir);
+        String to = key(toDir);
+        relocate(loaded, from, to);
+        relocate(touched, from, to);
+    }
+
+    /**
+     * Atomically rewrites cache file with touched entries, NOOP for disabled cache
+     *
+     * @throws IOException on io error
+     */
+    void save() throws IOException {
+        if(null == file) return;
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            Map<String, Entry> snapshot = new HashMap<String, Entry>(touched);
+            out.writeInt(snapshot.size());
+            for(Map.Entry<String, Entry> me : snapshot.entrySet()) {
+                Entry en = me.getValue();
+                out.writeUTF(me.getKey());
+                out.writeLong(en.size);
+                out.writeLong(en.mtime);
+                out.writeLong(en.inode);
+                out.writeByte(en.algorithm.id);
+                out.write(en.hash);
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            move(tmp, file);
+        } finally {
+            IOUtils.closeQuietly(out);
+            if(tmp.exists()) tmp.delete();
+        }
+    }
+
+    private void putEntry(File file, Entry attrs, String hash) {
+        // file may be changed within the same tick of coarse-grained timestamp after hashing
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        boolean coarse = 0 == attrs.mtime % SECOND_NANOS;
+        if(coarse && now - attrs.mtime < 2 * SECOND_NANOS) return;
+        touched.put(key(file), new Entry(attrs.size, attrs.mtime, attrs.inode, algorithm, unhex(hash)));
+    }
+
+    private static void relocate(Map<String, Entry> map, String from, String to) {
+        String prefix = from + File.separator;
+        for(String key : new ArrayList<String>(map.keySet())) {
+            if(!key.startsWith(prefix)) continue;
+            Entry en = map.remove(key);
+            if(null != en) map.put(to + key.substring(from.length()), en);
+        }
+    }
+
+    private static String key(File file) {
+        return file.toPath().toAbsolutePath().normalize().toString();
+    }
+
+    private static Entry readAttrs(File file) {
+        try {
+            Path path = file.toPath();
+            if(UNIX_ATTRS) {
+                Map<String, Object> attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ino");
+                long size = (Long) attrs.get("size");
+                long mtime = ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS);
+                long inode = (Long) attrs.get("ino");
+                return new Entry(size, mtime, inode, null, null);
+            } else {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                return new Entry(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), 0, null, null);
+            }
+        } catch (IOException e) {
+            throw new UnhandledException(e);
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), REPLACE_EXISTING);
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long mtime;
+        private final long inode;
+        private final DigestAlgorithm algorithm;
+        private final byte[] hash;
+
+        private Entry(long size, long mtime, long inode, DigestAlgorithm algorithm, byte[] hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+            this.algorithm = algorithm;
+            this.hash = hash;
+        }
+
+        private boolean matches(Entry other) {
+            return size == other.size && mtime == other.mtime && inode == other.inode;
+        }
+    }
+}
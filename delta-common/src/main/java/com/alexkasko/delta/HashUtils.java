@@ -3,41 +3,312 @@ package com.alexkasko.delta;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.UnhandledException;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.DigestInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static com.alexkasko.delta.MmapUtils.unmap;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
 
 /**
  * User: alexkasko
  * Date: 11/19/11
  */
 class HashUtils {
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+    private static final long MAP_THRESHOLD = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // digests and read buffer are reused for all files hashed in the same thread
+    private static final ThreadLocal<Hasher> HASHER = new ThreadLocal<Hasher>() {
+        @Override
+        protected Hasher initialValue() {
+            return new Hasher();
+        }
+    };
+
+    /**
+     * Computes SHA-1 hash sum of file contents
+     *
+     * @param file file to hash
+     * @return SHA-1 hash sum in hex
+     */
     static String computeSha1(File file) {
-        InputStream is = null;
+        return computeHash(file, DigestAlgorithm.SHA1);
+    }
+
+    /**
+     * Computes hash sum of file contents. Small files are read through channel into
+     * per-thread direct buffer, large ones are mapped into memory window by window.
+     *
+     * @param file file to hash
+     * @param algorithm digest algorithm
+     * @return hash sum in hex
+     */
+    static String computeHash(File file, DigestAlgorithm algorithm) {
+        MessageDigest md = HASHER.get().digest(algorithm);
+        md.reset();
+        return digestFile(file, md, null, null);
+    }
+
+    /**
+     * Computes hash sum of file contents and hash sums of its blocks in a single pass
+     *
+     * @param file file to hash
+     * @param algorithm digest algorithm
+     * @param blockSize block size
+     * @return hash sum and block hash sums, the latter are null if file is not larger than single block
+     */
+    static FileDigest computeDigest(File file, DigestAlgorithm algorithm, int blockSize) {
+        return computeDigest(file, algorithm, blockSize, false);
+    }
+
+    /**
+     * Computes hash sum of file contents with optional hash sums of its blocks and CRC32 sum in a single pass
+     *
+     * @param file file to hash
+     * @param algorithm digest algorithm
+     * @param blockSize block size, {@code 0} to skip block hash sums
+     * @param crc whether CRC32 sum should be computed
+     * @return hash sum, block hash sums are null if file is not larger than single block,
+     *         CRC32 sum is {@code -1} if not computed
+     */
+    static FileDigest computeDigest(File file, DigestAlgorithm algorithm, int blockSize, boolean crc) {
+        MessageDigest md = HASHER.get().digest(algorithm);
+        md.reset();
+        BlockDigester blocks = blockSize > 0 ? new BlockDigester(algorithm, blockSize) : null;
+        CRC32 checksum = crc ? new CRC32() : null;
+        String hash = digestFile(file, md, blocks, checksum);
+        return new FileDigest(hash, null != blocks ? blocks.finish() : null, crc ? checksum.getValue() : -1);
+    }
+
+    /**
+     * Computes hash sum of part of file
+     *
+     * @param ch file channel
+     * @param pos part position
+     * @param len part length
+     * @param algorithm digest algorithm
+     * @return hash sum in hex
+     * @throws IOException on io error or if file is shorter than part end
+     */
+    static String computeHash(FileChannel ch, long pos, int len, DigestAlgorithm algorithm) throws IOException {
+        Hasher hasher = HASHER.get();
+        MessageDigest md = hasher.digest(algorithm);
+        md.reset();
+        ByteBuffer buf = hasher.buffer;
+        long end = pos + len;
+        while (pos < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - pos));
+            int read = ch.read(buf, pos);
+            if(read < 0) throw new EOFException("Unexpected end of file, position: [" + pos + "]");
+            pos += read;
+            buf.flip();
+            md.update(buf);
+        }
+        return hex(md.digest());
+    }
+
+    // small files are read through channel into per-thread direct buffer, large ones are mapped into memory
+    private static String digestFile(File file, MessageDigest md, BlockDigester blocks, CRC32 crc) {
+        FileChannel ch = null;
+        try {
+            ch = FileChannel.open(file.toPath(), READ);
+            Hasher hasher = HASHER.get();
+            long size = ch.size();
+            if (size < MAP_THRESHOLD) {
+                ByteBuffer buf = hasher.buffer;
+                buf.clear();
+                while (ch.read(buf) >= 0) {
+                    buf.flip();
+                    if(null != blocks) blocks.update(buf.duplicate());
+                    if(null != crc) hasher.update(crc, buf.duplicate());
+                    md.update(buf);
+                    buf.clear();
+                }
+            } else {
+                for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                    MappedByteBuffer mapped = null;
+                    try {
+                        mapped = ch.map(READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos));
+                        if(null != blocks) blocks.update(mapped.duplicate());
+                        if(null != crc) hasher.update(crc, mapped.duplicate());
+                        md.update(mapped);
+                    } finally {
+                        unmap(mapped);
+                    }
+                }
+            }
+            return hex(md.digest());
+        } catch (IOException e) {
+            throw new UnhandledException(e);
+        } finally {
+            IOUtils.closeQuietly(ch);
+        }
+    }
+
+    /**
+     * Computes hash sums of two files of the same size in a single pass comparing their contents.
+     * Small files are read through channels into per-thread direct buffers, large ones are mapped
+     * into memory window by window. Second file is digested only from the first differing chunk,
+     * digest state of the first file is cloned at that point, so identical files are digested only once.
+     *
+     * @param first first file
+     * @param second second file, must have the same size as first one
+     * @param algorithm digest algorithm
+     * @return two-element array with first and second hash sums
+     */
+    static String[] computeHashPair(File first, File second, DigestAlgorithm algorithm) {
+        FileInputStream firstIs = null;
+        FileInputStream secondIs = null;
         try {
-            is = new FileInputStream(file);
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            DigestInputStream dis = new DigestInputStream(is, md);
-            IOUtils.copyLarge(dis, new NullOutputStream());
-            dis.close();
-            byte[] bytes = dis.getMessageDigest().digest();
-            return hex(bytes);
-        } catch (NoSuchAlgorithmException e) {
+            firstIs = new FileInputStream(first);
+            secondIs = new FileInputStream(second);
+            FileChannel firstCh = firstIs.getChannel();
+            FileChannel secondCh = secondIs.getChannel();
+            long size = firstCh.size();
+            checkArgument(size == secondCh.size(), "Files sizes differ, first: [%s], second: [%s]", first, second);
+            Hasher hasher = HASHER.get();
+            MessageDigest firstMd = hasher.digest(algorithm);
+            firstMd.reset();
+            MessageDigest secondMd = null;
+            if (size < MAP_THRESHOLD) {
+                ByteBuffer firstBuf = hasher.buffer;
+                ByteBuffer secondBuf = hasher.pairBuffer();
+                for (long pos = 0; pos < size; pos += BUFFER_SIZE) {
+                    int len = (int) Math.min(BUFFER_SIZE, size - pos);
+                    readFully(firstCh, firstBuf, pos, len);
+                    readFully(secondCh, secondBuf, pos, len);
+                    if (null == secondMd && !firstBuf.equals(secondBuf)) {
+                        secondMd = (MessageDigest) firstMd.clone();
+                    }
+                    firstMd.update(firstBuf);
+                    if (null != secondMd) secondMd.update(secondBuf);
+                }
+            } else {
+                for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                    long len = Math.min(MAP_WINDOW, size - pos);
+                    MappedByteBuffer firstBuf = null;
+                    MappedByteBuffer secondBuf = null;
+                    try {
+                        firstBuf = firstCh.map(READ_ONLY, pos, len);
+                        secondBuf = secondCh.map(READ_ONLY, pos, len);
+                        if (null == secondMd && !firstBuf.equals(secondBuf)) {
+                            secondMd = (MessageDigest) firstMd.clone();
+                        }
+                        firstMd.update(firstBuf);
+                        if (null != secondMd) secondMd.update(secondBuf);
+                    } finally {
+                        unmap(firstBuf);
+                        unmap(secondBuf);
+                    }
+                }
+            }
+            String firstHash = hex(firstMd.digest());
+            String secondHash = null != secondMd ? hex(secondMd.digest()) : firstHash;
+            return new String[]{firstHash, secondHash};
+        } catch (CloneNotSupportedException e) {
             throw new UnhandledException(e);
         } catch (IOException e) {
             throw new UnhandledException(e);
         } finally {
-            IOUtils.closeQuietly(is);
+            IOUtils.closeQuietly(firstIs);
+            IOUtils.closeQuietly(secondIs);
         }
     }
 
-    //  http://stackoverflow.com/a/3940857/314015
+    // reads part of file into buffer, buffer is flipped for reading
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos, int len) throws IOException {
+        buf.clear();
+        buf.limit(len);
+        while (buf.hasRemaining()) {
+            int read = ch.read(buf, pos + buf.position());
+            if(read < 0) throw new EOFException("Unexpected end of file, position: [" + (pos + buf.position()) + "]");
+        }
+        buf.flip();
+    }
+
     static String hex(byte[] data) {
-        return String.format("%040x", new BigInteger(1, data));
+        char[] res = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            int b = data[i] & 0xff;
+            res[i * 2] = HEX_DIGITS[b >>> 4];
+            res[i * 2 + 1] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(res);
+    }
+
+    static byte[] unhex(String hex) {
+        checkArgument(0 == hex.length() % 2, "Invalid hex string: [%s]", hex);
+        byte[] res = new byte[hex.length() / 2];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return res;
+    }
+
+    /**
+     * Hash sum of file with optional hash sums of its blocks
+     */
+    static class FileDigest {
+        final String hash;
+        // null for files not larger than single block
+        final List<String> blocks;
+        // -1 if not computed
+        final long crc;
+
+        FileDigest(String hash, List<String> blocks) {
+            this(hash, blocks, -1);
+        }
+
+        FileDigest(String hash, List<String> blocks, long crc) {
+            this.hash = hash;
+            this.blocks = blocks;
+            this.crc = crc;
+        }
+    }
+
+    private static class Hasher {
+        private final Map<DigestAlgorithm, MessageDigest> digests = new EnumMap<DigestAlgorithm, MessageDigest>(DigestAlgorithm.class);
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // second file of compared pair
+        private ByteBuffer pairBuffer;
+        // heap copy of direct buffers for CRC32
+        private byte[] array;
+
+        private MessageDigest digest(DigestAlgorithm algorithm) {
+            MessageDigest res = digests.get(algorithm);
+            if(null == res) {
+                res = algorithm.newDigest();
+                digests.put(algorithm, res);
+            }
+            return res;
+        }
+
+        private void update(CRC32 crc, ByteBuffer buf) {
+            if(null == array) array = new byte[BUFFER_SIZE];
+            while (buf.hasRemaining()) {
+                int len = Math.min(array.length, buf.remaining());
+                buf.get(array, 0, len);
+                crc.update(array, 0, len);
+            }
+        }
+
+        private ByteBuffer pairBuffer() {
+            if(null == pairBuffer) pairBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            return pairBuffer;
+        }
     }
 }
@@ -0,0 +1,429 @@
+package com.alexkasko.delta;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ForwardingIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.UnhandledException;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.alexkasko.delta.HashUtils.hex;
+import static com.alexkasko.delta.HashUtils.unhex;
+import static com.alexkasko.delta.IndexEntry.State.*;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Writes and reads '.index' file contents. Two formats are supported, format is detected on reading:
+ * <ul>
+ *  <li>{@link IndexFormat#JSON}: one JSON object per line, the first line is {@code {"digestAlgorithm":"SHA256","blockSize":1048576}}
+ *  header for algorithms other than SHA-1 or for index with block hash sums</li>
+ *  <li>{@link IndexFormat#BINARY}: {@code int magic, byte version, byte algorithm id (since version 2),
+ *  varint block size (since version 3), entries, byte 0xFF},
+ *  entry is {@code byte state, varint shared prefix length, varint suffix length, byte[] path suffix,
+ *  varint source path length and byte[] source path (only for 'moved', 'copied from' and 'duplicated'),
+ *  byte[] old hash sum (not for 'created' and 'duplicated'), byte[] new hash sum (not for 'unchanged' and 'deleted'),
+ *  varint blocks count and byte[] block hash sums (only for 'unchanged', 'created' and 'updated' since version 3)}.
+ *  Paths are UTF-8 encoded and prefix-compressed against the previous entry path. Version 1 is written
+ *  for SHA-1 hash sums, version 2 for other algorithms, version 3 for index with block hash sums.</li>
+ * </ul>
+ * Hash sums are kept in {@code oldSha1} and {@code newSha1} fields for any algorithm. Block hash sums are written
+ * only if block size is positive, they are computed with the same algorithm for each {@code blockSize} bytes of new file.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class IndexCodec {
+    // "DIDX", JSON index always starts with '{'
+    private static final int BINARY_MAGIC = 0x44494458;
+    private static final int BINARY_VERSION = 1;
+    private static final int BINARY_ALGORITHM_VERSION = 2;
+    private static final int BINARY_BLOCKS_VERSION = 3;
+    private static final int END_MARKER = 0xFF;
+    private static final IndexEntry.State[] STATES = IndexEntry.State.values();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String EMPTY_STRING = "";
+
+    /**
+     * Writes index entries into provided stream in JSON format, stream is flushed but not closed
+     *
+     * @param entries index entries
+     * @param out output stream
+     * @throws IOException on io error
+     */
+    static void write(Iterable<? extends IndexEntry> entries, OutputStream out) throws IOException {
+        write(entries.iterator(), out, IndexFormat.JSON, DigestAlgorithm.SHA1);
+    }
+
+    /**
+     * Writes index entries into provided stream, stream is flushed but not closed
+     *
+     * @param entries index entries
+     * @param out output stream
+     * @param format index format
+     * @throws IOException on io error
+     */
+    static void write(Iterable<? extends IndexEntry> entries, OutputStream out, IndexFormat format) throws IOException {
+        write(entries.iterator(), out, format, DigestAlgorithm.SHA1);
+    }
+
+    /**
+     * Writes index entries into provided stream, stream is flushed but not closed
+     *
+     * @param entries index entries
+     * @param out output stream
+     * @param format index format
+     * @param algorithm algorithm of entries hash sums
+     * @throws IOException on io error
+     */
+    static void write(Iterable<? extends IndexEntry> entries, OutputStream out, IndexFormat format,
+                      DigestAlgorithm algorithm) throws IOException {
+        write(entries.iterator(), out, format, algorithm);
+    }
+
+    /**
+     * Writes index entries into provided stream, stream is flushed but not closed
+     *
+     * @param entries index entries
+     * @param out output stream
+     * @param format index format
+     * @param algorithm algorithm of entries hash sums
+     * @throws IOException on io error
+     */
+    static void write(Iterator<? extends IndexEntry> entries, OutputStream out, IndexFormat format,
+                      DigestAlgorithm algorithm) throws IOException {
+        write(entries, out, format, algorithm, 0);
+    }
+
+    /**
+     * Writes index entries with block hash sums into provided stream, stream is flushed but not closed
+     *
+     * @param entries index entries
+     * @param out output stream
+     * @param format index format
+     * @param algorithm algorithm of entries hash sums
+     * @param blockSize size of blocks hashed in entries, {@code 0} if entries have no block hash sums
+     * @throws IOException on io error
+     */
+    static void write(Iterator<? extends IndexEntry> entries, OutputStream out, IndexFormat format,
+                      DigestAlgorithm algorithm, int blockSize) throws IOException {
+        checkArgument(blockSize >= 0, "Block size must be non-negative, but was: %s", blockSize);
+        switch (format) {
+            case JSON: writeJson(entries, out, algorithm, blockSize); break;
+            case BINARY: writeBinary(entries, out, algorithm, blockSize); break;
+            default: throw new IllegalArgumentException("Unsupported index format: " + format);
+        }
+    }
+
+    /**
+     * Lazily reads index entries from provided stream detecting its format
+     *
+     * @param in input stream
+     * @return index entries iterator with hash sums algorithm and block size read from header
+     * @throws IOException on io error
+     */
+    static Entries read(InputStream in) throws IOException {
+        InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in);
+        DataInputStream data = new DataInputStream(buffered);
+        data.mark(4);
+        byte[] head = new byte[4];
+        int read = 0;
+        while (read < head.length) {
+            int res = data.read(head, read, head.length - read);
+            if(res < 0) break;
+            read += res;
+        }
+        data.reset();
+        if(head.length == read && BINARY_MAGIC == new DataInputStream(new ByteArrayInputStream(head)).readInt()) {
+            data.readInt();
+            int version = data.readUnsignedByte();
+            if(version < BINARY_VERSION || version > BINARY_BLOCKS_VERSION) throw new IOException("Unsupported binary index version: " + version);
+            DigestAlgorithm algorithm = BINARY_VERSION == version ? DigestAlgorithm.SHA1 : readAlgorithm(data);
+            int blockSize = BINARY_BLOCKS_VERSION == version ? readVarint(data) : 0;
+            return new Entries(new BinaryIterator(data, algorithm, blockSize > 0), algorithm, blockSize);
+        }
+        PeekingIterator<String> lines = Iterators.peekingIterator(IOUtils.lineIterator(data, "UTF-8"));
+        DigestAlgorithm algorithm = DigestAlgorithm.SHA1;
+        int blockSize = 0;
+        if(lines.hasNext()) {
+            JsonEntry header = new Gson().fromJson(lines.peek(), JsonEntry.class);
+            if(null != header && null != header.digestAlgorithm) {
+                lines.next();
+                try {
+                    algorithm = DigestAlgorithm.valueOf(header.digestAlgorithm);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unsupported index digest algorithm: " + header.digestAlgorithm);
+                }
+                if(null != header.blockSize) blockSize = header.blockSize;
+            }
+        }
+        return new Entries(Iterators.transform(lines, new IndexEntryMapper(blockSize > 0)), algorithm, blockSize);
+    }
+
+    private static DigestAlgorithm readAlgorithm(DataInputStream data) throws IOException {
+        int id = data.readUnsignedByte();
+        try {
+            return DigestAlgorithm.forId(id);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static void writeJson(Iterator<? extends IndexEntry> entries, OutputStream out, DigestAlgorithm algorithm,
+                                  int blockSize) throws IOException {
+        Gson gson = new GsonBuilder().create();
+        Writer writer = new OutputStreamWriter(out, UTF8);
+        // SHA-1 indexes are left without header for older patchers
+        if(DigestAlgorithm.SHA1 != algorithm || blockSize > 0) {
+            JsonEntry header = new JsonEntry();
+            header.digestAlgorithm = algorithm.name();
+            if(blockSize > 0) header.blockSize = blockSize;
+            gson.toJson(header, JsonEntry.class, writer);
+            writer.write("\n");
+        }
+        while (entries.hasNext()) {
+            IndexEntry en = entries.next();
+            checkBlocks(en, blockSize);
+            gson.toJson(en, IndexEntry.class, writer);
+            writer.write("\n");
+        }
+        writer.flush();
+    }
+
+    private static void writeBinary(Iterator<? extends IndexEntry> entries, OutputStream out, DigestAlgorithm algorithm,
+                                    int blockSize) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(BINARY_MAGIC);
+        if(blockSize > 0) {
+            data.writeByte(BINARY_BLOCKS_VERSION);
+            data.writeByte(algorithm.id);
+            writeVarint(data, blockSize);
+        } else if(DigestAlgorithm.SHA1 == algorithm) {
+            data.writeByte(BINARY_VERSION);
+        } else {
+            data.writeByte(BINARY_ALGORITHM_VERSION);
+            data.writeByte(algorithm.id);
+        }
+        byte[] prev = new byte[0];
+        while (entries.hasNext()) {
+            IndexEntry en = entries.next();
+            // single hash sum is stored for unchanged files
+            checkArgument(UNCHANGED != en.state || en.oldSha1.equals(en.newSha1),
+                    "Different hash sums for unchanged entry: '%s'", en.path);
+            byte[] path = en.path.getBytes(UTF8);
+            int shared = sharedPrefix(prev, path);
+            data.writeByte(en.state.ordinal());
+            writeVarint(data, shared);
+            writeVarint(data, path.length - shared);
+            data.write(path, shared, path.length - shared);
+            if(hasSourcePath(en.state)) {
+                byte[] source = en.sourcePath.getBytes(UTF8);
+                writeVarint(data, source.length);
+                data.write(source);
+            }
+            if(hasOldSha1(en.state)) data.write(digest(en.oldSha1, algorithm));
+            if(UNCHANGED != en.state && DELETED != en.state) data.write(digest(en.newSha1, algorithm));
+            checkBlocks(en, blockSize);
+            if(blockSize > 0 && hasBlocks(en.state)) {
+                int count = null != en.blocks ? en.blocks.size() : 0;
+                writeVarint(data, count);
+                for (int i = 0; i < count; i++) {
+                    data.write(digest(en.blocks.get(i), algorithm));
+                }
+            }
+            prev = path;
+        }
+        data.writeByte(END_MARKER);
+        data.flush();
+    }
+
+    private static boolean hasSourcePath(IndexEntry.State state) {
+        return MOVED == state || COPIED_FROM == state || DUPLICATED == state;
+    }
+
+    private static boolean hasOldSha1(IndexEntry.State state) {
+        return CREATED != state && DUPLICATED != state;
+    }
+
+    private static boolean hasBlocks(IndexEntry.State state) {
+        return UNCHANGED == state || CREATED == state || UPDATED == state;
+    }
+
+    private static void checkBlocks(IndexEntry en, int blockSize) {
+        checkArgument(null == en.blocks || (blockSize > 0 && hasBlocks(en.state)),
+                "Unexpected block hash sums for entry: '%s'", en.path);
+    }
+
+    private static byte[] digest(String hash, DigestAlgorithm algorithm) {
+        byte[] bytes = unhex(hash);
+        checkArgument(algorithm.length == bytes.length, "Invalid %s hash sum: '%s'", algorithm.name, hash);
+        return bytes;
+    }
+
+    private static int sharedPrefix(byte[] prev, byte[] path) {
+        int len = Math.min(prev.length, path.length);
+        int i = 0;
+        while (i < len && prev[i] == path[i]) i++;
+        return i;
+    }
+
+    static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if(0 == (b & 0x80)) return value;
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    /**
+     * Index entries iterator with algorithm of their hash sums and size of hashed blocks
+     */
+    static class Entries extends ForwardingIterator<IndexEntry> {
+        private final Iterator<IndexEntry> delegate;
+        final DigestAlgorithm algorithm;
+        // 0 if entries have no block hash sums
+        final int blockSize;
+
+        /**
+         * @param delegate index entries
+         * @param algorithm algorithm of entries hash sums
+         * @param blockSize size of hashed blocks
+         */
+        Entries(Iterator<IndexEntry> delegate, DigestAlgorithm algorithm, int blockSize) {
+            this.delegate = delegate;
+            this.algorithm = algorithm;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        protected Iterator<IndexEntry> delegate() {
+            return delegate;
+        }
+    }
+
+    private static class BinaryIterator extends AbstractIterator<IndexEntry> {
+        private final DataInputStream in;
+        private final int digestLength;
+        private final boolean blocks;
+        private byte[] prev = new byte[0];
+
+        private BinaryIterator(DataInputStream in, DigestAlgorithm algorithm, boolean blocks) {
+            this.in = in;
+            this.digestLength = algorithm.length;
+            this.blocks = blocks;
+        }
+
+        @Override
+        protected IndexEntry computeNext() {
+            try {
+                int st = in.readUnsignedByte();
+                if(END_MARKER == st) return endOfData();
+                if(st >= STATES.length) throw new IOException("Invalid index entry state: " + st);
+                IndexEntry.State state = STATES[st];
+                int shared = readVarint(in);
+                int suffix = readVarint(in);
+                if(shared > prev.length) throw new IOException("Invalid index entry prefix length: " + shared);
+                byte[] pathBytes = Arrays.copyOf(prev, shared + suffix);
+                in.readFully(pathBytes, shared, suffix);
+                prev = pathBytes;
+                String path = new String(pathBytes, UTF8);
+                String sourcePath = hasSourcePath(state) ? readSourcePath() : null;
+                String oldSha1 = hasOldSha1(state) ? readDigest() : EMPTY_STRING;
+                switch (state) {
+                    case UNCHANGED: return new IndexEntry.Unchanged(path, oldSha1, oldSha1, readBlocks());
+                    case CREATED: return new IndexEntry.Created(path, oldSha1, readDigest(), readBlocks());
+                    case UPDATED: {
+                        String newSha1 = readDigest();
+                        return new IndexEntry.Updated(path, oldSha1, newSha1, readBlocks());
+                    }
+                    case DELETED: return new IndexEntry.Deleted(path, oldSha1, EMPTY_STRING);
+                    case MOVED: return new IndexEntry.Moved(path, sourcePath, oldSha1, readDigest());
+                    case COPIED_FROM: return new IndexEntry.CopiedFrom(path, sourcePath, oldSha1, readDigest());
+                    case DUPLICATED: return new IndexEntry.Duplicated(path, sourcePath, oldSha1, readDigest());
+                    default: throw new IOException("Invalid index entry state: " + state);
+                }
+            } catch (IOException e) {
+                throw new UnhandledException(e);
+            }
+        }
+
+        private String readSourcePath() throws IOException {
+            byte[] bytes = new byte[readVarint(in)];
+            in.readFully(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        private String readDigest() throws IOException {
+            byte[] bytes = new byte[digestLength];
+            in.readFully(bytes);
+            return hex(bytes);
+        }
+
+        // null for entries without blocks
+        private List<String> readBlocks() throws IOException {
+            if(!blocks) return null;
+            int count = readVarint(in);
+            if(0 == count) return null;
+            String[] res = new String[count];
+            for (int i = 0; i < count; i++) {
+                res[i] = readDigest();
+            }
+            return ImmutableList.copyOf(res);
+        }
+    }
+
+    private static class IndexEntryMapper implements Function<String, IndexEntry> {
+        private final Gson gson = new Gson();
+        private final boolean blocks;
+
+        private IndexEntryMapper(boolean blocks) {
+            this.blocks = blocks;
+        }
+
+        @Override
+        public IndexEntry apply(String input) {
+            JsonEntry en = gson.fromJson(input, JsonEntry.class);
+            List<String> bl = blocks && null != en.blocks ? ImmutableList.copyOf(en.blocks) : null;
+            if(UNCHANGED.name().equals(en.state)) return new IndexEntry.Unchanged(en.path, en.oldSha1, en.newSha1, bl);
+            if(CREATED.name().equals(en.state)) return new IndexEntry.Created(en.path, en.oldSha1, en.newSha1, bl);
+            if(UPDATED.name().equals(en.state)) return new IndexEntry.Updated(en.path, en.oldSha1, en.newSha1, bl);
+            if(DELETED.name().equals(en.state)) return new IndexEntry.Deleted(en.path, en.oldSha1, en.newSha1);
+            if(MOVED.name().equals(en.state)) return new IndexEntry.Moved(en.path, en.sourcePath, en.oldSha1, en.newSha1);
+            if(COPIED_FROM.name().equals(en.state)) return new IndexEntry.CopiedFrom(en.path, en.sourcePath, en.oldSha1, en.newSha1);
+            if(DUPLICATED.name().equals(en.state)) return new IndexEntry.Duplicated(en.path, en.sourcePath, en.oldSha1, en.newSha1);
+            throw new IllegalStateException("Cannot parse index entry from line: " + input);
+        }
+    }
+
+    // parsed line, fields are set by Gson
+    private static class JsonEntry {
+        private String path;
+        private String state;
+        private String oldSha1;
+        private String newSha1;
+        private String sourcePath;
+        private String[] blocks;
+        // set only in header line
+        private String digestAlgorithm;
+        private Integer blockSize;
+    }
+}
@@ -2,6 +2,8 @@ package com.alexkasko.delta;
 
 import org.apache.commons.lang.builder.ToStringBuilder;
 
+import java.util.List;
+
 import static org.apache.commons.lang.builder.ToStringStyle.SHORT_PREFIX_STYLE;
 
 /**
@@ -9,17 +11,31 @@ import static org.apache.commons.lang.builder.ToStringStyle.SHORT_PREFIX_STYLE;
  * Date: 11/18/11
  */
 abstract class IndexEntry {
-    enum State {UNCHANGED, CREATED, UPDATED, DELETED}
+    enum State {UNCHANGED, CREATED, UPDATED, DELETED, MOVED, COPIED_FROM, DUPLICATED}
     final String path;
     final State state;
     final String oldSha1;
     final String newSha1;
+    // file the new one is built from, only for 'moved', 'copied from' and 'duplicated' entries
+    final String sourcePath;
+    // hash sums of fixed-size blocks of new file, only for large 'unchanged', 'created' and 'updated' files
+    final List<String> blocks;
 
     protected IndexEntry(String path, State state, String oldSha1, String newSha1) {
+        this(path, state, oldSha1, newSha1, null, null);
+    }
+
+    protected IndexEntry(String path, State state, String oldSha1, String newSha1, String sourcePath) {
+        this(path, state, oldSha1, newSha1, sourcePath, null);
+    }
+
+    protected IndexEntry(String path, State state, String oldSha1, String newSha1, String sourcePath, List<String> blocks) {
         this.path = path;
         this.state = state;
         this.oldSha1 = oldSha1;
         this.newSha1 = newSha1;
+        this.sourcePath = sourcePath;
+        this.blocks = blocks;
     }
 
     // children for type safety, easy filtering etc
@@ -28,6 +44,10 @@ abstract class IndexEntry {
         public Created(String path, String oldSha1, String newSha1) {
             super(path, State.CREATED, oldSha1, newSha1);
         }
+
+        public Created(String path, String oldSha1, String newSha1, List<String> blocks) {
+            super(path, State.CREATED, oldSha1, newSha1, null, blocks);
+        }
     }
 
     static class Deleted extends IndexEntry {
@@ -40,12 +60,41 @@ abstract class IndexEntry {
         public Updated(String path,String oldSha1, String newSha1) {
             super(path, State.UPDATED, oldSha1, newSha1);
         }
+
+        public Updated(String path, String oldSha1, String newSha1, List<String> blocks) {
+            super(path, State.UPDATED, oldSha1, newSha1, null, blocks);
+        }
     }
 
     static class Unchanged extends IndexEntry {
         public Unchanged(String path, String oldSha1, String newSha1) {
             super(path, State.UNCHANGED, oldSha1, newSha1);
         }
+
+        public Unchanged(String path, String oldSha1, String newSha1, List<String> blocks) {
+            super(path, State.UNCHANGED, oldSha1, newSha1, null, blocks);
+        }
+    }
+
+    // old file is removed, new file is renamed or patched from it
+    static class Moved extends IndexEntry {
+        public Moved(String path, String sourcePath, String oldSha1, String newSha1) {
+            super(path, State.MOVED, oldSha1, newSha1, sourcePath);
+        }
+    }
+
+    // old file is kept, new file is copied or patched from it
+    static class CopiedFrom extends IndexEntry {
+        public CopiedFrom(String path, String sourcePath, String oldSha1, String newSha1) {
+            super(path, State.COPIED_FROM, oldSha1, newSha1, sourcePath);
+        }
+    }
+
+    // new file is copied or linked from created file with the same content
+    static class Duplicated extends IndexEntry {
+        public Duplicated(String path, String sourcePath, String oldSha1, String newSha1) {
+            super(path, State.DUPLICATED, oldSha1, newSha1, sourcePath);
+        }
     }
 
     @Override
@@ -0,0 +1,18 @@
+package com.alexkasko.delta;
+
+/**
+ * Formats of '.index' file in patch, patcher detects format automatically
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+public enum IndexFormat {
+    /**
+     * One JSON object per line, readable by all patcher versions
+     */
+    JSON,
+    /**
+     * Compact versioned binary format with raw hash sums and prefix-compressed paths
+     */
+    BINARY
+}
@@ -0,0 +1,95 @@
+package com.alexkasko.delta;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.UnhandledException;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Temporary file with index entries in binary format, allows to pass over large index multiple times
+ * without keeping it in memory. Each {@link #iterator()} call reads file from the beginning.
+ * Streams opened by iterators are closed on {@link #close()} together with file deletion.
+ * Instances are not thread-safe.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class IndexSpill implements Iterable<IndexEntry>, Closeable {
+    private final File file;
+    private final List<InputStream> opened = new ArrayList<InputStream>();
+
+    private IndexSpill(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Creates spill backed by new temporary file
+     *
+     * @return empty spill
+     * @throws IOException on io error
+     */
+    static IndexSpill create() throws IOException {
+        return new IndexSpill(File.createTempFile("delta-index", ".tmp"));
+    }
+
+    /**
+     * Writes entries into spill file replacing its previous contents
+     *
+     * @param entries index entries
+     * @param algorithm algorithm of entries hash sums
+     * @param blockSize size of hashed blocks, {@code 0} if entries have no block hash sums
+     * @throws IOException on io error
+     */
+    void write(Iterator<? extends IndexEntry> entries, DigestAlgorithm algorithm, int blockSize) throws IOException {
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            IndexCodec.write(entries, out, IndexFormat.BINARY, algorithm, blockSize);
+            out.close();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Copies serialized index of any format into spill file replacing its previous contents
+     *
+     * @param index serialized index, will be closed
+     * @throws IOException on io error
+     */
+    void copy(InputStream index) throws IOException {
+        FileUtils.copyInputStreamToFile(index, file);
+    }
+
+    /**
+     * Lazily reads entries from spill file
+     *
+     * @return entries iterator with hash sums algorithm
+     */
+    @Override
+    public IndexCodec.Entries iterator() {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            opened.add(in);
+            return IndexCodec.read(in);
+        } catch (IOException e) {
+            throw new UnhandledException(e);
+        }
+    }
+
+    /**
+     * Closes opened streams and deletes spill file
+     */
+    @Override
+    public void close() {
+        for (InputStream in : opened) {
+            IOUtils.closeQuietly(in);
+        }
+        opened.clear();
+        FileUtils.deleteQuietly(file);
+    }
+}
@@ -0,0 +1,38 @@
+package com.alexkasko.delta;
+
+import com.nothome.delta.Delta;
+import com.nothome.delta.GDiffPatcher;
+import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.SeekableSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Default delta engine backed by javaxdelta library, its checksum table covers the whole
+ * old version of file, so memory usage grows with file size
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+public class JavaxDeltaEngine implements DeltaEngine {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void compute(File source, File target, OutputStream delta) throws IOException {
+        GDiffWriter writer = new GDiffWriter(new NoCloseOutputStream(delta));
+        new Delta().compute(source, target, writer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void apply(SeekableSource source, InputStream delta, OutputStream target) throws IOException {
+        new GDiffPatcher().patch(source, delta, target);
+    }
+}
@@ -0,0 +1,165 @@
+package com.alexkasko.delta;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.alexkasko.delta.Lz4ContainerOutputStream.*;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Reads LZ4 patch container written by {@link Lz4ContainerOutputStream}, entries are read
+ * sequentially in {@link java.util.zip.ZipInputStream} manner, block checksums are verified on reading.
+ * Stream is not thread-safe.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class Lz4ContainerInputStream extends InputStream {
+    private final DataInputStream in;
+    private final LZ4SafeDecompressor decompressor = LZ4Factory.fastestJavaInstance().safeDecompressor();
+    private final XXHash32 checksum = XXHashFactory.fastestJavaInstance().hash32();
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private final byte[] compressed = new byte[LZ4Factory.fastestJavaInstance().fastCompressor().maxCompressedLength(BLOCK_SIZE)];
+    private int pos = 0;
+    private int len = 0;
+    private boolean inEntry = false;
+    private boolean entryEnded = false;
+
+    /**
+     * Constructor, reads and checks container header
+     *
+     * @param in input stream, should be buffered
+     * @throws IOException on io error or invalid header
+     */
+    Lz4ContainerInputStream(InputStream in) throws IOException {
+        checkArgument(null != in, "Provided input stream is null");
+        this.in = new DataInputStream(in);
+        int magic = this.in.readInt();
+        if(MAGIC != magic) throw new IOException("Invalid LZ4 container magic: " + Integer.toHexString(magic));
+        int version = this.in.readUnsignedByte();
+        if(VERSION != version) throw new IOException("Unsupported LZ4 container version: " + version);
+    }
+
+    /**
+     * Checks whether provided stream starts with LZ4 container header, stream position is not changed
+     *
+     * @param in input stream supporting mark
+     * @return true if stream contains LZ4 container
+     * @throws IOException on io error
+     */
+    static boolean isContainer(InputStream in) throws IOException {
+        checkArgument(in.markSupported(), "Provided stream doesn't support mark");
+        in.mark(4);
+        byte[] head = new byte[4];
+        int read = 0;
+        try {
+            while (read < head.length) {
+                int res = in.read(head, read, head.length - read);
+                if(res < 0) break;
+                read += res;
+            }
+        } finally {
+            in.reset();
+        }
+        return head.length == read && MAGIC == new DataInputStream(new ByteArrayInputStream(head)).readInt();
+    }
+
+    /**
+     * Skips the rest of current entry and moves to the next one
+     *
+     * @return next entry name or null if container has no more entries
+     * @throws IOException on io error
+     */
+    String getNextEntry() throws IOException {
+        if(inEntry) closeEntry();
+        int marker = in.readUnsignedByte();
+        if(END == marker) return null;
+        if(ENTRY != marker) throw new IOException("Invalid LZ4 container entry marker: " + marker);
+        int nameLength = in.readInt();
+        if(nameLength <= 0) throw new IOException("Invalid LZ4 container entry name length: " + nameLength);
+        byte[] name = new byte[nameLength];
+        in.readFully(name);
+        pos = 0;
+        len = 0;
+        inEntry = true;
+        entryEnded = false;
+        return new String(name, UTF8);
+    }
+
+    /**
+     * Skips the rest of current entry
+     *
+     * @throws IOException on io error
+     */
+    void closeEntry() throws IOException {
+        while (fill()) {
+            pos = len;
+        }
+        inEntry = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill()) return -1;
+        return buffer[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int length) throws IOException {
+        if(0 == length) return 0;
+        if(!fill()) return -1;
+        int res = Math.min(length, len - pos);
+        System.arraycopy(buffer, pos, b, off, res);
+        pos += res;
+        return res;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return len - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean fill() throws IOException {
+        if(pos < len) return true;
+        if(!inEntry || entryEnded) return false;
+        int type = in.readUnsignedByte();
+        if(END == type) {
+            entryEnded = true;
+            return false;
+        }
+        int rawLength = in.readInt();
+        int dataLength = in.readInt();
+        int hash = in.readInt();
+        if(rawLength <= 0 || rawLength > BLOCK_SIZE) throw new IOException("Invalid LZ4 block length: " + rawLength);
+        if(LZ4_BLOCK == type) {
+            if(dataLength <= 0 || dataLength > compressed.length) throw new IOException("Invalid LZ4 block data length: " + dataLength);
+            in.readFully(compressed, 0, dataLength);
+            try {
+                int decompressed = decompressor.decompress(compressed, 0, dataLength, buffer, 0, rawLength);
+                if(decompressed != rawLength) throw new IOException("Invalid LZ4 block decompressed length: " + decompressed);
+            } catch (LZ4Exception e) {
+                throw new IOException("Corrupted LZ4 block", e);
+            }
+        } else if(RAW_BLOCK == type) {
+            if(dataLength != rawLength) throw new IOException("Invalid raw block data length: " + dataLength);
+            in.readFully(buffer, 0, rawLength);
+        } else throw new IOException("Invalid LZ4 container block type: " + type);
+        if(hash != checksum.hash(buffer, 0, rawLength, CHECKSUM_SEED)) throw new IOException("LZ4 block checksum mismatch");
+        pos = 0;
+        len = rawLength;
+        return true;
+    }
+}
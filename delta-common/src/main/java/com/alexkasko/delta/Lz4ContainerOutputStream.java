@@ -0,0 +1,215 @@
+package com.alexkasko.delta;
+
+import com.google.common.io.ByteStreams;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes LZ4 patch container, alternative to ZIP with much faster decompression.
+ * Container format: {@code int magic, byte version, entries, byte 0},
+ * entry is {@code byte 1, int name length, byte[] UTF-8 name, blocks, byte 0},
+ * block is {@code byte type (1 - LZ4, 2 - raw), int raw length, int data length,
+ * int XXHash32 of raw data, byte[] data}. Blocks are up to 256KB,
+ * blocks that don't shrink after compression are written raw.
+ * Stream is not thread-safe.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class Lz4ContainerOutputStream extends OutputStream {
+    // "DLZ4", ZIP files always start with "PK"
+    static final int MAGIC = 0x444C5A34;
+    static final int VERSION = 1;
+    static final int BLOCK_SIZE = 256 * 1024;
+    static final int END = 0;
+    static final int ENTRY = 1;
+    static final int LZ4_BLOCK = 1;
+    static final int RAW_BLOCK = 2;
+    static final int CHECKSUM_SEED = 0x9747b28c;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DataOutputStream out;
+    private final BlockEncoder encoder;
+    private boolean inEntry = false;
+    private boolean finished = false;
+
+    /**
+     * Constructor, writes container header
+     *
+     * @param out output stream, should be buffered
+     * @throws IOException on io error
+     */
+    Lz4ContainerOutputStream(OutputStream out) throws IOException {
+        checkArgument(null != out, "Provided output stream is null");
+        this.out = new DataOutputStream(out);
+        this.encoder = new BlockEncoder(this.out, true);
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+
+    /**
+     * Returns stream that encodes data into blocks of container entry, entries may be encoded
+     * in parallel and copied into container with {@link #putEncodedEntry(String, java.io.InputStream)}.
+     * Pending block is written and underlying stream is closed on close
+     *
+     * @param out output stream for encoded blocks, should be buffered
+     * @param compress whether blocks should be LZ4 compressed
+     * @return block encoder stream
+     */
+    static OutputStream blockEncoder(OutputStream out, boolean compress) {
+        checkArgument(null != out, "Provided output stream is null");
+        return new BlockEncoder(new DataOutputStream(out), compress);
+    }
+
+    /**
+     * Writes entry with blocks encoded by {@link #blockEncoder(java.io.OutputStream, boolean)},
+     * closes current entry if any
+     *
+     * @param name entry name
+     * @param blocks encoded blocks stream, won't be closed
+     * @throws IOException on io error
+     */
+    void putEncodedEntry(String name, InputStream blocks) throws IOException {
+        putNextEntry(name, true);
+        ByteStreams.copy(blocks, out);
+        closeEntry();
+    }
+
+    /**
+     * Starts new entry closing current one if any
+     *
+     * @param name entry name
+     * @param compress whether entry blocks should be LZ4 compressed
+     * @throws IOException on io error
+     */
+    void putNextEntry(String name, boolean compress) throws IOException {
+        checkArgument(null != name && name.length() > 0, "Provided name is blank");
+        checkState(!finished, "Container is already finished");
+        if(inEntry) closeEntry();
+        byte[] bytes = name.getBytes(UTF8);
+        out.writeByte(ENTRY);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        encoder.compress = compress;
+        this.inEntry = true;
+    }
+
+    /**
+     * Flushes pending block and closes current entry
+     *
+     * @throws IOException on io error
+     */
+    void closeEntry() throws IOException {
+        checkState(inEntry, "No current entry");
+        encoder.writeBlock();
+        out.writeByte(END);
+        inEntry = false;
+    }
+
+    /**
+     * Finishes container without closing underlying stream
+     *
+     * @throws IOException on io error
+     */
+    void finish() throws IOException {
+        if(finished) return;
+        if(inEntry) closeEntry();
+        out.writeByte(END);
+        out.flush();
+        finished = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkState(inEntry, "No current entry");
+        encoder.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkState(inEntry, "No current entry");
+        encoder.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class BlockEncoder extends OutputStream {
+        private final DataOutputStream out;
+        private final LZ4Compressor compressor = LZ4Factory.fastestJavaInstance().fastCompressor();
+        private final XXHash32 checksum = XXHashFactory.fastestJavaInstance().hash32();
+        private final byte[] buffer = new byte[BLOCK_SIZE];
+        private final byte[] compressed = new byte[compressor.maxCompressedLength(BLOCK_SIZE)];
+        private int pos = 0;
+        private boolean compress;
+
+        private BlockEncoder(DataOutputStream out, boolean compress) {
+            this.out = out;
+            this.compress = compress;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[pos++] = (byte) b;
+            if(BLOCK_SIZE == pos) writeBlock();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, BLOCK_SIZE - pos);
+                System.arraycopy(b, off, buffer, pos, chunk);
+                pos += chunk;
+                off += chunk;
+                len -= chunk;
+                if(BLOCK_SIZE == pos) writeBlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writeBlock();
+                out.flush();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if(0 == pos) return;
+            int hash = checksum.hash(buffer, 0, pos, CHECKSUM_SEED);
+            int len = compress ? compressor.compress(buffer, 0, pos, compressed, 0, compressed.length) : pos;
+            boolean raw = len >= pos;
+            out.writeByte(raw ? RAW_BLOCK : LZ4_BLOCK);
+            out.writeInt(pos);
+            out.writeInt(raw ? pos : len);
+            out.writeInt(hash);
+            if(raw) out.write(buffer, 0, pos);
+            else out.write(compressed, 0, len);
+            pos = 0;
+        }
+    }
+}
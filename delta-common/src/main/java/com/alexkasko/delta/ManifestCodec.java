@@ -0,0 +1,119 @@
+package com.alexkasko.delta;
+
+import com.google.common.collect.AbstractIterator;
+import org.apache.commons.lang.UnhandledException;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import static com.alexkasko.delta.HashUtils.hex;
+import static com.alexkasko.delta.HashUtils.unhex;
+import static com.alexkasko.delta.IndexCodec.readVarint;
+import static com.alexkasko.delta.IndexCodec.writeVarint;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Writes and reads manifest of old version of directory.
+ * Manifest format: {@code int magic, byte version, entries, byte 0},
+ * entry is {@code byte 1, varint path length, byte[] UTF-8 path, long size, byte[20] SHA-1,
+ * int block size, int blocks count, blocks}, block is {@code int weak hash, long strong hash}.
+ * Block size and blocks count are zero for entries without signatures. Entries are sorted by path
+ * in the same order as {@link SortedFileIterator} returns them.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class ManifestCodec {
+    // "DMAN"
+    private static final int MAGIC = 0x444D414E;
+    private static final int VERSION = 1;
+    private static final int END = 0;
+    private static final int ENTRY = 1;
+    private static final int SHA1_LENGTH = 20;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes manifest entries into provided stream, stream is flushed but not closed
+     *
+     * @param entries manifest entries
+     * @param out output stream
+     * @throws IOException on io error
+     */
+    static void write(Iterator<ManifestEntry> entries, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        while (entries.hasNext()) {
+            ManifestEntry en = entries.next();
+            data.writeByte(ENTRY);
+            byte[] path = en.path.getBytes(UTF8);
+            writeVarint(data, path.length);
+            data.write(path);
+            data.writeLong(en.size);
+            data.write(unhex(en.sha1));
+            data.writeInt(en.blockSize);
+            data.writeInt(en.blocks());
+            for (int i = 0; i < en.blocks(); i++) {
+                data.writeInt(en.weak[i]);
+                data.writeLong(en.strong[i]);
+            }
+        }
+        data.writeByte(END);
+        data.flush();
+    }
+
+    /**
+     * Lazily reads manifest entries from provided stream
+     *
+     * @param in input stream
+     * @return manifest entries iterator
+     * @throws IOException on io error or invalid header
+     */
+    static Iterator<ManifestEntry> read(InputStream in) throws IOException {
+        checkArgument(null != in, "Provided input stream is null");
+        DataInputStream data = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+        int magic = data.readInt();
+        if(MAGIC != magic) throw new IOException("Invalid manifest magic: " + Integer.toHexString(magic));
+        int version = data.readUnsignedByte();
+        if(VERSION != version) throw new IOException("Unsupported manifest version: " + version);
+        return new EntryIterator(data);
+    }
+
+    private static class EntryIterator extends AbstractIterator<ManifestEntry> {
+        private final DataInputStream in;
+
+        private EntryIterator(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        protected ManifestEntry computeNext() {
+            try {
+                int marker = in.readUnsignedByte();
+                if(END == marker) return endOfData();
+                if(ENTRY != marker) throw new IOException("Invalid manifest entry marker: " + marker);
+                byte[] path = new byte[readVarint(in)];
+                in.readFully(path);
+                long size = in.readLong();
+                byte[] sha1 = new byte[SHA1_LENGTH];
+                in.readFully(sha1);
+                int blockSize = in.readInt();
+                int blocks = in.readInt();
+                if(blockSize < 0 || blocks < 0 || (0 == blockSize && blocks > 0) ||
+                        (blockSize > 0 && (long) blocks * blockSize > size)) {
+                    throw new IOException("Invalid manifest entry signatures, block size: " + blockSize + ", blocks: " + blocks);
+                }
+                int[] weak = new int[blocks];
+                long[] strong = new long[blocks];
+                for (int i = 0; i < blocks; i++) {
+                    weak[i] = in.readInt();
+                    strong[i] = in.readLong();
+                }
+                return new ManifestEntry(new String(path, UTF8), size, hex(sha1), blockSize, weak, strong);
+            } catch (IOException e) {
+                throw new UnhandledException(e);
+            }
+        }
+    }
+}
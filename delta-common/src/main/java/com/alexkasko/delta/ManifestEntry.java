@@ -0,0 +1,129 @@
+package com.alexkasko.delta;
+
+import com.google.common.io.ByteStreams;
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.UnhandledException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static com.alexkasko.delta.HashUtils.computeSha1;
+import static com.alexkasko.delta.HashUtils.hex;
+
+/**
+ * Old version of file described in manifest: path, size, SHA-1 hash sum and optional signatures
+ * of fixed-size blocks (rsync-like). Block signature is a weak rolling hash and a strong XXHash64,
+ * block size is about square root of file size, last incomplete block has no signature.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class ManifestEntry {
+    static final int MIN_BLOCK_SIZE = 1024;
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final long STRONG_SEED = 0x44454c5441L;
+    private static final XXHash64 STRONG = XXHashFactory.fastestJavaInstance().hash64();
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    final String path;
+    final long size;
+    final String sha1;
+    // zero if file has no signatures
+    final int blockSize;
+    final int[] weak;
+    final long[] strong;
+
+    /**
+     * @param path relative path
+     * @param size file size
+     * @param sha1 SHA-1 hash sum in hex
+     * @param blockSize signature block size, {@code 0} if signatures are absent
+     * @param weak weak hashes of full blocks
+     * @param strong strong hashes of full blocks
+     */
+    ManifestEntry(String path, long size, String sha1, int blockSize, int[] weak, long[] strong) {
+        this.path = path;
+        this.size = size;
+        this.sha1 = sha1;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Reads file and computes its manifest entry, hash sum and signatures are computed in a single pass
+     *
+     * @param file file to describe
+     * @param path relative path of file
+     * @param signatures whether block signatures should be computed
+     * @return manifest entry
+     */
+    static ManifestEntry compute(File file, String path, boolean signatures) {
+        long size = file.length();
+        if(!signatures) return new ManifestEntry(path, size, computeSha1(file), 0, new int[0], new long[0]);
+        int bs = blockSize(size);
+        int blocks = (int) (size / bs);
+        int[] weak = new int[blocks];
+        long[] strong = new long[blocks];
+        InputStream in = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            byte[] block = new byte[bs];
+            for (int i = 0; i < blocks; i++) {
+                ByteStreams.readFully(in, block);
+                md.update(block);
+                weak[i] = RollingHash.hash(block, 0, bs);
+                strong[i] = strongHash(block, 0, bs);
+            }
+            // incomplete last block
+            for (int len = in.read(block); len >= 0; len = in.read(block)) {
+                md.update(block, 0, len);
+            }
+            return new ManifestEntry(path, size, hex(md.digest()), bs, weak, strong);
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnhandledException(e);
+        } catch (IOException e) {
+            throw new UnhandledException(e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Chooses signature block size for file, about square root of its size
+     *
+     * @param size file size
+     * @return block size
+     */
+    static int blockSize(long size) {
+        long bs = ((long) Math.sqrt(size)) & ~7L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, bs));
+    }
+
+    /**
+     * Computes strong hash of block
+     *
+     * @param buf data
+     * @param off block offset
+     * @param len block length
+     * @return block strong hash
+     */
+    static long strongHash(byte[] buf, int off, int len) {
+        return STRONG.hash(buf, off, len, STRONG_SEED);
+    }
+
+    /**
+     * @return number of blocks with signatures
+     */
+    int blocks() {
+        return weak.length;
+    }
+}
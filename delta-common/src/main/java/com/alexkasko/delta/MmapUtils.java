@@ -0,0 +1,73 @@
+package com.alexkasko.delta;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Helpers for memory mapped buffers. JDK doesn't provide a way to unmap buffer explicitly,
+ * mapping is held until buffer is garbage collected and mapped file cannot be deleted
+ * on windows until that. Buffers are unmapped here using JDK internals with fallback to GC,
+ * internals are looked up once on class loading.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class MmapUtils {
+    // jdk 9+: Unsafe.invokeCleaner(ByteBuffer)
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    // jdk 6-8: DirectByteBuffer.cleaner().clean()
+    private static final Method CLEANER;
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+            try {
+                cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+                cleaner.setAccessible(true);
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                clean.setAccessible(true);
+            } catch (Exception e1) {
+                // leave it to GC
+                cleaner = null;
+                clean = null;
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    /**
+     * Unmaps buffer if JDK allows it, buffer must not be used after this call
+     *
+     * @param buffer mapped buffer
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if(null == buffer) return;
+        try {
+            if(null != INVOKE_CLEANER) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else if(null != CLEANER) {
+                Object cleaner = CLEANER.invoke(buffer);
+                if(null != cleaner) CLEAN.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // leave it to GC
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.alexkasko.delta;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+/**
+ * Streaming x64 128-bit MurmurHash3 with zero seed as message digest. Input is processed
+ * in 16-byte blocks, byte buffers are read with long loads. Hash is written as two little-endian
+ * longs, the same as by Guava's {@code Hashing.murmur3_128()}. Instances are not thread-safe.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class Murmur3Digest extends MessageDigest implements Cloneable {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final int BLOCK = 16;
+
+    private long h1;
+    private long h2;
+    private long length;
+    // pending bytes of incomplete block
+    private byte[] tail = new byte[BLOCK];
+    private int tailLength;
+
+    Murmur3Digest() {
+        super(DigestAlgorithm.MURMUR3_128.name);
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return BLOCK;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        tail[tailLength++] = input;
+        length += 1;
+        if(BLOCK == tailLength) {
+            ByteBuffer bb = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+            mix(bb.getLong(), bb.getLong());
+            tailLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        engineUpdate(ByteBuffer.wrap(input, offset, len));
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        ByteBuffer bb = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        length += bb.remaining();
+        if(tailLength > 0) {
+            int len = Math.min(BLOCK - tailLength, bb.remaining());
+            bb.get(tail, tailLength, len);
+            tailLength += len;
+            if(tailLength < BLOCK) {
+                input.position(input.limit());
+                return;
+            }
+            ByteBuffer tb = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+            mix(tb.getLong(), tb.getLong());
+            tailLength = 0;
+        }
+        while (bb.remaining() >= BLOCK) {
+            mix(bb.getLong(), bb.getLong());
+        }
+        tailLength = bb.remaining();
+        bb.get(tail, 0, tailLength);
+        input.position(input.limit());
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = tailLength - 1; i >= 8; i--) {
+            k2 = (k2 << 8) | (tail[i] & 0xffL);
+        }
+        for (int i = Math.min(tailLength, 8) - 1; i >= 0; i--) {
+            k1 = (k1 << 8) | (tail[i] & 0xffL);
+        }
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        byte[] res = ByteBuffer.allocate(BLOCK).order(ByteOrder.LITTLE_ENDIAN).putLong(h1).putLong(h2).array();
+        engineReset();
+        return res;
+    }
+
+    @Override
+    protected void engineReset() {
+        h1 = 0;
+        h2 = 0;
+        length = 0;
+        tailLength = 0;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        Murmur3Digest res = (Murmur3Digest) super.clone();
+        res.tail = tail.clone();
+        return res;
+    }
+
+    private void mix(long k1, long k2) {
+        h1 ^= mixK1(k1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+        h2 ^= mixK2(k2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
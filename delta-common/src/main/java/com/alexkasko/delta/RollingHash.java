@@ -0,0 +1,55 @@
+package com.alexkasko.delta;
+
+/**
+ * Polynomial rolling hash over fixed-size window, shared by delta engine and manifest signatures.
+ * Hash of window may be updated in constant time when window moves by one byte.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class RollingHash {
+    private static final int MULTIPLIER = 0x01000193;
+
+    /**
+     * Computes hash of specified window
+     *
+     * @param buf data
+     * @param off window offset
+     * @param len window length
+     * @return window hash
+     */
+    static int hash(byte[] buf, int off, int len) {
+        int h = 0;
+        for (int i = off; i < off + len; i++) {
+            h = h * MULTIPLIER + (buf[i] & 0xff);
+        }
+        return h;
+    }
+
+    /**
+     * Computes multiplier of the outgoing byte for windows of specified length
+     *
+     * @param len window length
+     * @return power to be used in {@link #roll(int, byte, byte, int)}
+     */
+    static int power(int len) {
+        int pow = 1;
+        for (int i = 1; i < len; i++) {
+            pow *= MULTIPLIER;
+        }
+        return pow;
+    }
+
+    /**
+     * Moves window by one byte
+     *
+     * @param hash current window hash
+     * @param out first byte of current window
+     * @param in byte following current window
+     * @param power power for window length
+     * @return hash of moved window
+     */
+    static int roll(int hash, byte out, byte in, int power) {
+        return (hash - (out & 0xff) * power) * MULTIPLIER + (in & 0xff);
+    }
+}
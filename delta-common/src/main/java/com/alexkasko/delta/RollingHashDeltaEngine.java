@@ -0,0 +1,268 @@
+package com.alexkasko.delta;
+
+import com.google.common.primitives.Ints;
+import com.nothome.delta.GDiffPatcher;
+import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.SeekableSource;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.Arrays;
+
+import static com.alexkasko.delta.RollingHash.hash;
+import static com.alexkasko.delta.RollingHash.power;
+import static com.alexkasko.delta.RollingHash.roll;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Delta engine with bounded memory usage. Old version of file is split into fixed-size blocks,
+ * block hashes are kept in primitive arrays (16 bytes per block). Block size grows for big files,
+ * so the number of indexed blocks never exceeds specified limit. New version of file is streamed
+ * through fixed-size window with rolling hash, matches are verified against old file and extended
+ * forward. Deltas are written in GDIFF format and may be applied by any patcher.
+ * Engine is thread-safe (immutable), {@code withXxx} methods return new instances.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+public class RollingHashDeltaEngine implements DeltaEngine {
+    private static final int DEFAULT_BLOCK_SIZE = 32;
+    private static final int DEFAULT_MAX_BLOCKS = 1 << 20;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int SOURCE_CACHE_SIZE = 64 * 1024;
+    // verified candidates per window position, bounds time on highly repetitive files
+    private static final int MAX_PROBES = 8;
+    private static final int MIX = 0x9E3779B9;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int maxBlocks = DEFAULT_MAX_BLOCKS;
+
+    /**
+     * Returns engine with specified minimal block size, this instance is not changed
+     *
+     * @param blockSize minimal block size in bytes, {@code 32} by default
+     * @return engine with specified block size
+     */
+    public RollingHashDeltaEngine withBlockSize(int blockSize) {
+        checkArgument(blockSize >= 4, "Block size must be not less than 4, but was: %s", blockSize);
+        RollingHashDeltaEngine res = copy();
+        res.blockSize = blockSize;
+        return res;
+    }
+
+    /**
+     * Returns engine that indexes not more than specified number of blocks of old file,
+     * this instance is not changed
+     *
+     * @param maxBlocks max number of indexed blocks, {@code 1048576} (16MB of index) by default
+     * @return engine with specified blocks limit
+     */
+    public RollingHashDeltaEngine withMaxBlocks(int maxBlocks) {
+        checkArgument(maxBlocks > 0, "Max blocks must be positive, but was: %s", maxBlocks);
+        RollingHashDeltaEngine res = copy();
+        res.maxBlocks = maxBlocks;
+        return res;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void compute(File source, File target, OutputStream delta) throws IOException {
+        long sourceSize = source.length();
+        int bs = Ints.checkedCast(Math.max(blockSize, (sourceSize + maxBlocks - 1) / maxBlocks));
+        BlockIndex index = BlockIndex.build(source, bs, Ints.checkedCast(sourceSize / bs));
+        SourceReader reader = null;
+        InputStream in = null;
+        try {
+            reader = new SourceReader(source);
+            in = new FileInputStream(target);
+            GDiffWriter writer = new GDiffWriter(new NoCloseOutputStream(delta));
+            computeDelta(index, reader, in, writer);
+            writer.close();
+        } finally {
+            IOUtils.closeQuietly(reader);
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void apply(SeekableSource source, InputStream delta, OutputStream target) throws IOException {
+        new GDiffPatcher().patch(source, delta, target);
+    }
+
+    private static void computeDelta(BlockIndex index, SourceReader reader, InputStream in, GDiffWriter writer) throws IOException {
+        int bs = index.blockSize;
+        byte[] buf = new byte[Math.max(BUFFER_SIZE, bs * 4)];
+        int len = fill(in, buf, 0);
+        int pos = 0;
+        int hash = 0;
+        boolean hashed = false;
+        for (;;) {
+            if(len - pos < bs) {
+                System.arraycopy(buf, pos, buf, 0, len - pos);
+                len -= pos;
+                pos = 0;
+                len += fill(in, buf, len);
+                if(len < bs) break;
+                hashed = false;
+            }
+            if(!hashed) {
+                hash = hash(buf, pos, bs);
+                hashed = true;
+            }
+            int block = index.find(hash, buf, pos, reader);
+            if(block >= 0) {
+                long offset = (long) block * bs;
+                long length = bs;
+                pos += bs;
+                // extend match forward
+                while (offset + length < reader.size) {
+                    if(pos == len) {
+                        len = fill(in, buf, 0);
+                        pos = 0;
+                        if(0 == len) break;
+                    }
+                    if(buf[pos] != reader.get(offset + length)) break;
+                    pos += 1;
+                    length += 1;
+                }
+                writeCopy(writer, offset, length);
+                hashed = false;
+            } else {
+                writer.addData(buf[pos]);
+                if(pos + bs < len) {
+                    hash = roll(hash, buf[pos], buf[pos + bs], index.power);
+                } else hashed = false;
+                pos += 1;
+            }
+        }
+        for (int i = pos; i < len; i++) {
+            writer.addData(buf[i]);
+        }
+    }
+
+    private static void writeCopy(GDiffWriter writer, long offset, long length) throws IOException {
+        while (length > 0) {
+            int chunk = (int) Math.min(length, Integer.MAX_VALUE);
+            writer.addCopy(offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private static int fill(InputStream in, byte[] buf, int off) throws IOException {
+        int read = 0;
+        while (off + read < buf.length) {
+            int res = in.read(buf, off + read, buf.length - off - read);
+            if(res < 0) break;
+            read += res;
+        }
+        return read;
+    }
+
+    private RollingHashDeltaEngine copy() {
+        RollingHashDeltaEngine res = new RollingHashDeltaEngine();
+        res.blockSize = blockSize;
+        res.maxBlocks = maxBlocks;
+        return res;
+    }
+
+    // chained hash table over primitive arrays, blocks are numbered by their offsets
+    private static class BlockIndex {
+        private final int blockSize;
+        private final int power;
+        private final int shift;
+        private final int[] heads;
+        private final int[] next;
+        private final int[] hashes;
+
+        private BlockIndex(int blockSize, int blocks) {
+            this.blockSize = blockSize;
+            this.power = power(blockSize);
+            int tableSize = Integer.highestOneBit(Math.max(blocks, 8)) * 2;
+            this.shift = 32 - Integer.numberOfTrailingZeros(tableSize);
+            this.heads = new int[tableSize];
+            Arrays.fill(heads, -1);
+            this.next = new int[blocks];
+            this.hashes = new int[blocks];
+        }
+
+        static BlockIndex build(File source, int blockSize, int blocks) throws IOException {
+            BlockIndex index = new BlockIndex(blockSize, blocks);
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(source), SOURCE_CACHE_SIZE));
+                byte[] block = new byte[blockSize];
+                for (int i = 0; i < blocks; i++) {
+                    in.readFully(block);
+                    int hash = hash(block, 0, blockSize);
+                    int slot = index.slot(hash);
+                    index.hashes[i] = hash;
+                    index.next[i] = index.heads[slot];
+                    index.heads[slot] = i;
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            return index;
+        }
+
+        int find(int hash, byte[] buf, int off, SourceReader reader) throws IOException {
+            int probes = 0;
+            for (int i = heads[slot(hash)]; i >= 0 && probes < MAX_PROBES; i = next[i]) {
+                if(hashes[i] != hash) continue;
+                probes += 1;
+                if(reader.matches((long) i * blockSize, buf, off, blockSize)) return i;
+            }
+            return -1;
+        }
+
+        // low bits of polynomial hash are weak, high bits of mixed value are used
+        private int slot(int hash) {
+            return (hash * MIX) >>> shift;
+        }
+    }
+
+    // random access to old file through small read cache
+    private static class SourceReader implements Closeable {
+        private final RandomAccessFile file;
+        private final long size;
+        private final byte[] cache = new byte[SOURCE_CACHE_SIZE];
+        private long cacheStart = 0;
+        private int cacheLength = 0;
+
+        private SourceReader(File source) throws IOException {
+            this.file = new RandomAccessFile(source, "r");
+            this.size = file.length();
+        }
+
+        byte get(long pos) throws IOException {
+            if(pos < cacheStart || pos >= cacheStart + cacheLength) load(pos);
+            return cache[(int) (pos - cacheStart)];
+        }
+
+        boolean matches(long pos, byte[] buf, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                if(buf[off + i] != get(pos + i)) return false;
+            }
+            return true;
+        }
+
+        private void load(long pos) throws IOException {
+            file.seek(pos);
+            int len = (int) Math.min(cache.length, size - pos);
+            file.readFully(cache, 0, len);
+            cacheStart = pos;
+            cacheLength = len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
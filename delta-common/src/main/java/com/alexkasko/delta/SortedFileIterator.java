@@ -0,0 +1,110 @@
+package com.alexkasko.delta;
+
+import com.google.common.collect.AbstractIterator;
+import org.apache.commons.io.IOCase;
+import org.apache.commons.io.filefilter.IOFileFilter;
+
+import java.io.File;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Lazily walks directory tree returning relative paths of files in natural string order,
+ * only listings of directories on the current path are kept in memory. Directories are
+ * sorted among their siblings with appended '/', so all paths under directory
+ * are placed in the same position as they would be after sorting all paths.
+ * Files and directories are selected with the same semantics as
+ * {@link org.apache.commons.io.FileUtils#listFiles(java.io.File, org.apache.commons.io.filefilter.IOFileFilter, org.apache.commons.io.filefilter.IOFileFilter)}
+ * with the same filter for files and directories.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class SortedFileIterator extends AbstractIterator<String> {
+    private final IOFileFilter filter;
+    private final IOCase caseSensitive;
+    private final boolean keepCase;
+    private final Deque<Iterator<Child>> stack = new ArrayDeque<Iterator<Child>>();
+    private String last;
+
+    /**
+     * @param root root directory
+     * @param filter IO filter to select files and directories
+     * @param caseSensitive case sensivity flag, paths are lower-cased for insensitive one
+     */
+    SortedFileIterator(File root, IOFileFilter filter, IOCase caseSensitive) {
+        this(root, filter, caseSensitive, false);
+    }
+
+    /**
+     * @param root root directory
+     * @param filter IO filter to select files and directories
+     * @param caseSensitive case sensivity flag, paths are sorted by lower-cased paths for insensitive one
+     * @param keepCase whether original paths should be returned instead of lower-cased ones
+     */
+    SortedFileIterator(File root, IOFileFilter filter, IOCase caseSensitive, boolean keepCase) {
+        this.filter = filter;
+        this.caseSensitive = caseSensitive;
+        this.keepCase = keepCase;
+        stack.push(list(root, "", ""));
+    }
+
+    @Override
+    protected String computeNext() {
+        while (!stack.isEmpty()) {
+            Iterator<Child> listing = stack.peek();
+            if(!listing.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            Child ch = listing.next();
+            if(ch.dir) {
+                stack.push(list(ch.file, ch.key, ch.path));
+            } else {
+                checkState(null == last || ch.key.compareTo(last) > 0,
+                        "Paths collision in case insensitive mode: '%s', '%s'", last, ch.key);
+                last = ch.key;
+                return keepCase ? ch.path : ch.key;
+            }
+        }
+        return endOfData();
+    }
+
+    private Iterator<Child> list(File directory, String keyPrefix, String prefix) {
+        File[] files = directory.listFiles();
+        List<Child> children = new ArrayList<Child>();
+        if(null != files) {
+            for (File fi : files) {
+                if(!filter.accept(fi)) continue;
+                String name = fi.getName();
+                String key = caseSensitive.isCaseSensitive() ? name : name.toLowerCase();
+                boolean dir = fi.isDirectory();
+                String suffix = dir ? "/" : "";
+                children.add(new Child(fi, keyPrefix + key + suffix, prefix + name + suffix, dir));
+            }
+        }
+        Collections.sort(children);
+        return children.iterator();
+    }
+
+    private static class Child implements Comparable<Child> {
+        private final File file;
+        // directories paths end with '/', key is lower-cased path in case insensitive mode
+        private final String key;
+        private final String path;
+        private final boolean dir;
+
+        private Child(File file, String key, String path, boolean dir) {
+            this.file = file;
+            this.key = key;
+            this.path = path;
+            this.dir = dir;
+        }
+
+        @Override
+        public int compareTo(Child o) {
+            return key.compareTo(o.key);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.alexkasko.delta;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Chooses compression for patch ZIP entries. Files with specified extensions and files
+ * which sample entropy exceeds specified threshold are written as STORED entries,
+ * other entries (and '.index' file) are DEFLATED with specified level.
+ * GDIFF entries are stored if the new version of file would be stored.
+ * Default policy deflates all entries with default level.
+ * Policy is thread-safe (immutable), {@code withXxx} methods return new instances.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+public class CompressionPolicy {
+    private static final Set<String> COMPRESSED_EXTENSIONS = ImmutableSet.of("7z", "apk", "avi", "bz2", "ear",
+            "flac", "gif", "gz", "jar", "jpeg", "jpg", "lz4", "mkv", "mov", "mp3", "mp4", "ogg", "png", "rar",
+            "tgz", "war", "webm", "webp", "xz", "zip", "zst");
+    private static final double ADAPTIVE_ENTROPY_THRESHOLD = 7.5;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private Set<String> storedExtensions = ImmutableSet.of();
+    private double entropyThreshold = Double.MAX_VALUE;
+
+    /**
+     * Returns policy that stores files with well-known compressed formats extensions
+     * and files which first 64KB have entropy above 7.5 bits per byte, other entries
+     * are deflated with default level
+     *
+     * @return adaptive policy
+     */
+    public static CompressionPolicy adaptive() {
+        return new CompressionPolicy()
+                .withStoredExtensions(COMPRESSED_EXTENSIONS)
+                .withEntropyThreshold(ADAPTIVE_ENTROPY_THRESHOLD);
+    }
+
+    /**
+     * Returns policy with specified deflate level, this instance is not changed
+     *
+     * @param level deflate level from {@code 0} to {@code 9}, or {@code -1} for default level
+     * @return policy with specified level
+     */
+    public CompressionPolicy withLevel(int level) {
+        checkArgument(level >= -1 && level <= 9, "Invalid deflate level: %s", level);
+        CompressionPolicy res = copy();
+        res.level = level;
+        return res;
+    }
+
+    /**
+     * Returns policy that stores files with specified extensions, this instance is not changed
+     *
+     * @param extensions file extensions without dot, case insensitive
+     * @return policy with specified stored extensions
+     */
+    public CompressionPolicy withStoredExtensions(Collection<String> extensions) {
+        checkArgument(null != extensions, "Provided extensions are null");
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (String ext : extensions) {
+            builder.add(ext.toLowerCase());
+        }
+        CompressionPolicy res = copy();
+        res.storedExtensions = builder.build();
+        return res;
+    }
+
+    /**
+     * Returns policy that stores files which first 64KB have entropy above specified threshold,
+     * this instance is not changed
+     *
+     * @param bitsPerByte entropy threshold, values above {@code 8} disable sampling
+     * @return policy with specified entropy threshold
+     */
+    public CompressionPolicy withEntropyThreshold(double bitsPerByte) {
+        checkArgument(bitsPerByte > 0, "Entropy threshold must be positive, but was: %s", bitsPerByte);
+        CompressionPolicy res = copy();
+        res.entropyThreshold = bitsPerByte;
+        return res;
+    }
+
+    /**
+     * @return deflate level for deflated entries
+     */
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Checks whether file should be written as STORED entry
+     *
+     * @param file file to check
+     * @return true if entry should be stored
+     * @throws IOException on io error
+     */
+    boolean isStored(File file) throws IOException {
+        String ext = FilenameUtils.getExtension(file.getName()).toLowerCase();
+        if(storedExtensions.contains(ext)) return true;
+        if(entropyThreshold > 8) return false;
+        return sampleEntropy(file) > entropyThreshold;
+    }
+
+    // Shannon entropy of the file head in bits per byte
+    private static double sampleEntropy(File file) throws IOException {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            byte[] sample = new byte[SAMPLE_SIZE];
+            int len = 0;
+            for (int read; len < sample.length && (read = is.read(sample, len, sample.length - len)) > 0; ) {
+                len += read;
+            }
+            if(0 == len) return 0;
+            int[] counts = new int[256];
+            for (int i = 0; i < len; i++) {
+                counts[sample[i] & 0xff] += 1;
+            }
+            double entropy = 0;
+            for (int count : counts) {
+                if(0 == count) continue;
+                double p = (double) count / len;
+                entropy -= p * Math.log(p);
+            }
+            return entropy / Math.log(2);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private CompressionPolicy copy() {
+        CompressionPolicy res = new CompressionPolicy();
+        res.level = level;
+        res.storedExtensions = storedExtensions;
+        res.entropyThreshold = entropyThreshold;
+        return res;
+    }
+}
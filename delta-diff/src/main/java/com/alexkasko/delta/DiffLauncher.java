@@ -17,6 +17,20 @@ public class DiffLauncher {
     private static final String HELP_OPTION = "help";
     private static final String OUTPUT_OPTION = "out";
     private static final String CASE_SENSITIVE_OPTION = "case-sensitive";
+    private static final String THREADS_OPTION = "threads";
+    private static final String HASH_CACHE_OPTION = "hash-cache";
+    private static final String STREAMING_INDEX_OPTION = "streaming-index";
+    private static final String BINARY_INDEX_OPTION = "binary-index";
+    private static final String LEVEL_OPTION = "level";
+    private static final String ADAPTIVE_COMPRESSION_OPTION = "adaptive-compression";
+    private static final String CONTAINER_OPTION = "container";
+    private static final String DELTA_ENGINE_OPTION = "delta-engine";
+    private static final String DETECT_RENAMES_OPTION = "detect-renames";
+    private static final String DEDUPLICATE_OPTION = "deduplicate";
+    private static final String PIPELINED_OPTION = "pipelined";
+    private static final String DIGEST_OPTION = "digest";
+    private static final String BLOCK_SIZE_OPTION = "block-size";
+    private static final String MANIFEST_OPTION = "manifest";
 
     /**
      * app entry point
@@ -27,11 +41,25 @@ public class DiffLauncher {
             options.addOption("h", HELP_OPTION, false, "show this page");
             options.addOption("o", OUTPUT_OPTION, true, "output file path");
             options.addOption("c", CASE_SENSITIVE_OPTION, true, "case sensitive [y/n]");
+            options.addOption("t", THREADS_OPTION, true, "number of threads for hashing and delta computing, default: 1");
+            options.addOption(null, HASH_CACHE_OPTION, true, "hash sums cache file to reuse between runs");
+            options.addOption(null, STREAMING_INDEX_OPTION, false, "walk directories in sorted order without collecting all paths in memory");
+            options.addOption(null, BINARY_INDEX_OPTION, false, "write compact binary index, not supported by patchers before 1.1.4");
+            options.addOption(null, PIPELINED_OPTION, false, "read each created file once, encode patch entries in worker threads using temp files");
+            options.addOption("z", LEVEL_OPTION, true, "deflate level [0-9] for compressed entries");
+            options.addOption(null, ADAPTIVE_COMPRESSION_OPTION, false, "store already compressed and high-entropy files without compression");
+            options.addOption(null, CONTAINER_OPTION, true, "patch container [zip/lz4], lz4 is not supported by patchers before 1.1.4, default: lz4 for '.lz4' output, zip otherwise");
+            options.addOption(null, DELTA_ENGINE_OPTION, true, "delta engine [javaxdelta/rolling], rolling engine uses bounded memory for large files, default: javaxdelta");
+            options.addOption(null, DETECT_RENAMES_OPTION, false, "write moved and copied files as renames or deltas, not supported by patchers before 1.1.4");
+            options.addOption(null, DEDUPLICATE_OPTION, false, "write identical created files only once, not supported by patchers before 1.1.4");
+            options.addOption(null, DIGEST_OPTION, true, "hash sums algorithm [sha1/sha256/murmur3], other than sha1 is not supported by patchers before 1.1.4, default: sha1");
+            options.addOption(null, BLOCK_SIZE_OPTION, true, "size in bytes of blocks hashed in large files for parallel checks and repair, not supported by patchers before 1.1.4 and with manifest, default: 0 (disabled)");
+            options.addOption("m", MANIFEST_OPTION, true, "manifest of old directory to use instead of dir1, created with ManifestLauncher");
             CommandLine cline = new GnuParser().parse(options, args);
             String[] argList = cline.getArgs();
             if (cline.hasOption(HELP_OPTION)) {
                 throw new ParseException("Printing help page:");
-            } else if(2 == argList.length && cline.hasOption(OUTPUT_OPTION)) {
+            } else if((cline.hasOption(MANIFEST_OPTION) ? 1 : 2) == argList.length && cline.hasOption(OUTPUT_OPTION)) {
                 final IOCase caseSensitive;
                 if (cline.hasOption(CASE_SENSITIVE_OPTION)) {
                     String val = cline.getOptionValue(CASE_SENSITIVE_OPTION);
@@ -43,14 +71,111 @@ public class DiffLauncher {
                         throw new ParseException("Invalid case arg: [" + val + "], should be [y] or [n]");
                     }
                 } else caseSensitive = IOCase.SYSTEM;
-                new DirDeltaCreator().create(new File(argList[0]), new File(argList[1]), new File(cline.getOptionValue(OUTPUT_OPTION)), caseSensitive);
+                final int threads;
+                if (cline.hasOption(THREADS_OPTION)) {
+                    String val = cline.getOptionValue(THREADS_OPTION);
+                    threads = parsePositiveInt(val);
+                    if (threads <= 0) throw new ParseException("Invalid threads arg: [" + val + "], should be positive number");
+                } else threads = 1;
+                CompressionPolicy compression = cline.hasOption(ADAPTIVE_COMPRESSION_OPTION) ?
+                        CompressionPolicy.adaptive() : new CompressionPolicy();
+                if (cline.hasOption(LEVEL_OPTION)) {
+                    String val = cline.getOptionValue(LEVEL_OPTION);
+                    int level = parsePositiveInt(val);
+                    if (level < 0 || level > 9) throw new ParseException("Invalid level arg: [" + val + "], should be number from [0] to [9]");
+                    compression = compression.withLevel(level);
+                }
+                final PatchContainer container;
+                if (cline.hasOption(CONTAINER_OPTION)) {
+                    String val = cline.getOptionValue(CONTAINER_OPTION);
+                    if ("zip".equalsIgnoreCase(val)) {
+                        container = PatchContainer.ZIP;
+                    } else if ("lz4".equalsIgnoreCase(val)) {
+                        container = PatchContainer.LZ4;
+                    } else {
+                        throw new ParseException("Invalid container arg: [" + val + "], should be [zip] or [lz4]");
+                    }
+                } else if (cline.getOptionValue(OUTPUT_OPTION).toLowerCase().endsWith(".lz4")) {
+                    container = PatchContainer.LZ4;
+                } else container = PatchContainer.ZIP;
+                final DeltaEngine engine;
+                if (cline.hasOption(DELTA_ENGINE_OPTION)) {
+                    String val = cline.getOptionValue(DELTA_ENGINE_OPTION);
+                    if ("javaxdelta".equalsIgnoreCase(val)) {
+                        engine = new JavaxDeltaEngine();
+                    } else if ("rolling".equalsIgnoreCase(val)) {
+                        engine = new RollingHashDeltaEngine();
+                    } else {
+                        throw new ParseException("Invalid delta engine arg: [" + val + "], should be [javaxdelta] or [rolling]");
+                    }
+                } else engine = new JavaxDeltaEngine();
+                final DigestAlgorithm digest;
+                if (cline.hasOption(DIGEST_OPTION)) {
+                    String val = cline.getOptionValue(DIGEST_OPTION);
+                    if ("sha1".equalsIgnoreCase(val)) {
+                        digest = DigestAlgorithm.SHA1;
+                    } else if ("sha256".equalsIgnoreCase(val)) {
+                        digest = DigestAlgorithm.SHA256;
+                    } else if ("murmur3".equalsIgnoreCase(val)) {
+                        digest = DigestAlgorithm.MURMUR3_128;
+                    } else {
+                        throw new ParseException("Invalid digest arg: [" + val + "], should be [sha1], [sha256] or [murmur3]");
+                    }
+                } else digest = DigestAlgorithm.SHA1;
+                if (cline.hasOption(MANIFEST_OPTION) && DigestAlgorithm.SHA1 != digest) {
+                    throw new ParseException("Digest algorithms other than sha1 are not supported with manifest");
+                }
+                final int blockSize;
+                if (cline.hasOption(BLOCK_SIZE_OPTION)) {
+                    String val = cline.getOptionValue(BLOCK_SIZE_OPTION);
+                    blockSize = parsePositiveInt(val);
+                    if (blockSize < 0) throw new ParseException("Invalid block size arg: [" + val + "], should be non-negative number");
+                } else blockSize = 0;
+                if (cline.hasOption(MANIFEST_OPTION) && blockSize > 0) {
+                    throw new ParseException("Block hash sums are not supported with manifest");
+                }
+                if (cline.hasOption(MANIFEST_OPTION) && cline.hasOption(DETECT_RENAMES_OPTION)) {
+                    throw new ParseException("Renames detection is not supported with manifest");
+                }
+                if (cline.hasOption(MANIFEST_OPTION) && cline.hasOption(PIPELINED_OPTION)) {
+                    throw new ParseException("Pipelining is not supported with manifest");
+                }
+                DirDeltaCreator creator = new DirDeltaCreator()
+                        .withThreads(threads)
+                        .withCompression(compression)
+                        .withContainer(container)
+                        .withDeltaEngine(engine)
+                        .withRenameDetection(cline.hasOption(DETECT_RENAMES_OPTION))
+                        .withDeduplication(cline.hasOption(DEDUPLICATE_OPTION))
+                        .withStreamingIndex(cline.hasOption(STREAMING_INDEX_OPTION))
+                        .withPipelining(cline.hasOption(PIPELINED_OPTION))
+                        .withDigestAlgorithm(digest)
+                        .withBlockSize(blockSize)
+                        .withIndexFormat(cline.hasOption(BINARY_INDEX_OPTION) ? IndexFormat.BINARY : IndexFormat.JSON);
+                if (cline.hasOption(HASH_CACHE_OPTION)) {
+                    creator = creator.withHashCache(new File(cline.getOptionValue(HASH_CACHE_OPTION)));
+                }
+                if (cline.hasOption(MANIFEST_OPTION)) {
+                    creator.createFromManifest(new File(cline.getOptionValue(MANIFEST_OPTION)), new File(argList[0]),
+                            new File(cline.getOptionValue(OUTPUT_OPTION)), caseSensitive);
+                } else {
+                    creator.create(new File(argList[0]), new File(argList[1]), new File(cline.getOptionValue(OUTPUT_OPTION)), caseSensitive);
+                }
             } else {
                 throw new ParseException("Incorrect arguments received!");
             }
         } catch (ParseException e) {
             HelpFormatter formatter = new HelpFormatter();
             out.println(e.getMessage());
-            formatter.printHelp("java -jar delta-diff.jar [-c y/n] dir1 dir2 -o out.zip", options);
+            formatter.printHelp("java -jar delta-diff.jar [-c y/n] [-t threads] [-z level] {dir1 | -m manifest.bin} dir2 -o out.zip", options);
+        }
+    }
+
+    private static int parsePositiveInt(String val) {
+        try {
+            return Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 }
@@ -1,34 +1,49 @@
 package com.alexkasko.delta;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
 import com.google.common.collect.*;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.nothome.delta.Delta;
-import com.nothome.delta.GDiffWriter;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOCase;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.commons.lang.UnhandledException;
 
 import java.io.*;
-import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.Iterator;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
+import static com.alexkasko.delta.ConcurrencyUtils.newExecutor;
+import static com.alexkasko.delta.ConcurrencyUtils.transformOrdered;
 import static com.google.common.base.Preconditions.checkArgument;
-import static org.apache.commons.io.FileUtils.listFiles;
-import static org.apache.commons.io.FilenameUtils.separatorsToUnix;
-import static com.alexkasko.delta.HashUtils.computeSha1;
+import static com.google.common.base.Preconditions.checkState;
+import static com.alexkasko.delta.HashUtils.computeHashPair;
+import static com.alexkasko.delta.HashUtils.hex;
+import static java.nio.file.Files.isSameFile;
 
 /**
  * Creates ZIP file (or stream) with GDIFF deltas for all changed files and '.index' text file
- * (with '.index_' prefix) with list of unchanged, added, updated and deleted files with SHA1 hash sums
+ * (with '.index_' prefix) with list of unchanged, added, updated and deleted files with SHA1 hash sums.
+ * Hashes and deltas may be computed in multiple threads, ZIP entries order doesn't depend on threads count.
  *
  * @author alexkasko
  * Date: 11/18/11
@@ -36,6 +51,198 @@ import static com.alexkasko.delta.HashUtils.computeSha1;
 public class DirDeltaCreator {
     private static final String EMPTY_STRING = "";
 
+    private int threads = 1;
+    private File hashCacheFile;
+    private boolean streamingIndex;
+    private IndexFormat indexFormat = IndexFormat.JSON;
+    private CompressionPolicy compression = new CompressionPolicy();
+    private PatchContainer container = PatchContainer.ZIP;
+    private DeltaEngine engine = new JavaxDeltaEngine();
+    private boolean renameDetection;
+    private boolean deduplication;
+    private boolean pipelining;
+    private DigestAlgorithm digestAlgorithm = DigestAlgorithm.SHA1;
+    private int blockSize = 0;
+
+    /**
+     * Returns creator that uses specified number of threads for hashing and delta computing,
+     * this instance is not changed
+     *
+     * @param threads number of worker threads, {@code 1} (default) means computing in calling thread
+     * @return creator with specified threads count
+     */
+    public DirDeltaCreator withThreads(int threads) {
+        checkArgument(threads > 0, "Threads count must be positive, but was: %s", threads);
+        DirDeltaCreator res = copy();
+        res.threads = threads;
+        return res;
+    }
+
+    /**
+     * Returns creator that takes hash sums of files that weren't changed since previous run
+     * from specified cache file and updates that file after patch creation, this instance is not changed
+     *
+     * @param hashCacheFile hash cache file, will be created if not exists
+     * @return creator with specified hash cache
+     */
+    public DirDeltaCreator withHashCache(File hashCacheFile) {
+        checkArgument(null != hashCacheFile, "Provided hash cache file is null");
+        DirDeltaCreator res = copy();
+        res.hashCacheFile = hashCacheFile;
+        return res;
+    }
+
+    /**
+     * Returns creator that walks both directories in sorted order and joins them without collecting
+     * all paths in memory, index entries are kept in temporary file. Heap usage doesn't depend on files count,
+     * created patch is the same, this instance is not changed
+     *
+     * @param streamingIndex streaming index flag
+     * @return creator with specified streaming index flag
+     */
+    public DirDeltaCreator withStreamingIndex(boolean streamingIndex) {
+        DirDeltaCreator res = copy();
+        res.streamingIndex = streamingIndex;
+        return res;
+    }
+
+    /**
+     * Returns creator that writes '.index' file in specified format, {@link IndexFormat#BINARY} index
+     * is smaller and faster to parse, but cannot be read by patchers before 1.1.4. This instance is not changed
+     *
+     * @param indexFormat index format, {@link IndexFormat#JSON} by default
+     * @return creator with specified index format
+     */
+    public DirDeltaCreator withIndexFormat(IndexFormat indexFormat) {
+        checkArgument(null != indexFormat, "Provided index format is null");
+        DirDeltaCreator res = copy();
+        res.indexFormat = indexFormat;
+        return res;
+    }
+
+    /**
+     * Returns creator that chooses compression of patch entries with specified policy,
+     * this instance is not changed
+     *
+     * @param compression compression policy, all entries are deflated with default level by default
+     * @return creator with specified compression policy
+     */
+    public DirDeltaCreator withCompression(CompressionPolicy compression) {
+        checkArgument(null != compression, "Provided compression policy is null");
+        DirDeltaCreator res = copy();
+        res.compression = compression;
+        return res;
+    }
+
+    /**
+     * Returns creator that writes patch in specified container, {@link PatchContainer#LZ4} container
+     * is faster to create and apply, but cannot be read by patchers before 1.1.4. Deflate level
+     * of compression policy is ignored for LZ4 container. This instance is not changed
+     *
+     * @param container patch container, {@link PatchContainer#ZIP} by default
+     * @return creator with specified patch container
+     */
+    public DirDeltaCreator withContainer(PatchContainer container) {
+        checkArgument(null != container, "Provided patch container is null");
+        DirDeltaCreator res = copy();
+        res.container = container;
+        return res;
+    }
+
+    /**
+     * Returns creator that computes deltas of updated files with specified engine, this instance is not changed
+     *
+     * @param engine delta engine, {@link JavaxDeltaEngine} by default
+     * @return creator with specified delta engine
+     */
+    public DirDeltaCreator withDeltaEngine(DeltaEngine engine) {
+        checkArgument(null != engine, "Provided delta engine is null");
+        DirDeltaCreator res = copy();
+        res.engine = engine;
+        return res;
+    }
+
+    /**
+     * Returns creator that replaces created files matching old files by content or by name and size
+     * with 'moved' and 'copied from' entries, such files are renamed, copied or patched from old files
+     * instead of being written into patch. Created and deleted entries and hash sums of all old files
+     * are kept in memory. Patches with such entries cannot be applied by patchers before 1.1.4.
+     * This instance is not changed
+     *
+     * @param renameDetection rename detection flag, disabled by default
+     * @return creator with specified rename detection flag
+     */
+    public DirDeltaCreator withRenameDetection(boolean renameDetection) {
+        DirDeltaCreator res = copy();
+        res.renameDetection = renameDetection;
+        return res;
+    }
+
+    /**
+     * Returns creator that writes content of created files with the same hash sum into patch only once,
+     * other such files are written as 'duplicated' entries and are copied (or hard-linked) by patcher.
+     * Hash sums of created files are kept in memory. Patches with such entries cannot be applied
+     * by patchers before 1.1.4. This instance is not changed
+     *
+     * @param deduplication deduplication flag, disabled by default
+     * @return creator with specified deduplication flag
+     */
+    public DirDeltaCreator withDeduplication(boolean deduplication) {
+        DirDeltaCreator res = copy();
+        res.deduplication = deduplication;
+        return res;
+    }
+
+    /**
+     * Returns creator that reads each created file once: worker threads compute hash sums of files
+     * and encode (deflate or split into LZ4 blocks) patch entries of created files and deltas of updated files
+     * into temp files at the same time. Index must precede other entries, so encoded entries are copied into
+     * patch as is after all files are indexed, writer thread doesn't compress anything. Temp files take
+     * about the size of patch, paths of temp files are kept in memory. Directories are walked in sorted
+     * order like in streaming index mode. This instance is not changed
+     *
+     * @param pipelining pipelining flag, disabled by default
+     * @return creator with specified pipelining flag
+     */
+    public DirDeltaCreator withPipelining(boolean pipelining) {
+        DirDeltaCreator res = copy();
+        res.pipelining = pipelining;
+        return res;
+    }
+
+    /**
+     * Returns creator that writes hash sums computed with specified algorithm, algorithm is recorded
+     * in index header. Patches with algorithms other than SHA-1 cannot be applied by patchers before 1.1.4
+     * and cannot be created from manifest. This instance is not changed
+     *
+     * @param digestAlgorithm digest algorithm, {@link DigestAlgorithm#SHA1} by default
+     * @return creator with specified digest algorithm
+     */
+    public DirDeltaCreator withDigestAlgorithm(DigestAlgorithm digestAlgorithm) {
+        checkArgument(null != digestAlgorithm, "Provided digest algorithm is null");
+        DirDeltaCreator res = copy();
+        res.digestAlgorithm = digestAlgorithm;
+        return res;
+    }
+
+    /**
+     * Returns creator that writes hash sums of blocks of specified size for 'unchanged', 'created'
+     * and 'updated' files larger than one block. Blocks are hashed in the same pass with the whole file,
+     * hash cache cannot provide block hash sums, so such files are read even if they are cached.
+     * Patcher checks blocks of large 'unchanged' files in parallel and may repair corrupted files
+     * rewriting only corrupted blocks. Patches with block hash sums cannot be applied by patchers before 1.1.4
+     * and cannot be created from manifest. This instance is not changed
+     *
+     * @param blockSize block size in bytes, {@code 0} (default) disables block hash sums
+     * @return creator with specified block size
+     */
+    public DirDeltaCreator withBlockSize(int blockSize) {
+        checkArgument(blockSize >= 0, "Block size must be non-negative, but was: %s", blockSize);
+        DirDeltaCreator res = copy();
+        res.blockSize = blockSize;
+        return res;
+    }
+
     /**
      * Creates patch ZIP file
      *
@@ -92,140 +299,966 @@ public class DirDeltaCreator {
      * @throws IOException on any io or consistency problem
      */
     public void create(File oldDir, File newDir, IOFileFilter filter, OutputStream patch, IOCase caseSensitive) throws IOException {
-        DeltaIndex paths = readDeltaPaths(oldDir, newDir, filter, caseSensitive);
-        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(patch));
-        writeIndex(paths, out);
-        writeCreated(paths.created, newDir, out);
-        writeUpdated(paths.updated, oldDir, newDir, out);
-        out.close();
+        if(pipelining) {
+            createPipelined(oldDir, newDir, filter, patch, caseSensitive);
+            return;
+        }
+        HashCache cache = HashCache.load(hashCacheFile).withAlgorithm(digestAlgorithm);
+        ExecutorService executor = newExecutor(threads, "delta-creator");
+        IndexSpill spill = null;
+        try {
+            StoredCrcs crcs = new StoredCrcs();
+            DeltaIndex paths;
+            if(streamingIndex) {
+                spill = IndexSpill.create();
+                paths = streamDeltaPaths(oldDir, newDir, filter, caseSensitive, cache, crcs, executor, spill);
+            } else {
+                paths = readDeltaPaths(oldDir, newDir, filter, caseSensitive, cache, crcs, executor);
+            }
+            if(renameDetection) paths = new RenameDetector(oldDir, newDir, engine).detect(paths);
+            if(deduplication) paths = deduplicate(paths);
+            PatchOutputStream out = PatchOutputStream.open(new BufferedOutputStream(patch), container, compression.getLevel());
+            writeIndex(paths, out);
+            // plain renames and copies have no patch entries
+            Iterable<IndexEntry> relocated = Iterables.<IndexEntry>concat(paths.copied, paths.moved);
+            writeDeltas(fileJobs(Iterables.filter(relocated, new ContentChanged()), oldDir, newDir), out, executor);
+            writeCreated(paths.created, newDir, crcs, out);
+            writeDeltas(fileJobs(paths.updated, oldDir, newDir), out, executor);
+            out.close();
+            cache.save();
+        } finally {
+            IOUtils.closeQuietly(spill);
+            executor.shutdownNow();
+        }
     }
 
-    private DeltaIndex readDeltaPaths(File oldDir, File newDir, IOFileFilter filter, IOCase caseSensitive) throws IOException {
-        if(!(null != oldDir && oldDir.exists() && oldDir.isDirectory())) throw new IOException("Bad oldDir argument");
+    /**
+     * Creates patch ZIP file against old version of directory described by manifest,
+     * old version of directory is not required
+     *
+     * @param manifest manifest of old version of directory
+     * @param newDir new version of directory
+     * @param outFile file to write patch into
+     * @throws IOException on any io or consistency problem
+     */
+    public void createFromManifest(File manifest, File newDir, File outFile) throws IOException {
+        createFromManifest(manifest, newDir, outFile, IOCase.SYSTEM);
+    }
+
+    /**
+     * Creates patch ZIP file against old version of directory described by manifest,
+     * old version of directory is not required
+     *
+     * @param manifest manifest of old version of directory
+     * @param newDir new version of directory
+     * @param outFile file to write patch into
+     * @param caseSensitive case sensivity flag
+     * @throws IOException on any io or consistency problem
+     */
+    public void createFromManifest(File manifest, File newDir, File outFile, IOCase caseSensitive) throws IOException {
+        OutputStream out = null;
+        try {
+            out = FileUtils.openOutputStream(outFile);
+            createFromManifest(manifest, newDir, TrueFileFilter.TRUE, out, caseSensitive);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Writes zipped patch against old version of directory described by manifest into provided output stream.
+     * Manifest is read twice: while indexing and while computing deltas of updated files, signatures
+     * are kept in memory only for files being processed. Updated files are written as whole files
+     * in GDIFF format if manifest has no signatures. Rename detection requires old files and is
+     * not supported with manifest. Manifest is written in case sensitive order, in case insensitive mode
+     * paths and hash sums of all its entries are sorted in memory, index entries keep original paths
+     *
+     * @param manifest manifest of old version of directory
+     * @param newDir new version of directory
+     * @param filter IO filter to select files
+     * @param patch output stream to write patch into
+     * @param caseSensitive case sensivity flag
+     * @throws IOException on any io or consistency problem
+     */
+    public void createFromManifest(File manifest, File newDir, IOFileFilter filter, OutputStream patch, IOCase caseSensitive) throws IOException {
+        if(!(null != manifest && manifest.isFile())) throw new IOException("Bad manifest argument");
         if(!(null != newDir && newDir.exists() && newDir.isDirectory())) throw new IOException("Bad newDir argument");
-        // read files
-        Collection<File> oldFiles = listFiles(oldDir, filter, filter);
-        Collection<File> newFiles = listFiles(newDir, filter, filter);
-        // want to do comparing on strings, without touching FS
-        Set<String> oldSet = ImmutableSet.copyOf(Collections2.transform(oldFiles, new Relativiser(oldDir, caseSensitive)));
-        Set<String> newSet = ImmutableSet.copyOf(Collections2.transform(newFiles, new Relativiser(newDir, caseSensitive)));
-        // partitioning
-        List<String> createdPaths = Ordering.natural().immutableSortedCopy(Sets.difference(newSet, oldSet));
-        List<String> existedPaths = Ordering.natural().immutableSortedCopy(Sets.intersection(oldSet, newSet));
-        List<String> deletedPaths = Ordering.natural().immutableSortedCopy(Sets.difference(oldSet, newSet));
+        checkState(!renameDetection, "Rename detection is not supported with manifest");
+        // manifest contains SHA-1 hash sums
+        checkState(DigestAlgorithm.SHA1 == digestAlgorithm, "Digest algorithms other than SHA-1 are not supported with manifest");
+        checkState(0 == blockSize, "Block hash sums are not supported with manifest");
+        HashCache cache = HashCache.load(hashCacheFile).withAlgorithm(digestAlgorithm);
+        ExecutorService executor = newExecutor(threads, "delta-creator");
+        IndexSpill spill = null;
+        InputStream index = null;
+        InputStream signatures = null;
+        try {
+            index = new BufferedInputStream(new FileInputStream(manifest));
+            StoredCrcs crcs = new StoredCrcs();
+            Iterator<IndexEntry> entries = manifestDeltaPaths(ManifestCodec.read(index), newDir, filter, caseSensitive, cache, crcs, executor);
+            DeltaIndex paths;
+            if(streamingIndex) {
+                spill = IndexSpill.create();
+                spill.write(entries, digestAlgorithm, blockSize);
+                paths = DeltaIndex.partition(spill);
+            } else {
+                paths = DeltaIndex.partition(ImmutableList.copyOf(entries));
+            }
+            index.close();
+            if(deduplication) paths = deduplicate(paths);
+            PatchOutputStream out = PatchOutputStream.open(new BufferedOutputStream(patch), container, compression.getLevel());
+            writeIndex(paths, out);
+            writeCreated(paths.created, newDir, crcs, out);
+            signatures = new BufferedInputStream(new FileInputStream(manifest));
+            Iterator<ManifestEntry> manifestEntries = ManifestCodec.read(signatures);
+            writeDeltas(new SignatureJobIterator(paths.updated, manifestEntries, newDir, caseSensitive), out, executor);
+            out.close();
+            cache.save();
+        } catch (UnhandledException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(index);
+            IOUtils.closeQuietly(signatures);
+            IOUtils.closeQuietly(spill);
+            executor.shutdownNow();
+        }
+    }
+
+    private void createPipelined(File oldDir, File newDir, IOFileFilter filter, OutputStream patch, IOCase caseSensitive) throws IOException {
+        checkDirs(oldDir, newDir);
+        HashCache cache = HashCache.load(hashCacheFile).withAlgorithm(digestAlgorithm);
+        ExecutorService executor = newExecutor(threads, "delta-creator");
+        File tmpDir = Files.createTempDir();
+        IndexSpill spill = null;
+        try {
+            Iterator<String> oldPaths = new SortedFileIterator(oldDir, filter, caseSensitive);
+            Iterator<String> newPaths = new SortedFileIterator(newDir, filter, caseSensitive);
+            Iterator<JoinedPath> joined = new JoinIterator(oldPaths, newPaths);
+            Iterator<PreparedIndexEntry> indexed = transform(joined, new PreparingIndexer(oldDir, newDir, cache, tmpDir), executor);
+            // encoded entries of created and updated files by path
+            Map<String, PreparedEntry> prepared = new HashMap<String, PreparedEntry>();
+            Iterator<IndexEntry> entries = Iterators.transform(indexed, new PreparedCollector(prepared));
+            DeltaIndex paths;
+            if(streamingIndex) {
+                spill = IndexSpill.create();
+                spill.write(entries, digestAlgorithm, blockSize);
+                paths = DeltaIndex.partition(spill);
+            } else {
+                paths = DeltaIndex.partition(ImmutableList.copyOf(entries));
+            }
+            // entries of created files replaced by renames and duplicates are left unused
+            if(renameDetection) paths = new RenameDetector(oldDir, newDir, engine).detect(paths);
+            if(deduplication) paths = deduplicate(paths);
+            PreparedPatchWriter out = PreparedPatchWriter.open(new BufferedOutputStream(patch), container);
+            out.write(prepareIndex(paths, tmpDir));
+            // sources of renamed files are known only after detection
+            Iterable<IndexEntry> relocated = Iterables.<IndexEntry>concat(paths.copied, paths.moved);
+            Iterator<DeltaJob> jobs = fileJobs(Iterables.filter(relocated, new ContentChanged()), oldDir, newDir);
+            Iterator<PreparedEntry> deltas = transform(jobs, new DeltaPreparer(tmpDir), executor);
+            while (deltas.hasNext()) {
+                out.write(deltas.next());
+            }
+            for (IndexEntry en : Iterables.<IndexEntry>concat(paths.created, paths.updated)) {
+                PreparedEntry entry = prepared.remove(en.path);
+                checkState(null != entry, "Prepared entry not found for path: " + en.path);
+                out.write(entry);
+            }
+            out.close();
+            cache.save();
+        } catch (UnhandledException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(spill);
+            executor.shutdownNow();
+            FileUtils.deleteQuietly(tmpDir);
+        }
+    }
+
+    private Iterator<IndexEntry> manifestDeltaPaths(Iterator<ManifestEntry> oldEntries, File newDir, IOFileFilter filter,
+                                                    IOCase caseSensitive, HashCache cache, StoredCrcs crcs, ExecutorService executor) {
+        Iterator<String> newPaths = new SortedFileIterator(newDir, filter, caseSensitive, true);
+        Iterator<ManifestEntry> sorted = caseSensitive.isCaseSensitive() ? oldEntries : sortedIgnoreCase(oldEntries);
+        Iterator<JoinedPath> joined = new ManifestJoinIterator(sorted, newPaths, caseSensitive);
+        return transform(joined, new ManifestIndexer(newDir, cache, crcs), executor);
+    }
+
+    // manifest is written in case sensitive order, paths and hash sums of its entries are sorted
+    // in memory in the order of new directory walk
+    private static Iterator<ManifestEntry> sortedIgnoreCase(Iterator<ManifestEntry> entries) {
+        List<ManifestEntry> list = new ArrayList<ManifestEntry>();
+        while (entries.hasNext()) {
+            ManifestEntry en = entries.next();
+            list.add(new ManifestEntry(en.path, en.size, en.sha1, 0, new int[0], new long[0]));
+        }
+        Collections.sort(list, new Comparator<ManifestEntry>() {
+            @Override
+            public int compare(ManifestEntry o1, ManifestEntry o2) {
+                return o1.path.toLowerCase().compareTo(o2.path.toLowerCase());
+            }
+        });
+        for (int i = 1; i < list.size(); i++) {
+            String prev = list.get(i - 1).path;
+            String cur = list.get(i).path;
+            checkState(!prev.equalsIgnoreCase(cur), "Paths collision in case insensitive mode: '%s', '%s'", prev, cur);
+        }
+        return list.iterator();
+    }
+
+    private DeltaIndex readDeltaPaths(File oldDir, File newDir, IOFileFilter filter, IOCase caseSensitive,
+                                      HashCache cache, StoredCrcs crcs, ExecutorService executor) throws IOException {
+        checkDirs(oldDir, newDir);
+        // read files with attributes, paths are sorted
+        Map<String, DirScanner.ScannedFile> oldFiles = Maps.uniqueIndex(DirScanner.scan(oldDir, filter, caseSensitive, threads), new ScannedPath());
+        Map<String, DirScanner.ScannedFile> newFiles = Maps.uniqueIndex(DirScanner.scan(newDir, filter, caseSensitive, threads), new ScannedPath());
+        // partitioning, views keep order of scanned paths
+        Set<String> createdPaths = Sets.difference(newFiles.keySet(), oldFiles.keySet());
+        Set<String> existedPaths = Sets.intersection(oldFiles.keySet(), newFiles.keySet());
+        Set<String> deletedPaths = Sets.difference(oldFiles.keySet(), newFiles.keySet());
         // converting
-        ImmutableList<IndexEntry.Created> created = ImmutableList.copyOf(Lists.transform(createdPaths, new CreatedIndexer(newDir)));
-        ImmutableList<IndexEntry.Deleted> deleted = ImmutableList.copyOf(Lists.transform(deletedPaths, new DeletedIndexer(oldDir)));
-        List<IndexEntry> existed = Lists.transform(existedPaths, new ExistedIndexer(oldDir, newDir));
+        ImmutableList<IndexEntry.Created> created = ImmutableList.copyOf(transform(createdPaths.iterator(), new CreatedIndexer(newDir, cache, blockSize, crcs), executor));
+        ImmutableList<IndexEntry.Deleted> deleted = ImmutableList.copyOf(transform(deletedPaths.iterator(), new DeletedIndexer(oldDir, cache), executor));
+        List<IndexEntry> existed = ImmutableList.copyOf(transform(existedPaths.iterator(),
+                new ScannedIndexer(oldDir, newDir, cache, blockSize, oldFiles, newFiles), executor));
         // partitioning
         ImmutableList<IndexEntry.Updated> updated = ImmutableList.copyOf(Iterables.filter(existed, IndexEntry.Updated.class));
         ImmutableList<IndexEntry.Unchanged> unchanged = ImmutableList.copyOf(Iterables.filter(existed, IndexEntry.Unchanged.class));
         return new DeltaIndex(created, deleted, updated, unchanged);
     }
 
-    private void writeIndex(DeltaIndex paths, ZipOutputStream out) throws IOException {
+    private DeltaIndex streamDeltaPaths(File oldDir, File newDir, IOFileFilter filter, IOCase caseSensitive,
+                                        HashCache cache, StoredCrcs crcs, ExecutorService executor, IndexSpill spill) throws IOException {
+        checkDirs(oldDir, newDir);
+        // both walks are sorted, so paths are partitioned with merge join
+        Iterator<String> oldPaths = new SortedFileIterator(oldDir, filter, caseSensitive);
+        Iterator<String> newPaths = new SortedFileIterator(newDir, filter, caseSensitive);
+        Iterator<JoinedPath> joined = new JoinIterator(oldPaths, newPaths);
+        Iterator<IndexEntry> entries = transform(joined, new JoinedIndexer(oldDir, newDir, cache, blockSize, crcs), executor);
+        try {
+            spill.write(entries, digestAlgorithm, blockSize);
+        } catch (UnhandledException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+        return DeltaIndex.partition(spill);
+    }
+
+    // first created file with each content is kept, others refer to it
+    private static DeltaIndex deduplicate(DeltaIndex paths) {
+        Map<String, String> firstByHash = new HashMap<String, String>();
+        ImmutableList.Builder<IndexEntry.Created> created = ImmutableList.builder();
+        ImmutableList.Builder<IndexEntry.Duplicated> duplicated = ImmutableList.builder();
+        for (IndexEntry.Created en : paths.created) {
+            String first = firstByHash.get(en.newSha1);
+            if(null == first) {
+                firstByHash.put(en.newSha1, en.path);
+                created.add(en);
+            } else {
+                duplicated.add(new IndexEntry.Duplicated(en.path, first, EMPTY_STRING, en.newSha1));
+            }
+        }
+        return new DeltaIndex(created.build(), paths.deleted, paths.updated, paths.unchanged,
+                paths.moved, paths.copied, duplicated.build());
+    }
+
+    private static void checkDirs(File oldDir, File newDir) throws IOException {
+        if(!(null != oldDir && oldDir.exists() && oldDir.isDirectory())) throw new IOException("Bad oldDir argument");
+        if(!(null != newDir && newDir.exists() && newDir.isDirectory())) throw new IOException("Bad newDir argument");
+    }
+
+    private void writeIndex(DeltaIndex paths, PatchOutputStream out) throws IOException {
         // lazy transforms
         out.putNextEntry(new ZipEntry(".index_" + UUID.randomUUID().toString()));
-        Gson gson = new GsonBuilder().create();
-        Writer writer = new OutputStreamWriter(out, Charset.forName("UTF-8"));
-        for (IndexEntry ie : paths.getAll()) {
-            gson.toJson(ie, IndexEntry.class, writer);
-            writer.write("\n");
-        }
-        writer.flush();
+        IndexCodec.write(paths.getAll().iterator(), out, indexFormat, digestAlgorithm, blockSize);
         out.closeEntry();
     }
 
-    private void writeCreated(List<IndexEntry.Created> paths, File newDir, ZipOutputStream out) throws IOException {
+    private void writeCreated(Iterable<IndexEntry.Created> paths, File newDir, StoredCrcs crcs, PatchOutputStream out) throws IOException {
         for(IndexEntry.Created en : paths) {
-            out.putNextEntry(new ZipEntry(en.path));
             File file = new File(newDir, en.path);
+            Long crc = crcs.get(en.path);
+            if(null != crc) {
+                out.putNextEntry(storedEntry(en.path, file.length(), crc));
+            } else {
+                out.putNextEntry(new ZipEntry(en.path));
+            }
             FileUtils.copyFile(file, out);
             out.closeEntry();
         }
     }
 
-    private void writeUpdated(List<IndexEntry.Updated> paths, File oldDir, File newDir, ZipOutputStream out) throws IOException {
-        for(IndexEntry.Updated en : paths) {
-            out.putNextEntry(new ZipEntry(en.path + ".gdiff"));
-            File source = new File(oldDir, en.path);
-            File target = new File(newDir, en.path);
-            computeDelta(source, target, out);
+    private Iterator<DeltaJob> fileJobs(Iterable<? extends IndexEntry> paths, File oldDir, File newDir) {
+        return Iterators.transform(paths.iterator(), new FileJobCreator(oldDir, newDir, engine));
+    }
+
+    private void writeDeltas(Iterator<? extends DeltaJob> jobs, PatchOutputStream out, ExecutorService executor) throws IOException {
+        if(1 == threads) {
+            while (jobs.hasNext()) {
+                DeltaJob job = nextJob(jobs);
+                if(compression.isStored(job.target)) {
+                    // stored entry requires size and CRC before its data
+                    writeDelta(spoolDelta(job, true, null), out);
+                } else {
+                    out.putNextEntry(new ZipEntry(job.path + ".gdiff"));
+                    job.compute(out);
+                    out.closeEntry();
+                }
+            }
+        } else {
+            // deltas are computed into temp files ahead of writer and copied into ZIP in index order
+            File tmpDir = Files.createTempDir();
+            try {
+                Iterator<ComputedDelta> deltas = transform(jobs, new DeltaComputer(tmpDir, compression), executor);
+                while (deltas.hasNext()) {
+                    writeDelta(nextDelta(deltas), out);
+                }
+            } finally {
+                FileUtils.deleteQuietly(tmpDir);
+            }
+        }
+    }
+
+    private PreparedEntry prepareIndex(DeltaIndex paths, File tmpDir) throws IOException {
+        PreparedEntry.Encoder encoder = PreparedEntry.encoder(".index_" + UUID.randomUUID().toString(), false,
+                container, compression.getLevel(), tmpDir);
+        try {
+            IndexCodec.write(paths.getAll().iterator(), encoder, indexFormat, digestAlgorithm, blockSize);
+            return encoder.finish();
+        } finally {
+            IOUtils.closeQuietly(encoder);
+        }
+    }
+
+    private PreparedEntry prepareDelta(DeltaJob job, File tmpDir) throws IOException {
+        PreparedEntry.Encoder encoder = PreparedEntry.encoder(job.path + ".gdiff", compression.isStored(job.target),
+                container, compression.getLevel(), tmpDir);
+        try {
+            job.compute(encoder);
+            return encoder.finish();
+        } finally {
+            IOUtils.closeQuietly(encoder);
+        }
+    }
+
+    private static String sourcePath(IndexEntry en) {
+        return null != en.sourcePath ? en.sourcePath : en.path;
+    }
+
+    private static void writeDelta(ComputedDelta delta, PatchOutputStream out) throws IOException {
+        try {
+            String name = delta.path + ".gdiff";
+            out.putNextEntry(delta.stored ? storedEntry(name, delta.size, delta.crc) : new ZipEntry(name));
+            FileUtils.copyFile(delta.file, out);
             out.closeEntry();
+        } finally {
+            FileUtils.deleteQuietly(delta.file);
         }
     }
 
-    private void computeDelta(File source, File target, OutputStream out) throws IOException {
-        OutputStream guarded = new NoCloseOutputStream(out);
-        GDiffWriter writer = new GDiffWriter(guarded);
-        new Delta().compute(source, target, writer);
+    private static ZipEntry storedEntry(String name, long size, long crc) {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(crc);
+        return entry;
     }
 
-    private static class Relativiser implements Function<File, String> {
-        private final String parent;
-        private final IOCase caseSensitive;
+    private <F, T> Iterator<T> transform(Iterator<F> input, Function<? super F, ? extends T> fun, ExecutorService executor) {
+        return transformOrdered(input, fun, executor, threads * 2);
+    }
 
-        private Relativiser(File parent, IOCase caseSensitive) {
-            this.parent = separatorsToUnix(parent.getPath());
-            this.caseSensitive = caseSensitive;
+    private static ComputedDelta nextDelta(Iterator<ComputedDelta> deltas) throws IOException {
+        try {
+            return deltas.next();
+        } catch (UnhandledException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    private static DeltaJob nextJob(Iterator<? extends DeltaJob> jobs) throws IOException {
+        try {
+            return jobs.next();
+        } catch (UnhandledException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    private static ComputedDelta spoolDelta(DeltaJob job, boolean stored, File tmpDir) throws IOException {
+        OutputStream out = null;
+        File delta = File.createTempFile("delta", ".gdiff", tmpDir);
+        try {
+            CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(delta)));
+            CheckedOutputStream checked = new CheckedOutputStream(counting, new CRC32());
+            out = checked;
+            job.compute(out);
+            out.close();
+            return new ComputedDelta(job.path, delta, stored, counting.getCount(), checked.getChecksum().getValue());
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(delta);
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(out);
         }
+    }
 
+    private DirDeltaCreator copy() {
+        DirDeltaCreator res = new DirDeltaCreator();
+        res.threads = threads;
+        res.hashCacheFile = hashCacheFile;
+        res.streamingIndex = streamingIndex;
+        res.indexFormat = indexFormat;
+        res.compression = compression;
+        res.container = container;
+        res.engine = engine;
+        res.renameDetection = renameDetection;
+        res.deduplication = deduplication;
+        res.pipelining = pipelining;
+        res.digestAlgorithm = digestAlgorithm;
+        res.blockSize = blockSize;
+        return res;
+    }
+
+    private static class ContentChanged implements Predicate<IndexEntry> {
         @Override
-        public String apply(File input) {
-            String path = separatorsToUnix(input.getPath());
-            // check whether actual child
-            checkArgument(parent.equals(path.substring(0, parent.length())));
-            String relative = path.substring(parent.length() + 1);
-            return caseSensitive.isCaseSensitive() ? relative : relative.toLowerCase();
+        public boolean apply(IndexEntry input) {
+            return !input.oldSha1.equals(input.newSha1);
+        }
+    }
+
+    private static class ScannedPath implements Function<DirScanner.ScannedFile, String> {
+        @Override
+        public String apply(DirScanner.ScannedFile input) {
+            return input.path;
         }
     }
 
     private static class CreatedIndexer implements Function<String, IndexEntry.Created> {
         private final File parent;
+        private final HashCache cache;
+        private final int blockSize;
+        private final StoredCrcs crcs;
 
-        private CreatedIndexer(File parent) {
+        private CreatedIndexer(File parent, HashCache cache, int blockSize, StoredCrcs crcs) {
             this.parent = parent;
+            this.cache = cache;
+            this.blockSize = blockSize;
+            this.crcs = crcs;
         }
 
         @Override
         public IndexEntry.Created apply(String path) {
-            String sha1 = computeSha1(new File(parent, path));
-            return new IndexEntry.Created(path, EMPTY_STRING, sha1);
+            File file = new File(parent, path);
+            boolean stored = crcs.isStored(file);
+            HashUtils.FileDigest digest = cache.computeDigest(file, blockSize, stored);
+            if(stored) crcs.put(path, digest.crc);
+            return new IndexEntry.Created(path, EMPTY_STRING, digest.hash, digest.blocks);
+        }
+    }
+
+    // CRC32 sums of created files written as STORED ZIP entries, computed in the same pass as hash sums,
+    // LZ4 container doesn't use CRC32 sums and compresses all created files
+    private class StoredCrcs {
+        private final Map<String, Long> crcs = new ConcurrentHashMap<String, Long>();
+
+        private boolean isStored(File file) {
+            if(PatchContainer.ZIP != container) return false;
+            try {
+                return compression.isStored(file);
+            } catch (IOException e) {
+                throw new UnhandledException(e);
+            }
+        }
+
+        private void put(String path, long crc) {
+            crcs.put(path, crc);
+        }
+
+        // null if file is written compressed
+        private Long get(String path) {
+            return crcs.get(path);
         }
     }
 
     private static class DeletedIndexer implements Function<String, IndexEntry.Deleted> {
         private final File parent;
+        private final HashCache cache;
 
-        private DeletedIndexer(File parent) {
+        private DeletedIndexer(File parent, HashCache cache) {
             this.parent = parent;
+            this.cache = cache;
         }
 
         @Override
         public IndexEntry.Deleted apply(String path) {
-            String sha1 = computeSha1(new File(parent, path));
+            String sha1 = cache.computeHash(new File(parent, path));
             return new IndexEntry.Deleted(path, sha1, EMPTY_STRING);
         }
     }
 
     private static class ExistedIndexer implements Function<String, IndexEntry> {
-        private final File oldParent;
-        private final File newParent;
+        protected final File oldParent;
+        protected final File newParent;
+        private final HashCache cache;
+        private final int blockSize;
 
-        private ExistedIndexer(File oldParent, File newParent) {
+        private ExistedIndexer(File oldParent, File newParent, HashCache cache, int blockSize) {
             this.oldParent = oldParent;
             this.newParent = newParent;
+            this.cache = cache;
+            this.blockSize = blockSize;
         }
 
         @Override
         public IndexEntry apply(String path) {
-            String oldSha1 = computeSha1(new File(oldParent, path));
-            String newSha1 = computeSha1(new File(newParent, path));
+            File oldFile = new File(oldParent, path);
+            File newFile = new File(newParent, path);
+            return index(path, oldFile, newFile, sameFile(oldFile, newFile), oldFile.length() == newFile.length());
+        }
+
+        IndexEntry index(String path, File oldFile, File newFile, boolean linked, boolean sameSize) {
+            if(blockSize > 0 && newFile.length() > blockSize) return indexBlocks(path, oldFile, newFile, linked);
+            // hard links to the same inode, read once
+            if(linked) {
+                String sha1 = cache.computeHash(oldFile);
+                cache.put(newFile, sha1);
+                return new IndexEntry.Unchanged(path, sha1, sha1);
+            }
+            // certainly updated, only hashes are required
+            if(!sameSize) {
+                return new IndexEntry.Updated(path, cache.computeHash(oldFile), cache.computeHash(newFile));
+            }
+            String oldSha1 = cache.lookup(oldFile);
+            String newSha1 = cache.lookup(newFile);
+            if(null == oldSha1 && null == newSha1) {
+                // single pass compare, identical contents are digested once
+                String[] sha1s = computeHashPair(oldFile, newFile, cache.algorithm());
+                oldSha1 = sha1s[0];
+                newSha1 = sha1s[1];
+                cache.put(oldFile, oldSha1);
+                cache.put(newFile, newSha1);
+            } else if(null == oldSha1) {
+                oldSha1 = cache.computeHash(oldFile);
+            } else if(null == newSha1) {
+                newSha1 = cache.computeHash(newFile);
+            }
             if(oldSha1.equals(newSha1)) {
                 return new IndexEntry.Unchanged(path, oldSha1, newSha1);
             } else {
                 return new IndexEntry.Updated(path, oldSha1, newSha1);
             }
         }
+
+        // blocks of new file are hashed in the same pass with it
+        private IndexEntry indexBlocks(String path, File oldFile, File newFile, boolean linked) {
+            HashUtils.FileDigest digest = cache.computeDigest(newFile, blockSize);
+            String oldSha1;
+            if(linked) {
+                oldSha1 = digest.hash;
+                cache.put(oldFile, oldSha1);
+            } else {
+                oldSha1 = cache.computeHash(oldFile);
+            }
+            if(oldSha1.equals(digest.hash)) {
+                return new IndexEntry.Unchanged(path, oldSha1, oldSha1, digest.blocks);
+            } else {
+                return new IndexEntry.Updated(path, oldSha1, digest.hash, digest.blocks);
+            }
+        }
+
+        protected static boolean sameFile(File oldFile, File newFile) {
+            try {
+                return isSameFile(oldFile.toPath(), newFile.toPath());
+            } catch (IOException e) {
+                throw new UnhandledException(e);
+            }
+        }
+    }
+
+    // attributes collected by scanner are used instead of reading them again
+    private static class ScannedIndexer extends ExistedIndexer {
+        private final Map<String, DirScanner.ScannedFile> oldFiles;
+        private final Map<String, DirScanner.ScannedFile> newFiles;
+
+        private ScannedIndexer(File oldParent, File newParent, HashCache cache, int blockSize,
+                               Map<String, DirScanner.ScannedFile> oldFiles, Map<String, DirScanner.ScannedFile> newFiles) {
+            super(oldParent, newParent, cache, blockSize);
+            this.oldFiles = oldFiles;
+            this.newFiles = newFiles;
+        }
+
+        @Override
+        public IndexEntry apply(String path) {
+            File oldFile = new File(oldParent, path);
+            File newFile = new File(newParent, path);
+            DirScanner.ScannedFile oldScanned = oldFiles.get(path);
+            DirScanner.ScannedFile newScanned = newFiles.get(path);
+            boolean linked = null != oldScanned.fileKey ? oldScanned.fileKey.equals(newScanned.fileKey) : sameFile(oldFile, newFile);
+            return index(path, oldFile, newFile, linked, oldScanned.size == newScanned.size);
+        }
+    }
+
+    private static class JoinedPath {
+        private final String path;
+        private final boolean inOld;
+        private final boolean inNew;
+        // known only for manifest entries
+        private final String oldSha1;
+
+        private JoinedPath(String path, boolean inOld, boolean inNew) {
+            this.path = path;
+            this.inOld = inOld;
+            this.inNew = inNew;
+            this.oldSha1 = null;
+        }
+
+        private JoinedPath(String path, String oldSha1, boolean inNew) {
+            this.path = path;
+            this.inOld = null != oldSha1;
+            this.inNew = inNew;
+            this.oldSha1 = oldSha1;
+        }
+    }
+
+    private static class JoinIterator extends AbstractIterator<JoinedPath> {
+        private final PeekingIterator<String> oldPaths;
+        private final PeekingIterator<String> newPaths;
+
+        private JoinIterator(Iterator<String> oldPaths, Iterator<String> newPaths) {
+            this.oldPaths = Iterators.peekingIterator(oldPaths);
+            this.newPaths = Iterators.peekingIterator(newPaths);
+        }
+
+        @Override
+        protected JoinedPath computeNext() {
+            if(!oldPaths.hasNext() && !newPaths.hasNext()) return endOfData();
+            if(!oldPaths.hasNext()) return new JoinedPath(newPaths.next(), false, true);
+            if(!newPaths.hasNext()) return new JoinedPath(oldPaths.next(), true, false);
+            int cmp = oldPaths.peek().compareTo(newPaths.peek());
+            if(cmp < 0) return new JoinedPath(oldPaths.next(), true, false);
+            if(cmp > 0) return new JoinedPath(newPaths.next(), false, true);
+            oldPaths.next();
+            return new JoinedPath(newPaths.next(), true, true);
+        }
+    }
+
+    private static class JoinedIndexer implements Function<JoinedPath, IndexEntry> {
+        private final CreatedIndexer created;
+        private final DeletedIndexer deleted;
+        private final ExistedIndexer existed;
+
+        private JoinedIndexer(File oldParent, File newParent, HashCache cache, int blockSize, StoredCrcs crcs) {
+            this.created = new CreatedIndexer(newParent, cache, blockSize, crcs);
+            this.deleted = new DeletedIndexer(oldParent, cache);
+            this.existed = new ExistedIndexer(oldParent, newParent, cache, blockSize);
+        }
+
+        @Override
+        public IndexEntry apply(JoinedPath input) {
+            if(!input.inOld) return created.apply(input.path);
+            if(!input.inNew) return deleted.apply(input.path);
+            return existed.apply(input.path);
+        }
+    }
+
+    private static class PreparedIndexEntry {
+        private final IndexEntry entry;
+        // null for entries without patch entry
+        private final PreparedEntry prepared;
+
+        private PreparedIndexEntry(IndexEntry entry, PreparedEntry prepared) {
+            this.entry = entry;
+            this.prepared = prepared;
+        }
+    }
+
+    // hash sums are computed and patch entries are encoded in the same worker
+    private class PreparingIndexer implements Function<JoinedPath, PreparedIndexEntry> {
+        private final File oldParent;
+        private final File newParent;
+        private final HashCache cache;
+        private final File tmpDir;
+        private final DeletedIndexer deleted;
+        private final ExistedIndexer existed;
+
+        private PreparingIndexer(File oldParent, File newParent, HashCache cache, File tmpDir) {
+            this.oldParent = oldParent;
+            this.newParent = newParent;
+            this.cache = cache;
+            this.tmpDir = tmpDir;
+            this.deleted = new DeletedIndexer(oldParent, cache);
+            this.existed = new ExistedIndexer(oldParent, newParent, cache, blockSize);
+        }
+
+        @Override
+        public PreparedIndexEntry apply(JoinedPath input) {
+            try {
+                if(!input.inOld) return created(input.path);
+                if(!input.inNew) return new PreparedIndexEntry(deleted.apply(input.path), null);
+                IndexEntry en = existed.apply(input.path);
+                if(!(en instanceof IndexEntry.Updated)) return new PreparedIndexEntry(en, null);
+                DeltaJob job = new FileDeltaJob(en.path, new File(oldParent, en.path), new File(newParent, en.path), engine);
+                return new PreparedIndexEntry(en, prepareDelta(job, tmpDir));
+            } catch (IOException e) {
+                throw new UnhandledException(e);
+            }
+        }
+
+        // file is read once for hash sum, block hash sums and patch entry
+        private PreparedIndexEntry created(String path) throws IOException {
+            File file = new File(newParent, path);
+            // block hash sums are not cached
+            BlockDigester blocks = blockSize > 0 && file.length() > blockSize ? new BlockDigester(digestAlgorithm, blockSize) : null;
+            String sha1 = null == blocks ? cache.lookup(file) : null;
+            PreparedEntry.Encoder encoder = PreparedEntry.encoder(path, compression.isStored(file),
+                    container, compression.getLevel(), tmpDir);
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                if(null == sha1) {
+                    DigestInputStream digesting = new DigestInputStream(in, digestAlgorithm.newDigest());
+                    ByteStreams.copy(digesting, null != blocks ? blocks.digesting(encoder) : encoder);
+                    sha1 = hex(digesting.getMessageDigest().digest());
+                    cache.put(file, sha1);
+                } else {
+                    ByteStreams.copy(in, encoder);
+                }
+                List<String> blockSums = null != blocks ? blocks.finish() : null;
+                return new PreparedIndexEntry(new IndexEntry.Created(path, EMPTY_STRING, sha1, blockSums), encoder.finish());
+            } finally {
+                IOUtils.closeQuietly(in);
+                IOUtils.closeQuietly(encoder);
+            }
+        }
+    }
+
+    private static class PreparedCollector implements Function<PreparedIndexEntry, IndexEntry> {
+        private final Map<String, PreparedEntry> prepared;
+
+        private PreparedCollector(Map<String, PreparedEntry> prepared) {
+            this.prepared = prepared;
+        }
+
+        @Override
+        public IndexEntry apply(PreparedIndexEntry input) {
+            if(null != input.prepared) prepared.put(input.entry.path, input.prepared);
+            return input.entry;
+        }
+    }
+
+    private class DeltaPreparer implements Function<DeltaJob, PreparedEntry> {
+        private final File tmpDir;
+
+        private DeltaPreparer(File tmpDir) {
+            this.tmpDir = tmpDir;
+        }
+
+        @Override
+        public PreparedEntry apply(DeltaJob job) {
+            try {
+                return prepareDelta(job, tmpDir);
+            } catch (IOException e) {
+                throw new UnhandledException(e);
+            }
+        }
+    }
+
+    private static class ComputedDelta {
+        private final String path;
+        private final File file;
+        private final boolean stored;
+        private final long size;
+        private final long crc;
+
+        private ComputedDelta(String path, File file, boolean stored, long size, long crc) {
+            this.path = path;
+            this.file = file;
+            this.stored = stored;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    private static class DeltaComputer implements Function<DeltaJob, ComputedDelta> {
+        private final File tmpDir;
+        private final CompressionPolicy compression;
+
+        private DeltaComputer(File tmpDir, CompressionPolicy compression) {
+            this.tmpDir = tmpDir;
+            this.compression = compression;
+        }
+
+        @Override
+        public ComputedDelta apply(DeltaJob job) {
+            try {
+                return spoolDelta(job, compression.isStored(job.target), tmpDir);
+            } catch (IOException e) {
+                throw new UnhandledException(e);
+            }
+        }
+    }
+
+    // delta of single file, old version is either local file or manifest entry
+    private abstract static class DeltaJob {
+        final String path;
+        final File target;
+
+        DeltaJob(String path, File target) {
+            this.path = path;
+            this.target = target;
+        }
+
+        abstract void compute(OutputStream delta) throws IOException;
+    }
+
+    private static class FileDeltaJob extends DeltaJob {
+        private final File source;
+        private final DeltaEngine engine;
+
+        private FileDeltaJob(String path, File source, File target, DeltaEngine engine) {
+            super(path, target);
+            this.source = source;
+            this.engine = engine;
+        }
+
+        @Override
+        void compute(OutputStream delta) throws IOException {
+            engine.compute(source, target, delta);
+        }
+    }
+
+    private static class SignatureDeltaJob extends DeltaJob {
+        private final ManifestEntry source;
+
+        private SignatureDeltaJob(String path, ManifestEntry source, File target) {
+            super(path, target);
+            this.source = source;
+        }
+
+        @Override
+        void compute(OutputStream delta) throws IOException {
+            new SignatureMatcher(source).compute(target, delta);
+        }
+    }
+
+    private static class FileJobCreator implements Function<IndexEntry, DeltaJob> {
+        private final File oldParent;
+        private final File newParent;
+        private final DeltaEngine engine;
+
+        private FileJobCreator(File oldParent, File newParent, DeltaEngine engine) {
+            this.oldParent = oldParent;
+            this.newParent = newParent;
+            this.engine = engine;
+        }
+
+        @Override
+        public DeltaJob apply(IndexEntry en) {
+            return new FileDeltaJob(en.path, new File(oldParent, sourcePath(en)), new File(newParent, en.path), engine);
+        }
+    }
+
+    // both updated entries and manifest are sorted, only signatures of files being processed are kept in memory;
+    // in case insensitive mode updated entries are sorted ignoring case, signatures of updated files
+    // met in manifest before their entries are kept in memory until these entries are processed
+    private static class SignatureJobIterator extends AbstractIterator<DeltaJob> {
+        private final Iterator<? extends IndexEntry> updated;
+        private final Iterator<ManifestEntry> manifest;
+        private final File newParent;
+        private final Set<String> pending = new HashSet<String>();
+        private final Map<String, ManifestEntry> skipped = new HashMap<String, ManifestEntry>();
+
+        private SignatureJobIterator(Iterable<? extends IndexEntry> updated, Iterator<ManifestEntry> manifest,
+                                     File newParent, IOCase caseSensitive) {
+            this.updated = updated.iterator();
+            this.manifest = manifest;
+            this.newParent = newParent;
+            if(!caseSensitive.isCaseSensitive()) {
+                for (IndexEntry en : updated) pending.add(en.path);
+            }
+        }
+
+        @Override
+        protected DeltaJob computeNext() {
+            if(!updated.hasNext()) return endOfData();
+            IndexEntry en = updated.next();
+            ManifestEntry found = skipped.remove(en.path);
+            while (null == found && manifest.hasNext()) {
+                ManifestEntry me = manifest.next();
+                if(en.path.equals(me.path)) {
+                    found = me;
+                } else if(pending.contains(me.path)) {
+                    skipped.put(me.path, me);
+                }
+            }
+            if(null == found) throw new IllegalStateException("Updated file: '" + en.path + "' not found in manifest");
+            return new SignatureDeltaJob(en.path, found, new File(newParent, en.path));
+        }
+    }
+
+    private static String pathKey(String path, IOCase caseSensitive) {
+        return caseSensitive.isCaseSensitive() ? path : path.toLowerCase();
+    }
+
+    // joins sorted manifest with sorted walk of new directory
+    private static class ManifestJoinIterator extends AbstractIterator<JoinedPath> {
+        private final PeekingIterator<ManifestEntry> oldEntries;
+        private final PeekingIterator<String> newPaths;
+        private final IOCase caseSensitive;
+        private String last;
+
+        private ManifestJoinIterator(Iterator<ManifestEntry> oldEntries, Iterator<String> newPaths, IOCase caseSensitive) {
+            this.oldEntries = Iterators.peekingIterator(oldEntries);
+            this.newPaths = Iterators.peekingIterator(newPaths);
+            this.caseSensitive = caseSensitive;
+        }
+
+        @Override
+        protected JoinedPath computeNext() {
+            if(!oldEntries.hasNext() && !newPaths.hasNext()) return endOfData();
+            if(!oldEntries.hasNext()) return new JoinedPath(newPaths.next(), null, true);
+            String oldKey = pathKey(oldEntries.peek().path, caseSensitive);
+            checkState(null == last || oldKey.compareTo(last) > 0, "Manifest is not sorted: '%s', '%s'", last, oldKey);
+            if(!newPaths.hasNext()) return old(oldKey, false);
+            int cmp = oldKey.compareTo(pathKey(newPaths.peek(), caseSensitive));
+            if(cmp < 0) return old(oldKey, false);
+            if(cmp > 0) return new JoinedPath(newPaths.next(), null, true);
+            newPaths.next();
+            return old(oldKey, true);
+        }
+
+        // entries present in old directory keep manifest paths
+        private JoinedPath old(String key, boolean inNew) {
+            last = key;
+            ManifestEntry en = oldEntries.next();
+            return new JoinedPath(en.path, en.sha1, inNew);
+        }
+    }
+
+    private static class ManifestIndexer implements Function<JoinedPath, IndexEntry> {
+        private final File newParent;
+        private final CreatedIndexer created;
+        private final HashCache cache;
+
+        private ManifestIndexer(File newParent, HashCache cache, StoredCrcs crcs) {
+            this.newParent = newParent;
+            this.created = new CreatedIndexer(newParent, cache, 0, crcs);
+            this.cache = cache;
+        }
+
+        @Override
+        public IndexEntry apply(JoinedPath input) {
+            if(!input.inOld) return created.apply(input.path);
+            if(!input.inNew) return new IndexEntry.Deleted(input.path, input.oldSha1, EMPTY_STRING);
+            String newSha1 = cache.computeHash(new File(newParent, input.path));
+            if(input.oldSha1.equals(newSha1)) {
+                return new IndexEntry.Unchanged(input.path, input.oldSha1, newSha1);
+            } else {
+                return new IndexEntry.Updated(input.path, input.oldSha1, newSha1);
+            }
+        }
     }
 }
@@ -0,0 +1,399 @@
+package com.alexkasko.delta;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.nothome.delta.GDiffPatcher;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.UnhandledException;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static com.alexkasko.delta.HashUtils.computeHash;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Squashes consecutive patches into single patch that transforms directory the same way as applying
+ * all of them one by one. Intermediate versions of directory are not required: state of every file
+ * is tracked as old file (with composed GDIFF delta) or as content taken from patches, deltas
+ * of subsequent updates are composed with {@link GdiffComposer}. Patches entries are extracted into
+ * temporary directory, state of all files is kept in memory.
+ * Squashing fails if file of old version is replaced with contents of other old file, such
+ * change cannot be expressed with single patch.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+public class DirPatchSquasher {
+    private static final String EMPTY_STRING = "";
+
+    private IndexFormat indexFormat = IndexFormat.JSON;
+    private CompressionPolicy compression = new CompressionPolicy();
+    private PatchContainer container = PatchContainer.ZIP;
+
+    /**
+     * Returns squasher that writes '.index' file in specified format, this instance is not changed
+     *
+     * @param indexFormat index format, {@link IndexFormat#JSON} by default
+     * @return squasher with specified index format
+     */
+    public DirPatchSquasher withIndexFormat(IndexFormat indexFormat) {
+        checkArgument(null != indexFormat, "Provided index format is null");
+        DirPatchSquasher res = copy();
+        res.indexFormat = indexFormat;
+        return res;
+    }
+
+    /**
+     * Returns squasher that compresses patch entries with deflate level of specified policy,
+     * deltas and created files are always compressed, this instance is not changed
+     *
+     * @param compression compression policy, default deflate level by default
+     * @return squasher with specified compression policy
+     */
+    public DirPatchSquasher withCompression(CompressionPolicy compression) {
+        checkArgument(null != compression, "Provided compression policy is null");
+        DirPatchSquasher res = copy();
+        res.compression = compression;
+        return res;
+    }
+
+    /**
+     * Returns squasher that writes patch in specified container, this instance is not changed
+     *
+     * @param container patch container, {@link PatchContainer#ZIP} by default
+     * @return squasher with specified patch container
+     */
+    public DirPatchSquasher withContainer(PatchContainer container) {
+        checkArgument(null != container, "Provided patch container is null");
+        DirPatchSquasher res = copy();
+        res.container = container;
+        return res;
+    }
+
+    /**
+     * Squashes patches into patch file
+     *
+     * @param patches patches (ZIP or LZ4) in order of application
+     * @param outFile file to write squashed patch into
+     * @throws IOException on any io or consistency problem
+     */
+    public void squash(List<File> patches, File outFile) throws IOException {
+        OutputStream out = null;
+        try {
+            out = FileUtils.openOutputStream(outFile);
+            squash(patches, out);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Writes squashed patch into provided output stream
+     *
+     * @param patches patches (ZIP or LZ4) in order of application
+     * @param patch output stream to write patch into
+     * @throws IOException on any io or consistency problem
+     */
+    public void squash(List<File> patches, OutputStream patch) throws IOException {
+        checkArgument(null != patches && patches.size() > 0, "Provided patches list is empty");
+        File tmpDir = Files.createTempDir();
+        try {
+            State state = new State(tmpDir);
+            for (File fi : patches) {
+                if(!(null != fi && fi.isFile())) throw new IOException("Bad patch argument: " + fi);
+                state.apply(extract(fi, tmpDir));
+            }
+            write(state, patch);
+        } finally {
+            FileUtils.deleteQuietly(tmpDir);
+        }
+    }
+
+    private void write(State state, OutputStream patch) throws IOException {
+        SortedMap<String, Node> files = new TreeMap<String, Node>(state.files);
+        List<IndexEntry.Unchanged> unchanged = new ArrayList<IndexEntry.Unchanged>();
+        List<IndexEntry.CopiedFrom> copied = new ArrayList<IndexEntry.CopiedFrom>();
+        List<IndexEntry.Moved> moved = new ArrayList<IndexEntry.Moved>();
+        List<IndexEntry.Created> created = new ArrayList<IndexEntry.Created>();
+        List<IndexEntry.Duplicated> duplicated = new ArrayList<IndexEntry.Duplicated>();
+        List<IndexEntry.Updated> updated = new ArrayList<IndexEntry.Updated>();
+        List<IndexEntry.Deleted> deleted = new ArrayList<IndexEntry.Deleted>();
+        Map<String, File> entries = new HashMap<String, File>();
+        Set<String> movedSources = new HashSet<String>();
+        Map<String, String> createdByHash = new HashMap<String, String>();
+        for (Map.Entry<String, Node> en : files.entrySet()) {
+            String path = en.getKey();
+            Node node = en.getValue();
+            String oldSha1 = state.originals.get(path);
+            if(null != node.content) {
+                if(node.sha1.equals(oldSha1)) {
+                    unchanged.add(new IndexEntry.Unchanged(path, oldSha1, oldSha1));
+                } else if(null != oldSha1) {
+                    // old file contents are unknown, whole file is written as delta
+                    updated.add(new IndexEntry.Updated(path, oldSha1, node.sha1));
+                    entries.put(path + ".gdiff", dataDelta(node.content, state.tmpDir));
+                } else if(createdByHash.containsKey(node.sha1)) {
+                    duplicated.add(new IndexEntry.Duplicated(path, createdByHash.get(node.sha1), EMPTY_STRING, node.sha1));
+                } else {
+                    createdByHash.put(node.sha1, path);
+                    created.add(new IndexEntry.Created(path, EMPTY_STRING, node.sha1));
+                    entries.put(path, node.content);
+                }
+            } else if(node.origin.equals(path)) {
+                if(null == node.delta) {
+                    unchanged.add(new IndexEntry.Unchanged(path, oldSha1, oldSha1));
+                } else {
+                    updated.add(new IndexEntry.Updated(path, oldSha1, node.sha1));
+                    entries.put(path + ".gdiff", node.delta);
+                }
+            } else {
+                if(null != oldSha1) throw new IOException("Cannot squash patches: file '" + path +
+                        "' is replaced with contents of file '" + node.origin + "', apply patches one by one");
+                String sourceSha1 = state.originals.get(node.origin);
+                if(null != node.delta) entries.put(path + ".gdiff", node.delta);
+                // the first relocation of deleted file is a move, copies are applied before moves
+                if(!files.containsKey(node.origin) && movedSources.add(node.origin)) {
+                    moved.add(new IndexEntry.Moved(path, node.origin, sourceSha1, node.sha1));
+                } else {
+                    copied.add(new IndexEntry.CopiedFrom(path, node.origin, sourceSha1, node.sha1));
+                }
+            }
+        }
+        for (Map.Entry<String, String> en : new TreeMap<String, String>(state.originals).entrySet()) {
+            if(!files.containsKey(en.getKey()) && !movedSources.contains(en.getKey())) {
+                deleted.add(new IndexEntry.Deleted(en.getKey(), en.getValue(), EMPTY_STRING));
+            }
+        }
+        DeltaIndex index = new DeltaIndex(created, deleted, updated, unchanged, moved, copied, duplicated);
+        PatchOutputStream out = PatchOutputStream.open(new BufferedOutputStream(patch), container, compression.getLevel());
+        out.putNextEntry(new ZipEntry(".index_" + UUID.randomUUID().toString()));
+        IndexCodec.write(index.getAll(), out, indexFormat, state.algorithm);
+        out.closeEntry();
+        // entries order is the same as in created patches
+        for (IndexEntry en : ImmutableList.<IndexEntry>builder().addAll(copied).addAll(moved).build()) {
+            if(!en.oldSha1.equals(en.newSha1)) writeEntry(en.path + ".gdiff", entries, out);
+        }
+        for (IndexEntry en : created) {
+            writeEntry(en.path, entries, out);
+        }
+        for (IndexEntry en : updated) {
+            writeEntry(en.path + ".gdiff", entries, out);
+        }
+        out.close();
+    }
+
+    private static void writeEntry(String name, Map<String, File> entries, PatchOutputStream out) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        FileUtils.copyFile(entries.get(name), out);
+        out.closeEntry();
+    }
+
+    private static File dataDelta(File content, File tmpDir) throws IOException {
+        File delta = File.createTempFile("delta", ".gdiff", tmpDir);
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(delta));
+            GdiffComposer.writeData(content, out);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        return delta;
+    }
+
+    // index and entries of patch are extracted into temp files
+    private static Patch extract(File patch, File tmpDir) throws IOException {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(patch));
+            if(Lz4ContainerInputStream.isContainer(in)) {
+                Lz4ContainerInputStream lis = new Lz4ContainerInputStream(in);
+                checkIndexName(lis.getNextEntry(), patch);
+                IndexCodec.Entries index = IndexCodec.read(lis);
+                List<IndexEntry> indexEntries = ImmutableList.copyOf(index);
+                Map<String, File> entries = new HashMap<String, File>();
+                for (String name = lis.getNextEntry(); null != name; name = lis.getNextEntry()) {
+                    entries.put(name, spool(lis, tmpDir));
+                }
+                return new Patch(patch, indexEntries, index.algorithm, entries);
+            } else {
+                ZipInputStream zis = new ZipInputStream(in);
+                ZipEntry indexEntry = zis.getNextEntry();
+                checkIndexName(null != indexEntry ? indexEntry.getName() : null, patch);
+                IndexCodec.Entries index = IndexCodec.read(zis);
+                List<IndexEntry> indexEntries = ImmutableList.copyOf(index);
+                Map<String, File> entries = new HashMap<String, File>();
+                for (ZipEntry en = zis.getNextEntry(); null != en; en = zis.getNextEntry()) {
+                    entries.put(en.getName(), spool(zis, tmpDir));
+                }
+                return new Patch(patch, indexEntries, index.algorithm, entries);
+            }
+        } catch (UnhandledException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static void checkIndexName(String name, File patch) throws IOException {
+        if(null == name || !name.startsWith(".index")) throw new IOException(
+                "Unexpected index file name: '" + name + "' in patch: '" + patch + "', must start with '.index'");
+    }
+
+    private static File spool(InputStream in, File tmpDir) throws IOException {
+        File file = File.createTempFile("entry", ".tmp", tmpDir);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            IOUtils.copyLarge(in, out);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        return file;
+    }
+
+    private DirPatchSquasher copy() {
+        DirPatchSquasher res = new DirPatchSquasher();
+        res.indexFormat = indexFormat;
+        res.compression = compression;
+        res.container = container;
+        return res;
+    }
+
+    private static class Patch {
+        private final File file;
+        private final DeltaIndex index;
+        private final DigestAlgorithm algorithm;
+        private final Map<String, File> entries;
+
+        private Patch(File file, List<IndexEntry> index, DigestAlgorithm algorithm, Map<String, File> entries) {
+            this.file = file;
+            this.index = DeltaIndex.partition(index);
+            this.algorithm = algorithm;
+            this.entries = entries;
+        }
+
+        File entry(String name) throws IOException {
+            File res = entries.get(name);
+            if(null == res) throw new IOException("Entry: '" + name + "' not found in patch: '" + file + "'");
+            return res;
+        }
+    }
+
+    // contents of file, either old file with optional delta or content from patch
+    private static class Node {
+        private final String sha1;
+        private final String origin;
+        private final File delta;
+        private final File content;
+
+        private Node(String sha1, String origin, File delta, File content) {
+            this.sha1 = sha1;
+            this.origin = origin;
+            this.delta = delta;
+            this.content = content;
+        }
+    }
+
+    // version of directory after applied patches expressed through its old version
+    private static class State {
+        private final File tmpDir;
+        private final Map<String, String> originals = new HashMap<String, String>();
+        private final Set<String> seen = new HashSet<String>();
+        private Map<String, Node> files = new HashMap<String, Node>();
+        // algorithm of the first patch, all patches must use the same one
+        private DigestAlgorithm algorithm;
+
+        private State(File tmpDir) {
+            this.tmpDir = tmpDir;
+        }
+
+        // entries are applied in the same order as by patcher
+        void apply(Patch patch) throws IOException {
+            if(null == algorithm) algorithm = patch.algorithm;
+            if(algorithm != patch.algorithm) throw new IOException("Cannot squash patches: patch '" + patch.file +
+                    "' uses digest algorithm: '" + patch.algorithm + "', expected: '" + algorithm + "'");
+            DeltaIndex index = patch.index;
+            // old files are checked and registered before changes
+            for (IndexEntry en : index.getAll()) {
+                if(IndexEntry.State.CREATED != en.state && IndexEntry.State.DUPLICATED != en.state) {
+                    node(null != en.sourcePath ? en.sourcePath : en.path, en.oldSha1);
+                }
+            }
+            Map<String, Node> res = new HashMap<String, Node>(files);
+            for (IndexEntry en : index.unchanged) {
+                res.put(en.path, node(en.path, en.oldSha1));
+            }
+            for (IndexEntry en : index.copied) {
+                res.put(en.path, relocate(en, patch));
+            }
+            for (IndexEntry en : index.moved) {
+                res.put(en.path, relocate(en, patch));
+                res.remove(en.sourcePath);
+            }
+            for (IndexEntry en : index.created) {
+                res.put(en.path, new Node(en.newSha1, null, null, patch.entry(en.path)));
+            }
+            for (IndexEntry en : index.duplicated) {
+                Node source = res.get(en.sourcePath);
+                if(null == source) throw new IOException("DUPLICATED source file: '" + en.sourcePath + "' not found");
+                res.put(en.path, source);
+            }
+            for (IndexEntry en : index.updated) {
+                res.put(en.path, patch(node(en.path, en.oldSha1), patch.entry(en.path + ".gdiff"), en.newSha1));
+            }
+            for (IndexEntry en : index.deleted) {
+                res.remove(en.path);
+            }
+            files = res;
+            seen.addAll(res.keySet());
+        }
+
+        private Node relocate(IndexEntry en, Patch patch) throws IOException {
+            Node source = node(en.sourcePath, en.oldSha1);
+            if(en.oldSha1.equals(en.newSha1)) return source;
+            return patch(source, patch.entry(en.path + ".gdiff"), en.newSha1);
+        }
+
+        // state of file before current patch, files not touched by previous patches are old ones
+        private Node node(String path, String sha1) throws IOException {
+            Node res = files.get(path);
+            if(null == res) {
+                if(seen.contains(path)) throw new IOException("Patches are not consecutive, file: '" + path + "' doesn't exist");
+                originals.put(path, sha1);
+                seen.add(path);
+                res = new Node(sha1, path, null, null);
+                files.put(path, res);
+            }
+            if(!res.sha1.equals(sha1)) throw new IOException("Patches are not consecutive, file: '" + path +
+                    "' hash sum: '" + res.sha1 + "', expected: '" + sha1 + "'");
+            return res;
+        }
+
+        private Node patch(Node base, File delta, String sha1) throws IOException {
+            if(null != base.content) {
+                File patched = File.createTempFile("content", ".tmp", tmpDir);
+                new GDiffPatcher().patch(base.content, delta, patched);
+                String actual = computeHash(patched, algorithm);
+                if(!actual.equals(sha1)) throw new IOException("Patched file hash sum: '" + actual + "', expected: '" + sha1 + "'");
+                return new Node(sha1, null, null, patched);
+            }
+            // reverted to old version
+            if(sha1.equals(originals.get(base.origin))) return new Node(sha1, base.origin, null, null);
+            if(null == base.delta) return new Node(sha1, base.origin, delta, null);
+            File composed = File.createTempFile("delta", ".gdiff", tmpDir);
+            OutputStream out = null;
+            try {
+                out = new BufferedOutputStream(new FileOutputStream(composed));
+                GdiffComposer.compose(base.delta, delta, out);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+            return new Node(sha1, base.origin, composed, null);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.alexkasko.delta;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.nothome.delta.GDiffWriter;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.Arrays;
+
+import static com.nothome.delta.GDiffWriter.*;
+
+/**
+ * Composes two consecutive GDIFF deltas into single delta without intermediate file:
+ * copies of the second delta are resolved through commands of the first delta into copies
+ * from the source file and data of the first delta. Commands of the first delta are kept
+ * in memory (21 bytes per command), data is read from the first delta file on demand.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class GdiffComposer {
+    private static final int MAGIC = 0xd1ffd1ff;
+    private static final int VERSION = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // segments of intermediate file, sorted by offset
+    private long[] offsets = new long[1024];
+    private long[] sources = new long[1024];
+    private int[] lengths = new int[1024];
+    private boolean[] data = new boolean[1024];
+    private int count = 0;
+    private long size = 0;
+    private long copyOffset = 0;
+    private long copyLength = 0;
+
+    /**
+     * Composes deltas, resulting delta transforms source of the first delta into target of the second one
+     *
+     * @param first delta from source to intermediate file
+     * @param second delta from intermediate to target file
+     * @param out stream to write composed delta into, won't be closed
+     * @throws IOException on io error or invalid delta
+     */
+    static void compose(File first, File second, OutputStream out) throws IOException {
+        new GdiffComposer().composeDeltas(first, second, out);
+    }
+
+    /**
+     * Writes GDIFF delta that contains whole specified file as data
+     *
+     * @param content file contents
+     * @param out stream to write delta into, won't be closed
+     * @throws IOException on io error
+     */
+    static void writeData(File content, OutputStream out) throws IOException {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(content), BUFFER_SIZE);
+            GDiffWriter writer = new GDiffWriter(new NoCloseOutputStream(out));
+            for (int b = in.read(); b >= 0; b = in.read()) {
+                writer.addData((byte) b);
+            }
+            writer.close();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void composeDeltas(File first, File second, OutputStream out) throws IOException {
+        readSegments(first);
+        DataInputStream in = null;
+        RandomAccessFile firstData = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(second), BUFFER_SIZE));
+            firstData = new RandomAccessFile(first, "r");
+            readHeader(in);
+            GDiffWriter writer = new GDiffWriter(new NoCloseOutputStream(out));
+            byte[] buf = new byte[BUFFER_SIZE];
+            for (int cmd = in.readUnsignedByte(); EOF != cmd; cmd = in.readUnsignedByte()) {
+                if(cmd <= DATA_INT) {
+                    flushCopy(writer);
+                    int len = dataLength(cmd, in);
+                    for (int i = 0; i < len; i++) {
+                        writer.addData(in.readByte());
+                    }
+                } else {
+                    long offset = copyOffset(cmd, in);
+                    int len = copyLength(cmd, in);
+                    resolveCopy(offset, len, writer, firstData, buf);
+                }
+            }
+            flushCopy(writer);
+            writer.close();
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(firstData);
+        }
+    }
+
+    private void readSegments(File first) throws IOException {
+        CountingInputStream counting = null;
+        try {
+            counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(first), BUFFER_SIZE));
+            DataInputStream in = new DataInputStream(counting);
+            readHeader(in);
+            for (int cmd = in.readUnsignedByte(); EOF != cmd; cmd = in.readUnsignedByte()) {
+                if(cmd <= DATA_INT) {
+                    int len = dataLength(cmd, in);
+                    addSegment(len, counting.getCount(), true);
+                    ByteStreams.skipFully(in, len);
+                } else {
+                    long offset = copyOffset(cmd, in);
+                    addSegment(copyLength(cmd, in), offset, false);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(counting);
+        }
+    }
+
+    private void addSegment(int length, long source, boolean isData) throws IOException {
+        if(length <= 0) throw new IOException("Invalid GDIFF command length: " + length);
+        if(count == offsets.length) {
+            int cap = count * 2;
+            offsets = Arrays.copyOf(offsets, cap);
+            sources = Arrays.copyOf(sources, cap);
+            lengths = Arrays.copyOf(lengths, cap);
+            data = Arrays.copyOf(data, cap);
+        }
+        offsets[count] = size;
+        sources[count] = source;
+        lengths[count] = length;
+        data[count] = isData;
+        count += 1;
+        size += length;
+    }
+
+    private void resolveCopy(long offset, int length, GDiffWriter writer, RandomAccessFile firstData, byte[] buf) throws IOException {
+        if(offset < 0 || length <= 0 || offset + length > size) {
+            throw new IOException("GDIFF copy out of intermediate file bounds, offset: " + offset + ", length: " + length);
+        }
+        int idx = Arrays.binarySearch(offsets, 0, count, offset);
+        if(idx < 0) idx = -idx - 2;
+        long pos = offset;
+        long remaining = length;
+        while (remaining > 0) {
+            long shift = pos - offsets[idx];
+            int len = (int) Math.min(remaining, lengths[idx] - shift);
+            if(data[idx]) {
+                flushCopy(writer);
+                firstData.seek(sources[idx] + shift);
+                for (int done = 0; done < len; ) {
+                    int chunk = Math.min(len - done, buf.length);
+                    firstData.readFully(buf, 0, chunk);
+                    for (int i = 0; i < chunk; i++) {
+                        writer.addData(buf[i]);
+                    }
+                    done += chunk;
+                }
+            } else {
+                long source = sources[idx] + shift;
+                if(copyLength > 0 && copyOffset + copyLength != source) flushCopy(writer);
+                if(0 == copyLength) copyOffset = source;
+                copyLength += len;
+            }
+            pos += len;
+            remaining -= len;
+            idx += 1;
+        }
+    }
+
+    // adjacent copies are merged
+    private void flushCopy(GDiffWriter writer) throws IOException {
+        while (copyLength > 0) {
+            int chunk = (int) Math.min(copyLength, Integer.MAX_VALUE);
+            writer.addCopy(copyOffset, chunk);
+            copyOffset += chunk;
+            copyLength -= chunk;
+        }
+    }
+
+    private static void readHeader(DataInputStream in) throws IOException {
+        if(MAGIC != in.readInt()) throw new IOException("Invalid GDIFF magic");
+        int version = in.readUnsignedByte();
+        if(VERSION != version) throw new IOException("Unsupported GDIFF version: " + version);
+    }
+
+    private static int dataLength(int cmd, DataInputStream in) throws IOException {
+        if(cmd <= DATA_MAX) return cmd;
+        if(DATA_USHORT == cmd) return in.readUnsignedShort();
+        return in.readInt();
+    }
+
+    private static long copyOffset(int cmd, DataInputStream in) throws IOException {
+        switch (cmd) {
+            case COPY_USHORT_UBYTE:
+            case COPY_USHORT_USHORT:
+            case COPY_USHORT_INT: return in.readUnsignedShort();
+            case COPY_INT_UBYTE:
+            case COPY_INT_USHORT:
+            case COPY_INT_INT: return in.readInt() & 0xffffffffL;
+            default: return in.readLong();
+        }
+    }
+
+    private static int copyLength(int cmd, DataInputStream in) throws IOException {
+        switch (cmd) {
+            case COPY_USHORT_UBYTE:
+            case COPY_INT_UBYTE: return in.readUnsignedByte();
+            case COPY_USHORT_USHORT:
+            case COPY_INT_USHORT: return in.readUnsignedShort();
+            default: return in.readInt();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.alexkasko.delta;
+
+/**
+ * Patch file containers, patcher detects container automatically
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+public enum PatchContainer {
+    /**
+     * ZIP file with deflated or stored entries, readable by all patcher versions
+     */
+    ZIP,
+    /**
+     * Sequential container with LZ4 compressed blocks, much faster to decompress than ZIP,
+     * cannot be read by patchers before 1.1.4 and doesn't support random access
+     */
+    LZ4
+}
@@ -0,0 +1,99 @@
+package com.alexkasko.delta;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Entries writer for patch container, entries are described with {@link ZipEntry} for all containers,
+ * STORED entries are written without compression
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+abstract class PatchOutputStream extends FilterOutputStream {
+
+    private PatchOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Opens patch writer
+     *
+     * @param out output stream, will be closed on writer close
+     * @param container patch container
+     * @param level deflate level for ZIP container
+     * @return patch writer
+     * @throws IOException on io error
+     */
+    static PatchOutputStream open(OutputStream out, PatchContainer container, int level) throws IOException {
+        switch (container) {
+            case ZIP:
+                ZipOutputStream zip = new ZipOutputStream(out);
+                zip.setLevel(level);
+                return new Zip(zip);
+            case LZ4: return new Lz4(new Lz4ContainerOutputStream(out));
+            default: throw new IllegalArgumentException("Unsupported patch container: " + container);
+        }
+    }
+
+    /**
+     * Starts new entry
+     *
+     * @param entry entry description
+     * @throws IOException on io error
+     */
+    abstract void putNextEntry(ZipEntry entry) throws IOException;
+
+    /**
+     * Closes current entry
+     *
+     * @throws IOException on io error
+     */
+    abstract void closeEntry() throws IOException;
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    private static class Zip extends PatchOutputStream {
+        private final ZipOutputStream zip;
+
+        private Zip(ZipOutputStream zip) {
+            super(zip);
+            this.zip = zip;
+        }
+
+        @Override
+        void putNextEntry(ZipEntry entry) throws IOException {
+            zip.putNextEntry(entry);
+        }
+
+        @Override
+        void closeEntry() throws IOException {
+            zip.closeEntry();
+        }
+    }
+
+    private static class Lz4 extends PatchOutputStream {
+        private final Lz4ContainerOutputStream lz4;
+
+        private Lz4(Lz4ContainerOutputStream lz4) {
+            super(lz4);
+            this.lz4 = lz4;
+        }
+
+        @Override
+        void putNextEntry(ZipEntry entry) throws IOException {
+            lz4.putNextEntry(entry.getName(), ZipEntry.STORED != entry.getMethod());
+        }
+
+        @Override
+        void closeEntry() throws IOException {
+            lz4.closeEntry();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.alexkasko.delta;
+
+import com.google.common.io.CountingOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Patch entry encoded ahead of patch writing: deflated for ZIP container or split into blocks for LZ4 container.
+ * Entries are encoded by worker threads into temp files and copied into patch as is by {@link PreparedPatchWriter}
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class PreparedEntry {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    final String name;
+    final File file;
+    final boolean stored;
+    final long crc;
+    final long size;
+    final long compressedSize;
+
+    private PreparedEntry(String name, File file, boolean stored, long crc, long size, long compressedSize) {
+        this.name = name;
+        this.file = file;
+        this.stored = stored;
+        this.crc = crc;
+        this.size = size;
+        this.compressedSize = compressedSize;
+    }
+
+    /**
+     * Opens encoder stream that writes entry data into temp file
+     *
+     * @param name entry name
+     * @param stored whether entry should be written without compression
+     * @param container patch container
+     * @param level deflate level for ZIP container
+     * @param tmpDir directory for temp file
+     * @return encoder, {@link Encoder#finish()} must be called after data is written
+     * @throws IOException on io error
+     */
+    static Encoder encoder(String name, boolean stored, PatchContainer container, int level, File tmpDir) throws IOException {
+        File file = File.createTempFile("entry", ".bin", tmpDir);
+        return new Encoder(name, file, stored, container, level);
+    }
+
+    /**
+     * Deletes temp file
+     */
+    void delete() {
+        FileUtils.deleteQuietly(file);
+    }
+
+    /**
+     * Entry data encoder, data written into it is counted, checksummed and compressed
+     */
+    static class Encoder extends FilterOutputStream {
+        private final String name;
+        private final File file;
+        private final boolean stored;
+        private final Deflater deflater;
+        private final CountingOutputStream encoded;
+        private final CountingOutputStream raw;
+        private final CRC32 crc = new CRC32();
+        private boolean finished = false;
+
+        private Encoder(String name, File file, boolean stored, PatchContainer container, int level) throws IOException {
+            super(null);
+            this.name = name;
+            this.file = file;
+            this.stored = stored;
+            this.encoded = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+            final OutputStream compressing;
+            if(PatchContainer.LZ4 == container) {
+                this.deflater = null;
+                compressing = Lz4ContainerOutputStream.blockEncoder(encoded, !stored);
+            } else if(stored) {
+                this.deflater = null;
+                compressing = encoded;
+            } else {
+                // raw deflate stream, the same as in ZIP entries
+                this.deflater = new Deflater(level, true);
+                compressing = new DeflaterOutputStream(encoded, deflater, BUFFER_SIZE);
+            }
+            this.raw = new CountingOutputStream(new CheckedOutputStream(compressing, crc));
+            this.out = raw;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        /**
+         * Finishes encoding, unfinished encoder should be closed to delete temp file
+         *
+         * @return prepared entry
+         * @throws IOException on io error
+         */
+        PreparedEntry finish() throws IOException {
+            raw.close();
+            finished = true;
+            if(null != deflater) deflater.end();
+            return new PreparedEntry(name, file, stored, crc.getValue(), raw.getCount(), encoded.getCount());
+        }
+
+        /**
+         * Discards entry if it is not finished, temp file is deleted
+         */
+        @Override
+        public void close() {
+            if(finished) return;
+            IOUtils.closeQuietly(raw);
+            if(null != deflater) deflater.end();
+            FileUtils.deleteQuietly(file);
+        }
+    }
+}
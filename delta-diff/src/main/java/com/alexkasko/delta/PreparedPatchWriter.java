@@ -0,0 +1,252 @@
+package com.alexkasko.delta;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Writes entries prepared by {@link PreparedEntry} into patch container copying their encoded data as is,
+ * so writer thread doesn't compress anything. ZIP container is written without {@link java.util.zip.ZipOutputStream}
+ * that cannot accept deflated data: entries have sizes and CRC in local headers, ZIP64 extensions are used
+ * for large entries and archives. Writer is not thread-safe.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+abstract class PreparedPatchWriter implements Closeable {
+
+    /**
+     * Opens patch writer
+     *
+     * @param out output stream, should be buffered, will be closed on writer close
+     * @param container patch container
+     * @return patch writer
+     * @throws IOException on io error
+     */
+    static PreparedPatchWriter open(OutputStream out, PatchContainer container) throws IOException {
+        switch (container) {
+            case ZIP: return new Zip(out);
+            case LZ4: return new Lz4(new Lz4ContainerOutputStream(out));
+            default: throw new IllegalArgumentException("Unsupported patch container: " + container);
+        }
+    }
+
+    /**
+     * Copies entry into patch and deletes its temp file
+     *
+     * @param entry prepared entry
+     * @throws IOException on io error
+     */
+    void write(PreparedEntry entry) throws IOException {
+        try {
+            writeEntry(entry);
+        } finally {
+            entry.delete();
+        }
+    }
+
+    abstract void writeEntry(PreparedEntry entry) throws IOException;
+
+    private static class Lz4 extends PreparedPatchWriter {
+        private final Lz4ContainerOutputStream lz4;
+
+        private Lz4(Lz4ContainerOutputStream lz4) {
+            this.lz4 = lz4;
+        }
+
+        @Override
+        void writeEntry(PreparedEntry entry) throws IOException {
+            InputStream blocks = new FileInputStream(entry.file);
+            try {
+                lz4.putEncodedEntry(entry.name, blocks);
+            } finally {
+                IOUtils.closeQuietly(blocks);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            lz4.close();
+        }
+    }
+
+    private static class Zip extends PreparedPatchWriter {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+        private static final long LOCAL_HEADER = 0x04034b50L;
+        private static final long CENTRAL_HEADER = 0x02014b50L;
+        private static final long END_HEADER = 0x06054b50L;
+        private static final long ZIP64_END_HEADER = 0x06064b50L;
+        private static final long ZIP64_LOCATOR = 0x07064b50L;
+        private static final int ZIP64_EXTRA = 0x0001;
+        private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+        private static final int ZIP64_COUNT_MAGIC = 0xFFFF;
+        private static final int VERSION = 20;
+        private static final int ZIP64_VERSION = 45;
+        // names are UTF-8
+        private static final int FLAGS = 0x0800;
+        private static final int STORED = 0;
+        private static final int DEFLATED = 8;
+
+        private final CountingOutputStream out;
+        private final List<CentralEntry> entries = new ArrayList<CentralEntry>();
+        private final long dosTime = dosTime(System.currentTimeMillis());
+
+        private Zip(OutputStream out) {
+            this.out = new CountingOutputStream(out);
+        }
+
+        @Override
+        void writeEntry(PreparedEntry entry) throws IOException {
+            byte[] name = entry.name.getBytes(UTF8);
+            int method = entry.stored ? STORED : DEFLATED;
+            long offset = out.getCount();
+            boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+            writeInt(LOCAL_HEADER);
+            writeShort(zip64 ? ZIP64_VERSION : VERSION);
+            writeShort(FLAGS);
+            writeShort(method);
+            writeInt(dosTime);
+            writeInt(entry.crc);
+            writeInt(zip64 ? ZIP64_MAGIC : entry.compressedSize);
+            writeInt(zip64 ? ZIP64_MAGIC : entry.size);
+            writeShort(name.length);
+            writeShort(zip64 ? 20 : 0);
+            out.write(name);
+            if(zip64) {
+                writeShort(ZIP64_EXTRA);
+                writeShort(16);
+                writeLong(entry.size);
+                writeLong(entry.compressedSize);
+            }
+            Files.copy(entry.file, out);
+            entries.add(new CentralEntry(name, method, entry.crc, entry.size, entry.compressedSize, offset));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                long start = out.getCount();
+                for (CentralEntry en : entries) {
+                    writeCentral(en);
+                }
+                long end = out.getCount();
+                long size = end - start;
+                boolean zip64 = entries.size() >= ZIP64_COUNT_MAGIC || size >= ZIP64_MAGIC || start >= ZIP64_MAGIC;
+                if(zip64) {
+                    writeInt(ZIP64_END_HEADER);
+                    writeLong(44);
+                    writeShort(ZIP64_VERSION);
+                    writeShort(ZIP64_VERSION);
+                    writeInt(0);
+                    writeInt(0);
+                    writeLong(entries.size());
+                    writeLong(entries.size());
+                    writeLong(size);
+                    writeLong(start);
+                    writeInt(ZIP64_LOCATOR);
+                    writeInt(0);
+                    writeLong(end);
+                    writeInt(1);
+                }
+                writeInt(END_HEADER);
+                writeShort(0);
+                writeShort(0);
+                writeShort(Math.min(entries.size(), ZIP64_COUNT_MAGIC));
+                writeShort(Math.min(entries.size(), ZIP64_COUNT_MAGIC));
+                writeInt(Math.min(size, ZIP64_MAGIC));
+                writeInt(Math.min(start, ZIP64_MAGIC));
+                writeShort(0);
+                out.flush();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeCentral(CentralEntry en) throws IOException {
+            boolean bigSize = en.size >= ZIP64_MAGIC;
+            boolean bigCompressed = en.compressedSize >= ZIP64_MAGIC;
+            boolean bigOffset = en.offset >= ZIP64_MAGIC;
+            // ZIP64 extra contains only fields that don't fit into header
+            int extra = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+            boolean zip64 = extra > 0;
+            writeInt(CENTRAL_HEADER);
+            writeShort(zip64 ? ZIP64_VERSION : VERSION);
+            writeShort(zip64 ? ZIP64_VERSION : VERSION);
+            writeShort(FLAGS);
+            writeShort(en.method);
+            writeInt(dosTime);
+            writeInt(en.crc);
+            writeInt(bigCompressed ? ZIP64_MAGIC : en.compressedSize);
+            writeInt(bigSize ? ZIP64_MAGIC : en.size);
+            writeShort(en.name.length);
+            writeShort(zip64 ? extra + 4 : 0);
+            // comment length, disk number, internal and external attributes
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(bigOffset ? ZIP64_MAGIC : en.offset);
+            out.write(en.name);
+            if(zip64) {
+                writeShort(ZIP64_EXTRA);
+                writeShort(extra);
+                if(bigSize) writeLong(en.size);
+                if(bigCompressed) writeLong(en.compressedSize);
+                if(bigOffset) writeLong(en.offset);
+            }
+        }
+
+        private void writeShort(int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >>> 8) & 0xff);
+        }
+
+        private void writeInt(long value) throws IOException {
+            writeShort((int) (value & 0xffff));
+            writeShort((int) ((value >>> 16) & 0xffff));
+        }
+
+        private void writeLong(long value) throws IOException {
+            writeInt(value & 0xffffffffL);
+            writeInt(value >>> 32);
+        }
+
+        private static long dosTime(long millis) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(millis);
+            int year = cal.get(Calendar.YEAR);
+            if(year < 1980) return (1 << 21) | (1 << 16);
+            return ((long) (year - 1980) << 25) | ((cal.get(Calendar.MONTH) + 1) << 21) |
+                    (cal.get(Calendar.DAY_OF_MONTH) << 16) | (cal.get(Calendar.HOUR_OF_DAY) << 11) |
+                    (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+        }
+    }
+
+    private static class CentralEntry {
+        private final byte[] name;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long offset;
+
+        private CentralEntry(byte[] name, int method, long crc, long size, long compressedSize, long offset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.offset = offset;
+        }
+    }
+}
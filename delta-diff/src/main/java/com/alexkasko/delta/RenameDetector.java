@@ -0,0 +1,171 @@
+package com.alexkasko.delta;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.io.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static org.apache.commons.io.FilenameUtils.getExtension;
+import static org.apache.commons.io.FilenameUtils.getPathNoEndSeparator;
+
+/**
+ * Replaces created entries that have matching old files with 'moved' (old file is deleted)
+ * and 'copied from' (old file is kept) entries. Files with the same content are matched by SHA-1 first,
+ * then created files are matched with old files which paths differ only in digits
+ * (e.g. 'lib/foo-1.2.jar' and 'lib/foo-1.3.jar') and with deleted files from the same directory
+ * with the same extension, both with less than 10% size difference. New file is patched from matched
+ * old file if delta is smaller than new file, such delta is computed twice, here and on writing the patch.
+ * Created and deleted entries and hash sums of all old files are kept in memory.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class RenameDetector {
+    private static final Pattern DIGITS = Pattern.compile("[0-9]+");
+    private static final double SIZE_SIMILARITY = 0.9;
+
+    private final File oldDir;
+    private final File newDir;
+    private final DeltaEngine engine;
+
+    /**
+     * @param oldDir old version of directory
+     * @param newDir new version of directory
+     * @param engine delta engine to check deltas of similar files
+     */
+    RenameDetector(File oldDir, File newDir, DeltaEngine engine) {
+        this.oldDir = oldDir;
+        this.newDir = newDir;
+        this.engine = engine;
+    }
+
+    /**
+     * Detects renames and copies
+     *
+     * @param index index with created and deleted entries
+     * @return index with 'moved' and 'copied from' entries, unchanged and updated entries are not changed
+     * @throws IOException on io error computing delta of similar files
+     */
+    DeltaIndex detect(DeltaIndex index) throws IOException {
+        // hash sums of all old files
+        Map<String, String> oldHashes = new HashMap<String, String>();
+        Map<String, String> oldByHash = new HashMap<String, String>();
+        ListMultimap<String, String> oldByStem = ArrayListMultimap.create();
+        for (IndexEntry en : Iterables.<IndexEntry>concat(index.unchanged, index.updated, index.deleted)) {
+            oldHashes.put(en.path, en.oldSha1);
+            if(!oldByHash.containsKey(en.oldSha1)) oldByHash.put(en.oldSha1, en.path);
+            oldByStem.put(stem(en.path), en.path);
+        }
+        // deleted files are candidates for moves
+        Map<String, IndexEntry.Deleted> deleted = new LinkedHashMap<String, IndexEntry.Deleted>();
+        ListMultimap<String, IndexEntry.Deleted> deletedByHash = ArrayListMultimap.create();
+        ListMultimap<String, IndexEntry.Deleted> deletedByDir = ArrayListMultimap.create();
+        for (IndexEntry.Deleted en : index.deleted) {
+            deleted.put(en.path, en);
+            deletedByHash.put(en.oldSha1, en);
+            deletedByDir.put(getPathNoEndSeparator(en.path), en);
+        }
+        List<IndexEntry.Moved> moved = new ArrayList<IndexEntry.Moved>();
+        List<IndexEntry.CopiedFrom> copied = new ArrayList<IndexEntry.CopiedFrom>();
+        List<IndexEntry.Created> pending = new ArrayList<IndexEntry.Created>();
+        // exact matches
+        for (IndexEntry.Created en : index.created) {
+            IndexEntry.Deleted source = firstRemaining(deletedByHash.get(en.newSha1), deleted);
+            if(null != source) {
+                deleted.remove(source.path);
+                moved.add(new IndexEntry.Moved(en.path, source.path, source.oldSha1, en.newSha1));
+            } else if(oldByHash.containsKey(en.newSha1)) {
+                copied.add(new IndexEntry.CopiedFrom(en.path, oldByHash.get(en.newSha1), en.newSha1, en.newSha1));
+            } else pending.add(en);
+        }
+        // similar files
+        List<IndexEntry.Created> created = new ArrayList<IndexEntry.Created>();
+        for (IndexEntry.Created en : pending) {
+            long size = new File(newDir, en.path).length();
+            String source = similarByName(oldByStem.get(stem(en.path)), deleted, size);
+            if(null == source) source = similarBySize(en.path, deletedByDir.get(getPathNoEndSeparator(en.path)), deleted, size);
+            if(null == source || !smallerDelta(source, en.path, size)) {
+                created.add(en);
+            } else if(deleted.containsKey(source)) {
+                deleted.remove(source);
+                moved.add(new IndexEntry.Moved(en.path, source, oldHashes.get(source), en.newSha1));
+            } else {
+                copied.add(new IndexEntry.CopiedFrom(en.path, source, oldHashes.get(source), en.newSha1));
+            }
+        }
+        return new DeltaIndex(ImmutableList.copyOf(created), ImmutableList.copyOf(deleted.values()),
+                index.updated, index.unchanged, sorted(moved), sorted(copied), index.duplicated);
+    }
+
+    private static IndexEntry.Deleted firstRemaining(List<IndexEntry.Deleted> candidates, Map<String, IndexEntry.Deleted> deleted) {
+        for (IndexEntry.Deleted en : candidates) {
+            if(deleted.containsKey(en.path)) return en;
+        }
+        return null;
+    }
+
+    // remaining deleted files are preferred, then closest size
+    private String similarByName(List<String> candidates, Map<String, IndexEntry.Deleted> deleted, long size) {
+        if(0 == size) return null;
+        String best = null;
+        for (String path : candidates) {
+            if(similarity(size, new File(oldDir, path).length()) < SIZE_SIMILARITY) continue;
+            if(null == best || better(path, best, deleted, size)) best = path;
+        }
+        return best;
+    }
+
+    private boolean better(String path, String best, Map<String, IndexEntry.Deleted> deleted, long size) {
+        boolean pathDeleted = deleted.containsKey(path);
+        boolean bestDeleted = deleted.containsKey(best);
+        if(pathDeleted != bestDeleted) return pathDeleted;
+        return Math.abs(new File(oldDir, path).length() - size) < Math.abs(new File(oldDir, best).length() - size);
+    }
+
+    private String similarBySize(String path, List<IndexEntry.Deleted> candidates, Map<String, IndexEntry.Deleted> deleted, long size) {
+        String ext = getExtension(path);
+        if(ext.isEmpty() || 0 == size) return null;
+        String best = null;
+        double bestSimilarity = SIZE_SIMILARITY;
+        for (IndexEntry.Deleted en : candidates) {
+            if(!deleted.containsKey(en.path) || !ext.equals(getExtension(en.path))) continue;
+            double similarity = similarity(size, new File(oldDir, en.path).length());
+            if(similarity >= bestSimilarity) {
+                best = en.path;
+                bestSimilarity = similarity;
+            }
+        }
+        return best;
+    }
+
+    private boolean smallerDelta(String source, String path, long size) throws IOException {
+        CountingOutputStream counting = new CountingOutputStream(new NullOutputStream());
+        engine.compute(new File(oldDir, source), new File(newDir, path), counting);
+        return counting.getCount() < size;
+    }
+
+    private static double similarity(long size, long oldSize) {
+        return (double) Math.min(size, oldSize) / Math.max(size, oldSize);
+    }
+
+    private static String stem(String path) {
+        return DIGITS.matcher(path).replaceAll("#");
+    }
+
+    private static <T extends IndexEntry> List<T> sorted(List<T> entries) {
+        Collections.sort(entries, new Comparator<T>() {
+            @Override
+            public int compare(T o1, T o2) {
+                return o1.path.compareTo(o2.path);
+            }
+        });
+        return ImmutableList.copyOf(entries);
+    }
+}
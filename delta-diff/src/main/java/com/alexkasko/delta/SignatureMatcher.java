@@ -0,0 +1,182 @@
+package com.alexkasko.delta;
+
+import com.nothome.delta.GDiffWriter;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.alexkasko.delta.RollingHash.hash;
+import static com.alexkasko.delta.RollingHash.power;
+import static com.alexkasko.delta.RollingHash.roll;
+
+/**
+ * Computes GDIFF delta of new file against old file known only by its manifest entry (rsync-like).
+ * New file is streamed through block-size window with rolling hash, windows with matching weak
+ * and strong hashes are written as copies of old blocks, adjacent copies are merged.
+ * Data not covered by old blocks is written as is, so files without signatures are written whole.
+ * Written delta is applied by any GDIFF patcher, result is verified by patcher with new file hash sum.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class SignatureMatcher {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // weak hash candidates per window position, bounds time on highly repetitive files
+    private static final int MAX_PROBES = 8;
+    private static final int MIX = 0x9E3779B9;
+
+    private final ManifestEntry source;
+    private final int blockSize;
+    private final int shift;
+    private final int[] heads;
+    private final int[] next;
+
+    /**
+     * @param source manifest entry of old file
+     */
+    SignatureMatcher(ManifestEntry source) {
+        this.source = source;
+        this.blockSize = source.blockSize;
+        int blocks = source.blocks();
+        int tableSize = Integer.highestOneBit(Math.max(blocks, 8)) * 2;
+        this.shift = 32 - Integer.numberOfTrailingZeros(tableSize);
+        this.heads = new int[tableSize];
+        Arrays.fill(heads, -1);
+        this.next = new int[blocks];
+        // first blocks are placed at chain heads
+        for (int i = blocks - 1; i >= 0; i--) {
+            int slot = slot(source.weak[i]);
+            next[i] = heads[slot];
+            heads[slot] = i;
+        }
+    }
+
+    /**
+     * Computes delta, delta stream is not closed
+     *
+     * @param target new version of file
+     * @param delta stream to write delta into
+     * @throws IOException on io error
+     */
+    void compute(File target, OutputStream delta) throws IOException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(target);
+            GDiffWriter writer = new GDiffWriter(new NoCloseOutputStream(delta));
+            computeDelta(in, writer);
+            writer.close();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void computeDelta(InputStream in, GDiffWriter writer) throws IOException {
+        int bs = Math.max(blockSize, 1);
+        int power = power(bs);
+        byte[] buf = new byte[Math.max(BUFFER_SIZE, bs * 4)];
+        int len = fill(in, buf, 0);
+        int pos = 0;
+        int hash = 0;
+        boolean hashed = false;
+        long copyOffset = 0;
+        long copyLength = 0;
+        int expected = -1;
+        while (source.blocks() > 0) {
+            if(len - pos < bs) {
+                System.arraycopy(buf, pos, buf, 0, len - pos);
+                len -= pos;
+                pos = 0;
+                len += fill(in, buf, len);
+                if(len < bs) break;
+                hashed = false;
+            }
+            if(!hashed) {
+                hash = hash(buf, pos, bs);
+                hashed = true;
+            }
+            int block = find(hash, buf, pos, expected);
+            if(block >= 0) {
+                long offset = (long) block * bs;
+                if(copyOffset + copyLength != offset) {
+                    writeCopy(writer, copyOffset, copyLength);
+                    copyOffset = offset;
+                    copyLength = 0;
+                }
+                copyLength += bs;
+                expected = block + 1;
+                pos += bs;
+                hashed = false;
+            } else {
+                writeCopy(writer, copyOffset, copyLength);
+                copyLength = 0;
+                expected = -1;
+                writer.addData(buf[pos]);
+                if(pos + bs < len) {
+                    hash = roll(hash, buf[pos], buf[pos + bs], power);
+                } else hashed = false;
+                pos += 1;
+            }
+        }
+        writeCopy(writer, copyOffset, copyLength);
+        // tail shorter than block or whole file without signatures
+        for (;;) {
+            for (int i = pos; i < len; i++) {
+                writer.addData(buf[i]);
+            }
+            pos = 0;
+            len = fill(in, buf, 0);
+            if(0 == len) break;
+        }
+    }
+
+    // block following the previous match is checked first to keep copies adjacent
+    private int find(int hash, byte[] buf, int off, int expected) {
+        long strong = 0;
+        boolean computed = false;
+        if(expected >= 0 && expected < source.blocks() && source.weak[expected] == hash) {
+            strong = ManifestEntry.strongHash(buf, off, blockSize);
+            computed = true;
+            if(source.strong[expected] == strong) return expected;
+        }
+        int probes = 0;
+        for (int i = heads[slot(hash)]; i >= 0 && probes < MAX_PROBES; i = next[i]) {
+            if(source.weak[i] != hash) continue;
+            probes += 1;
+            if(!computed) {
+                strong = ManifestEntry.strongHash(buf, off, blockSize);
+                computed = true;
+            }
+            if(source.strong[i] == strong) return i;
+        }
+        return -1;
+    }
+
+    // low bits of polynomial hash are weak, high bits of mixed value are used
+    private int slot(int hash) {
+        return (hash * MIX) >>> shift;
+    }
+
+    private static void writeCopy(GDiffWriter writer, long offset, long length) throws IOException {
+        while (length > 0) {
+            int chunk = (int) Math.min(length, Integer.MAX_VALUE);
+            writer.addCopy(offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private static int fill(InputStream in, byte[] buf, int off) throws IOException {
+        int read = 0;
+        while (off + read < buf.length) {
+            int res = in.read(buf, off + read, buf.length - off - read);
+            if(res < 0) break;
+            read += res;
+        }
+        return read;
+    }
+}
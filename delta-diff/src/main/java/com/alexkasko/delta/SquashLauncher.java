@@ -0,0 +1,86 @@
+package com.alexkasko.delta;
+
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.System.out;
+
+/**
+ * Patches squash launcher class
+ *
+ * @author alexkasko
+ * Date: 10/17/26
+ */
+public class SquashLauncher {
+    private static final String HELP_OPTION = "help";
+    private static final String OUTPUT_OPTION = "out";
+    private static final String BINARY_INDEX_OPTION = "binary-index";
+    private static final String LEVEL_OPTION = "level";
+    private static final String CONTAINER_OPTION = "container";
+
+    /**
+     * app entry point
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        try {
+            options.addOption("h", HELP_OPTION, false, "show this page");
+            options.addOption("o", OUTPUT_OPTION, true, "output file path");
+            options.addOption(null, BINARY_INDEX_OPTION, false, "write compact binary index, not supported by patchers before 1.1.4");
+            options.addOption("z", LEVEL_OPTION, true, "deflate level [0-9] for compressed entries");
+            options.addOption(null, CONTAINER_OPTION, true, "patch container [zip/lz4], lz4 is not supported by patchers before 1.1.4, default: lz4 for '.lz4' output, zip otherwise");
+            CommandLine cline = new GnuParser().parse(options, args);
+            String[] argList = cline.getArgs();
+            if (cline.hasOption(HELP_OPTION)) {
+                throw new ParseException("Printing help page:");
+            } else if(argList.length > 0 && cline.hasOption(OUTPUT_OPTION)) {
+                CompressionPolicy compression = new CompressionPolicy();
+                if (cline.hasOption(LEVEL_OPTION)) {
+                    String val = cline.getOptionValue(LEVEL_OPTION);
+                    int level = parsePositiveInt(val);
+                    if (level < 0 || level > 9) throw new ParseException("Invalid level arg: [" + val + "], should be number from [0] to [9]");
+                    compression = compression.withLevel(level);
+                }
+                final PatchContainer container;
+                if (cline.hasOption(CONTAINER_OPTION)) {
+                    String val = cline.getOptionValue(CONTAINER_OPTION);
+                    if ("zip".equalsIgnoreCase(val)) {
+                        container = PatchContainer.ZIP;
+                    } else if ("lz4".equalsIgnoreCase(val)) {
+                        container = PatchContainer.LZ4;
+                    } else {
+                        throw new ParseException("Invalid container arg: [" + val + "], should be [zip] or [lz4]");
+                    }
+                } else if (cline.getOptionValue(OUTPUT_OPTION).toLowerCase().endsWith(".lz4")) {
+                    container = PatchContainer.LZ4;
+                } else container = PatchContainer.ZIP;
+                List<File> patches = new ArrayList<File>();
+                for (String arg : argList) {
+                    patches.add(new File(arg));
+                }
+                new DirPatchSquasher()
+                        .withCompression(compression)
+                        .withContainer(container)
+                        .withIndexFormat(cline.hasOption(BINARY_INDEX_OPTION) ? IndexFormat.BINARY : IndexFormat.JSON)
+                        .squash(patches, new File(cline.getOptionValue(OUTPUT_OPTION)));
+            } else {
+                throw new ParseException("Incorrect arguments received!");
+            }
+        } catch (ParseException e) {
+            HelpFormatter formatter = new HelpFormatter();
+            out.println(e.getMessage());
+            formatter.printHelp("java -cp delta-diff.jar com.alexkasko.delta.SquashLauncher patch1.zip patch2.zip ... -o out.zip", options);
+        }
+    }
+
+    private static int parsePositiveInt(String val) {
+        try {
+            return Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -1,24 +1,42 @@
 package com.alexkasko.delta;
 
 import com.alexkasko.delta.DirDeltaCreator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.nothome.delta.GDiffPatcher;
+import org.apache.commons.io.IOCase;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import static com.alexkasko.delta.HashUtils.hex;
 import static java.lang.System.currentTimeMillis;
 import static junit.framework.Assert.assertTrue;
 import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.readFileToByteArray;
+import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
 import static org.apache.commons.io.FileUtils.writeStringToFile;
 import static org.apache.commons.io.filefilter.TrueFileFilter.TRUE;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 /**
  * User: alexkasko
@@ -27,6 +45,747 @@ import static org.junit.Assert.assertEquals;
 public class DiffTest {
     @Test
     public void test() throws IOException, NoSuchProviderException, NoSuchAlgorithmException {
+        check(new DirDeltaCreator());
+    }
+
+    @Test
+    public void testThreads() throws IOException, NoSuchProviderException, NoSuchAlgorithmException {
+        check(new DirDeltaCreator().withThreads(4));
+    }
+
+    @Test
+    public void testSameSize() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            writeStringToFile(new File(source, "updated"), "foo", "UTF-8");
+            writeStringToFile(new File(target, "updated"), "fo0", "UTF-8");
+            writeStringToFile(new File(source, "linked"), "bar", "UTF-8");
+            Files.createLink(new File(target, "linked").toPath(), new File(source, "linked").toPath());
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new DirDeltaCreator().create(source, target, TRUE, baos);
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+            zis.getNextEntry();
+            String index = IOUtils.toString(zis, "UTF-8");
+            assertTrue("Linked fail", index.contains("{\"path\":\"linked\",\"state\":\"UNCHANGED\"," +
+                    "\"oldSha1\":\"62cdb7020ff920e5aa642c3d4066950dd1f01f4d\"," +
+                    "\"newSha1\":\"62cdb7020ff920e5aa642c3d4066950dd1f01f4d\"}"));
+            assertTrue("Updated fail", index.contains("{\"path\":\"updated\",\"state\":\"UPDATED\"," +
+                    "\"oldSha1\":\"0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33\"," +
+                    "\"newSha1\":\"060fba5d3f6f2e2675b2b30917b9eef2afa6ae88\"}"));
+            assertEquals("Updated entry fail", "updated.gdiff", zis.getNextEntry().getName());
+            zis.close();
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testHashPair() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            byte[] data = new byte[200000];
+            new Random(42).nextBytes(data);
+            File first = new File(tmpdir, "first");
+            File second = new File(tmpdir, "second");
+            writeByteArrayToFile(first, data);
+            writeByteArrayToFile(second, data);
+            String sha1 = HashUtils.computeSha1(first);
+            assertEquals("Identical fail", Arrays.asList(sha1, sha1),
+                    Arrays.asList(HashUtils.computeHashPair(first, second, DigestAlgorithm.SHA1)));
+            // difference after first buffer
+            data[150000] += 1;
+            writeByteArrayToFile(second, data);
+            assertEquals("Different fail", Arrays.asList(sha1, HashUtils.computeSha1(second)),
+                    Arrays.asList(HashUtils.computeHashPair(first, second, DigestAlgorithm.SHA1)));
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testHashCache() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            File cache = new File(tmpdir, "hashes");
+            writeStringToFile(new File(source, "cached"), "foo", "UTF-8");
+            writeStringToFile(new File(target, "cached"), "foo", "UTF-8");
+            FileTime mtime = FileTime.fromMillis(1000000000123L);
+            Files.setLastModifiedTime(new File(target, "cached").toPath(), mtime);
+            DirDeltaCreator creator = new DirDeltaCreator().withHashCache(cache);
+            creator.create(source, target, TRUE, new ByteArrayOutputStream());
+            assertTrue("Cache file fail", cache.exists());
+            // same size, mtime and inode, cached hash sum must be used
+            writeStringToFile(new File(target, "cached"), "fo0", "UTF-8");
+            Files.setLastModifiedTime(new File(target, "cached").toPath(), mtime);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            creator.create(source, target, TRUE, baos);
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+            zis.getNextEntry();
+            String index = IOUtils.toString(zis, "UTF-8");
+            assertTrue("Cached fail", index.contains("{\"path\":\"cached\",\"state\":\"UNCHANGED\""));
+            zis.close();
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testStreamingIndex() throws IOException, NoSuchProviderException, NoSuchAlgorithmException {
+        check(new DirDeltaCreator().withStreamingIndex(true));
+        check(new DirDeltaCreator().withStreamingIndex(true).withThreads(4));
+    }
+
+    @Test
+    public void testStreamingIndexOrder() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            // '-' and '.' are ordered before '/'
+            for (String path : new String[]{"a/b", "a-c", "a.d/e", "a/f/g", "z", "a0"}) {
+                writeStringToFile(new File(source, path), path, "UTF-8");
+            }
+            for (String path : new String[]{"a/b", "a-c", "a/f/g", "a/f-h", "y/y", "a0"}) {
+                writeStringToFile(new File(target, path), path + "_", "UTF-8");
+            }
+            writeStringToFile(new File(target, "a-c"), "a-c", "UTF-8");
+            String expected = readIndex(new DirDeltaCreator(), source, target);
+            assertEquals("Streaming index fail", expected, readIndex(new DirDeltaCreator().withStreamingIndex(true), source, target));
+            assertEquals("Threads fail", expected, readIndex(new DirDeltaCreator().withThreads(4), source, target));
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testScanner() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            for (String path : new String[]{"a/b", "a-c", "a.d/e", "a/f/g", "z", "a0", "A1"}) {
+                writeStringToFile(new File(tmpdir, path), path, "UTF-8");
+            }
+            assertTrue("Cannot create tmp directory", new File(tmpdir, "empty").mkdirs());
+            for (int threads : new int[]{1, 4}) {
+                List<DirScanner.ScannedFile> scanned = DirScanner.scan(tmpdir, TRUE, IOCase.SENSITIVE, threads);
+                List<String> expected = ImmutableList.copyOf(new SortedFileIterator(tmpdir, TRUE, IOCase.SENSITIVE));
+                assertEquals("Count fail", expected.size(), scanned.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    DirScanner.ScannedFile fi = scanned.get(i);
+                    assertEquals("Path fail", expected.get(i), fi.path);
+                    assertEquals("Size fail", new File(tmpdir, fi.path).length(), fi.size);
+                }
+            }
+            // directories differing only in case
+            writeStringToFile(new File(tmpdir, "Lib/upper.jar"), "foo", "UTF-8");
+            writeStringToFile(new File(tmpdir, "lib/lower.jar"), "bar", "UTF-8");
+            try {
+                DirScanner.scan(tmpdir, TRUE, IOCase.INSENSITIVE, 4);
+                fail("Paths collision check passed");
+            } catch (IllegalStateException e) {
+                assertTrue("Message fail: " + e.getMessage(), e.getMessage().contains("Paths collision in case insensitive mode"));
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testBinaryIndex() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            writeStringToFile(new File(source, "dir/unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(source, "dir/deleted"), "bar", "UTF-8");
+            writeStringToFile(new File(source, "dir/updated"), "baz", "UTF-8");
+            writeStringToFile(new File(target, "dir/unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(target, "dir/updated"), "ba42", "UTF-8");
+            writeStringToFile(new File(target, "dir/\u0444\u0430\u0439\u043b"), "42", "UTF-8");
+            String json = readIndex(new DirDeltaCreator(), source, target);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new DirDeltaCreator().withIndexFormat(IndexFormat.BINARY).create(source, target, TRUE, baos);
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+            zis.getNextEntry();
+            byte[] binary = IOUtils.toByteArray(zis);
+            zis.close();
+            assertEquals("Magic fail", "DIDX", new String(binary, 0, 4, "UTF-8"));
+            assertTrue("Size fail", binary.length * 2 < json.length());
+            // transcode to JSON
+            ByteArrayOutputStream transcoded = new ByteArrayOutputStream();
+            IndexCodec.write(ImmutableList.copyOf(IndexCodec.read(new ByteArrayInputStream(binary))), transcoded);
+            assertTrue("Entries fail", json.startsWith(new String(transcoded.toByteArray(), "UTF-8")));
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testDigestAlgorithm() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File hello = new File(tmpdir, "hello.txt");
+            writeStringToFile(hello, "The quick brown fox jumps over the lazy dog", "UTF-8");
+            assertEquals("Murmur3 fail", "6c1b07bc7bbc4be347939ac4a93c437a", HashUtils.computeHash(hello, DigestAlgorithm.MURMUR3_128));
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            writeStringToFile(new File(source, "unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(source, "updated"), "baz", "UTF-8");
+            writeStringToFile(new File(source, "deleted"), "bar", "UTF-8");
+            writeStringToFile(new File(target, "unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(target, "updated"), "ba42", "UTF-8");
+            writeStringToFile(new File(target, "created"), "42", "UTF-8");
+            for (DigestAlgorithm algorithm : DigestAlgorithm.values()) {
+                for (IndexFormat format : IndexFormat.values()) {
+                    for (boolean pipelining : new boolean[]{false, true}) {
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        new DirDeltaCreator().withDigestAlgorithm(algorithm).withIndexFormat(format)
+                                .withPipelining(pipelining).create(source, target, TRUE, baos);
+                        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+                        zis.getNextEntry();
+                        IndexCodec.Entries index = IndexCodec.read(zis);
+                        assertEquals("Algorithm fail", algorithm, index.algorithm);
+                        int count = 0;
+                        while (index.hasNext()) {
+                            IndexEntry en = index.next();
+                            count += 1;
+                            if(IndexEntry.State.DELETED == en.state) continue;
+                            assertEquals("Hash fail: " + en.path, HashUtils.computeHash(new File(target, en.path), algorithm), en.newSha1);
+                        }
+                        zis.close();
+                        assertEquals("Entries fail", 4, count);
+                    }
+                }
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testBlockHashes() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            Random random = new Random(42);
+            byte[] big = new byte[10000];
+            random.nextBytes(big);
+            writeByteArrayToFile(new File(source, "unchanged.bin"), big);
+            writeByteArrayToFile(new File(target, "unchanged.bin"), big);
+            writeByteArrayToFile(new File(source, "updated.bin"), big);
+            byte[] updated = Arrays.copyOf(big, 9000);
+            updated[4242] += 1;
+            writeByteArrayToFile(new File(target, "updated.bin"), updated);
+            writeByteArrayToFile(new File(target, "created.bin"), Arrays.copyOf(big, 2048));
+            writeStringToFile(new File(target, "small.txt"), "foo", "UTF-8");
+            int blockSize = 1024;
+            for (IndexFormat format : IndexFormat.values()) {
+                for (DirDeltaCreator creator : new DirDeltaCreator[]{
+                        new DirDeltaCreator(),
+                        new DirDeltaCreator().withStreamingIndex(true),
+                        new DirDeltaCreator().withPipelining(true).withThreads(2)}) {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    creator.withBlockSize(blockSize).withIndexFormat(format).create(source, target, TRUE, baos);
+                    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+                    zis.getNextEntry();
+                    IndexCodec.Entries index = IndexCodec.read(zis);
+                    assertEquals("Block size fail", blockSize, index.blockSize);
+                    Map<String, IndexEntry> entries = new HashMap<String, IndexEntry>();
+                    while (index.hasNext()) {
+                        IndexEntry en = index.next();
+                        entries.put(en.path, en);
+                    }
+                    zis.close();
+                    assertEquals("Entries fail", 4, entries.size());
+                    assertEquals("Small fail", null, entries.get("small.txt").blocks);
+                    for (String path : new String[]{"unchanged.bin", "updated.bin", "created.bin"}) {
+                        byte[] data = readFileToByteArray(new File(target, path));
+                        List<String> blocks = entries.get(path).blocks;
+                        assertEquals("Blocks count fail: " + path, (data.length + blockSize - 1) / blockSize, blocks.size());
+                        for (int i = 0; i < blocks.size(); i++) {
+                            byte[] block = Arrays.copyOfRange(data, i * blockSize, Math.min(data.length, (i + 1) * blockSize));
+                            assertEquals("Block fail: " + path, hex(MessageDigest.getInstance("SHA-1").digest(block)), blocks.get(i));
+                        }
+                    }
+                }
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testCompression() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            Random random = new Random(42);
+            byte[] noise = new byte[100000];
+            random.nextBytes(noise);
+            writeByteArrayToFile(new File(source, "updated.bin"), noise);
+            noise[42] += 1;
+            writeByteArrayToFile(new File(target, "updated.bin"), noise);
+            writeByteArrayToFile(new File(target, "noise.bin"), noise);
+            writeStringToFile(new File(target, "archive.JAR"), "foo", "UTF-8");
+            writeStringToFile(new File(target, "text.txt"), "foo", "UTF-8");
+            File cache = new File(tmpdir, "hashes.cache");
+            // second run with cache reads CRC32 sums of stored entries from files with cached hash sums
+            for (DirDeltaCreator creator : new DirDeltaCreator[]{
+                    new DirDeltaCreator().withCompression(CompressionPolicy.adaptive().withLevel(1)),
+                    new DirDeltaCreator().withCompression(CompressionPolicy.adaptive()).withThreads(4),
+                    new DirDeltaCreator().withCompression(CompressionPolicy.adaptive()).withHashCache(cache),
+                    new DirDeltaCreator().withCompression(CompressionPolicy.adaptive()).withHashCache(cache)}) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                creator.create(source, target, TRUE, baos);
+                ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+                assertEquals("Index fail", ZipEntry.DEFLATED, zis.getNextEntry().getMethod());
+                assertEquals("Extension fail", ZipEntry.STORED, zis.getNextEntry().getMethod());
+                ZipEntry noiseEntry = zis.getNextEntry();
+                assertEquals("Entropy fail", ZipEntry.STORED, noiseEntry.getMethod());
+                assertArrayEquals("Stored body fail", noise, IOUtils.toByteArray(zis));
+                assertEquals("Text fail", ZipEntry.DEFLATED, zis.getNextEntry().getMethod());
+                ZipEntry deltaEntry = zis.getNextEntry();
+                assertEquals("Delta name fail", "updated.bin.gdiff", deltaEntry.getName());
+                assertEquals("Delta fail", ZipEntry.STORED, deltaEntry.getMethod());
+                zis.close();
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testLz4Container() throws IOException, NoSuchProviderException, NoSuchAlgorithmException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            writeStringToFile(new File(source, "updated"), "baz", "UTF-8");
+            writeStringToFile(new File(target, "updated"), "ba42", "UTF-8");
+            // spans multiple blocks
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 100000; i++) {
+                sb.append("line ").append(i).append("\n");
+            }
+            writeStringToFile(new File(target, "added"), sb.toString(), "UTF-8");
+            byte[] noise = new byte[300000];
+            new Random(42).nextBytes(noise);
+            writeByteArrayToFile(new File(target, "noise.bin"), noise);
+            for (DirDeltaCreator creator : new DirDeltaCreator[]{
+                    new DirDeltaCreator().withContainer(PatchContainer.LZ4),
+                    new DirDeltaCreator().withContainer(PatchContainer.LZ4).withCompression(CompressionPolicy.adaptive()).withThreads(4),
+                    new DirDeltaCreator().withContainer(PatchContainer.LZ4).withPipelining(true).withThreads(4)}) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                creator.create(source, target, TRUE, baos);
+                assertTrue("Size fail", baos.size() < sb.length() / 2 + noise.length);
+                Lz4ContainerInputStream lis = new Lz4ContainerInputStream(new ByteArrayInputStream(baos.toByteArray()));
+                assertTrue("Index name fail", lis.getNextEntry().startsWith(".index_"));
+                assertEquals("Added name fail", "added", lis.getNextEntry());
+                assertEquals("Added body fail", sb.toString(), IOUtils.toString(lis, "UTF-8"));
+                assertEquals("Noise name fail", "noise.bin", lis.getNextEntry());
+                assertArrayEquals("Noise body fail", noise, IOUtils.toByteArray(lis));
+                assertEquals("Updated name fail", "updated.gdiff", lis.getNextEntry());
+                assertEquals("Updated body fail", "1881f0e90abaa44fd54f35b95ad3ef8ebc44ffd0", hash(lis));
+                assertEquals("End fail", null, lis.getNextEntry());
+                lis.close();
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testPipelining() throws IOException, NoSuchProviderException, NoSuchAlgorithmException {
+        check(new DirDeltaCreator().withPipelining(true));
+        check(new DirDeltaCreator().withPipelining(true).withThreads(4).withStreamingIndex(true));
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            assertTrue("Cannot create tmp directory", source.mkdirs());
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 100000; i++) {
+                sb.append("line ").append(i).append("\n");
+            }
+            writeStringToFile(new File(target, "added.txt"), sb.toString(), "UTF-8");
+            writeStringToFile(new File(target, "stored.zip"), sb.toString(), "UTF-8");
+            File patch = new File(tmpdir, "patch.zip");
+            new DirDeltaCreator().withPipelining(true).withThreads(4).withCompression(CompressionPolicy.adaptive())
+                    .create(source, target, patch);
+            // central directory is read by zip file
+            ZipFile zip = new ZipFile(patch);
+            try {
+                assertEquals("Size fail", 3, zip.size());
+                ZipEntry added = zip.getEntry("added.txt");
+                assertEquals("Added method fail", ZipEntry.DEFLATED, added.getMethod());
+                assertTrue("Added compression fail", added.getCompressedSize() < sb.length() / 2);
+                assertEquals("Added body fail", sb.toString(), IOUtils.toString(zip.getInputStream(added), "UTF-8"));
+                ZipEntry stored = zip.getEntry("stored.zip");
+                assertEquals("Stored method fail", ZipEntry.STORED, stored.getMethod());
+                assertEquals("Stored body fail", sb.toString(), IOUtils.toString(zip.getInputStream(stored), "UTF-8"));
+            } finally {
+                zip.close();
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testRollingHashEngine() throws IOException, NoSuchProviderException, NoSuchAlgorithmException {
+        check(new DirDeltaCreator().withDeltaEngine(new RollingHashDeltaEngine()));
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source.bin");
+            File target = new File(tmpdir, "target.bin");
+            // spans multiple target windows
+            byte[] sourceData = new byte[3 * 1024 * 1024];
+            new Random(42).nextBytes(sourceData);
+            ByteArrayOutputStream targetData = new ByteArrayOutputStream();
+            targetData.write(sourceData, 0, 500000);
+            targetData.write(new byte[100], 0, 100);
+            targetData.write(sourceData, 500000, 1000000);
+            targetData.write(sourceData, 1501000, 700000);
+            targetData.write(42);
+            targetData.write(sourceData, 2201001, sourceData.length - 2201001);
+            targetData.write(sourceData, 0, 10000);
+            writeByteArrayToFile(source, sourceData);
+            writeByteArrayToFile(target, targetData.toByteArray());
+            for (DeltaEngine engine : new DeltaEngine[]{
+                    new RollingHashDeltaEngine(),
+                    new RollingHashDeltaEngine().withBlockSize(8),
+                    new RollingHashDeltaEngine().withMaxBlocks(1000)}) {
+                ByteArrayOutputStream delta = new ByteArrayOutputStream();
+                engine.compute(source, target, delta);
+                assertTrue("Delta size fail: " + delta.size(), delta.size() < 20000);
+                byte[] patched = new GDiffPatcher().patch(sourceData, delta.toByteArray());
+                assertArrayEquals("Patch fail", targetData.toByteArray(), patched);
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testRenameDetection() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            byte[] jar = new byte[50000];
+            new Random(42).nextBytes(jar);
+            writeByteArrayToFile(new File(source, "lib/foo-1.2.jar"), jar);
+            jar[42] += 1;
+            writeByteArrayToFile(new File(target, "lib/foo-1.3.jar"), jar);
+            writeStringToFile(new File(source, "docs/readme.txt"), "foo", "UTF-8");
+            writeStringToFile(new File(target, "docs2/readme.txt"), "foo", "UTF-8");
+            writeStringToFile(new File(source, "unchanged"), "bar", "UTF-8");
+            writeStringToFile(new File(target, "unchanged"), "bar", "UTF-8");
+            writeStringToFile(new File(target, "copy"), "bar", "UTF-8");
+            writeStringToFile(new File(target, "added"), "baz", "UTF-8");
+            // name matches with too different size and with delta not smaller than new file
+            byte[] noise = new byte[50000];
+            new Random(43).nextBytes(noise);
+            writeByteArrayToFile(new File(source, "lib/bar-1.jar"), noise);
+            writeByteArrayToFile(new File(target, "lib/bar-2.jar"), Arrays.copyOf(noise, 1000));
+            noise = new byte[1000];
+            new Random(44).nextBytes(noise);
+            writeByteArrayToFile(new File(source, "lib/baz-1.jar"), noise);
+            new Random(45).nextBytes(noise);
+            writeByteArrayToFile(new File(target, "lib/baz-2.jar"), noise);
+            for (DirDeltaCreator creator : new DirDeltaCreator[]{
+                    new DirDeltaCreator().withRenameDetection(true),
+                    new DirDeltaCreator().withRenameDetection(true).withStreamingIndex(true).withThreads(4),
+                    new DirDeltaCreator().withRenameDetection(true).withPipelining(true)}) {
+                String index = readIndex(creator, source, target);
+                assertTrue("Copied fail", index.contains("{\"path\":\"copy\",\"state\":\"COPIED_FROM\"," +
+                        "\"oldSha1\":\"62cdb7020ff920e5aa642c3d4066950dd1f01f4d\"," +
+                        "\"newSha1\":\"62cdb7020ff920e5aa642c3d4066950dd1f01f4d\",\"sourcePath\":\"unchanged\"}"));
+                assertTrue("Moved fail", index.contains("{\"path\":\"docs2/readme.txt\",\"state\":\"MOVED\"," +
+                        "\"oldSha1\":\"0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33\"," +
+                        "\"newSha1\":\"0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33\",\"sourcePath\":\"docs/readme.txt\"}"));
+                assertTrue("Similar fail", index.contains("\"path\":\"lib/foo-1.3.jar\",\"state\":\"MOVED\""));
+                assertTrue("Created fail", index.contains("\"path\":\"added\",\"state\":\"CREATED\""));
+                assertTrue("Size bound fail", index.contains("\"path\":\"lib/bar-2.jar\",\"state\":\"CREATED\""));
+                assertTrue("Delta size fail", index.contains("\"path\":\"lib/baz-2.jar\",\"state\":\"CREATED\""));
+                assertTrue("Deleted fail", index.contains("\"path\":\"lib/bar-1.jar\",\"state\":\"DELETED\"") &&
+                        index.contains("\"path\":\"lib/baz-1.jar\",\"state\":\"DELETED\"") &&
+                        !index.contains("\"path\":\"docs/readme.txt\",\"state\":\"DELETED\""));
+                // entries: gdiff of patched move, created files
+                assertTrue("Entries fail", index.endsWith("}\nlib/foo-1.3.jar.gdiff\nadded\nlib/bar-2.jar\nlib/baz-2.jar\n"));
+            }
+            String plain = readIndex(new DirDeltaCreator(), source, target);
+            assertTrue("Disabled fail", !plain.contains("MOVED") && plain.contains("DELETED"));
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testDeduplication() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            assertTrue("Cannot create tmp directory", source.mkdirs());
+            writeStringToFile(new File(target, "a/lib.bin"), "foo", "UTF-8");
+            writeStringToFile(new File(target, "b/lib.bin"), "foo", "UTF-8");
+            writeStringToFile(new File(target, "c/copy.bin"), "foo", "UTF-8");
+            writeStringToFile(new File(target, "other.bin"), "bar", "UTF-8");
+            for (DirDeltaCreator creator : new DirDeltaCreator[]{
+                    new DirDeltaCreator().withDeduplication(true),
+                    new DirDeltaCreator().withDeduplication(true).withStreamingIndex(true).withThreads(4),
+                    new DirDeltaCreator().withDeduplication(true).withPipelining(true).withThreads(4)}) {
+                String index = readIndex(creator, source, target);
+                assertTrue("Created fail", index.contains("{\"path\":\"a/lib.bin\",\"state\":\"CREATED\""));
+                assertTrue("Duplicated fail", index.contains("{\"path\":\"b/lib.bin\",\"state\":\"DUPLICATED\",\"oldSha1\":\"\"," +
+                        "\"newSha1\":\"0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33\",\"sourcePath\":\"a/lib.bin\"}"));
+                assertTrue("Duplicated copy fail", index.contains("{\"path\":\"c/copy.bin\",\"state\":\"DUPLICATED\""));
+                assertTrue("Entries fail", index.endsWith("}\na/lib.bin\nother.bin\n"));
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testManifest() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            File target = new File(tmpdir, "target");
+            byte[] big = new byte[200000];
+            new Random(42).nextBytes(big);
+            writeByteArrayToFile(new File(source, "lib/big.bin"), big);
+            // inserted bytes shift the rest of file
+            ByteArrayOutputStream changed = new ByteArrayOutputStream();
+            changed.write(big, 0, 100000);
+            changed.write("42".getBytes("UTF-8"));
+            changed.write(big, 100000, big.length - 100000);
+            byte[] bigChanged = changed.toByteArray();
+            writeByteArrayToFile(new File(target, "lib/big.bin"), bigChanged);
+            writeStringToFile(new File(source, "unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(target, "unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(source, "deleted"), "bar", "UTF-8");
+            writeStringToFile(new File(source, "updated"), "baz", "UTF-8");
+            writeStringToFile(new File(target, "updated"), "ba42", "UTF-8");
+            writeStringToFile(new File(target, "added"), "42", "UTF-8");
+            for (boolean signatures : new boolean[]{true, false}) {
+                File manifest = new File(tmpdir, "manifest.bin");
+                List<ManifestEntry> entries = new ArrayList<ManifestEntry>();
+                for (Iterator<String> iter = new SortedFileIterator(source, TRUE, IOCase.SENSITIVE); iter.hasNext(); ) {
+                    String path = iter.next();
+                    entries.add(ManifestEntry.compute(new File(source, path), path, signatures));
+                }
+                OutputStream os = new FileOutputStream(manifest);
+                ManifestCodec.write(entries.iterator(), os);
+                os.close();
+                for (DirDeltaCreator creator : new DirDeltaCreator[]{
+                        new DirDeltaCreator(),
+                        new DirDeltaCreator().withStreamingIndex(true).withThreads(4)}) {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    creator.createFromManifest(manifest, target, TRUE, baos, IOCase.SENSITIVE);
+                    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+                    zis.getNextEntry();
+                    String index = IOUtils.toString(zis, "UTF-8");
+                    assertEquals("Index fail", readIndex(new DirDeltaCreator(), source, target),
+                            index + "added\nlib/big.bin.gdiff\nupdated.gdiff\n");
+                    assertEquals("Added fail", "added", zis.getNextEntry().getName());
+                    assertEquals("Delta name fail", "lib/big.bin.gdiff", zis.getNextEntry().getName());
+                    byte[] delta = IOUtils.toByteArray(zis);
+                    assertArrayEquals("Delta fail", bigChanged, new GDiffPatcher().patch(big, delta));
+                    assertEquals("Signatures fail", signatures, delta.length < big.length / 10);
+                    assertEquals("Small delta name fail", "updated.gdiff", zis.getNextEntry().getName());
+                    assertArrayEquals("Small delta fail", "ba42".getBytes("UTF-8"),
+                            new GDiffPatcher().patch("baz".getBytes("UTF-8"), IOUtils.toByteArray(zis)));
+                    zis.close();
+                }
+            }
+            // manifest is sorted case sensitively, its entries keep original paths in case insensitive mode
+            File mixedSource = new File(tmpdir, "mixedSource");
+            File mixedTarget = new File(tmpdir, "mixedTarget");
+            writeStringToFile(new File(mixedSource, "B.txt"), "foo", "UTF-8");
+            writeStringToFile(new File(mixedTarget, "B.txt"), "foo42", "UTF-8");
+            writeStringToFile(new File(mixedSource, "Del/x.txt"), "bar", "UTF-8");
+            writeStringToFile(new File(mixedSource, "a.txt"), "baz", "UTF-8");
+            writeStringToFile(new File(mixedTarget, "a.txt"), "baz", "UTF-8");
+            writeStringToFile(new File(mixedSource, "a2.txt"), "baz", "UTF-8");
+            writeStringToFile(new File(mixedTarget, "a2.txt"), "baz42", "UTF-8");
+            writeStringToFile(new File(mixedTarget, "Added.txt"), "42", "UTF-8");
+            File mixedManifest = new File(tmpdir, "mixed.bin");
+            List<ManifestEntry> mixedEntries = new ArrayList<ManifestEntry>();
+            for (Iterator<String> iter = new SortedFileIterator(mixedSource, TRUE, IOCase.SENSITIVE); iter.hasNext(); ) {
+                String path = iter.next();
+                mixedEntries.add(ManifestEntry.compute(new File(mixedSource, path), path, true));
+            }
+            OutputStream mos = new FileOutputStream(mixedManifest);
+            ManifestCodec.write(mixedEntries.iterator(), mos);
+            mos.close();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new DirDeltaCreator().createFromManifest(mixedManifest, mixedTarget, TRUE, baos, IOCase.INSENSITIVE);
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+            zis.getNextEntry();
+            String index = IOUtils.toString(zis, "UTF-8");
+            assertTrue("Mixed unchanged fail", index.contains("{\"path\":\"a.txt\",\"state\":\"UNCHANGED\""));
+            assertTrue("Mixed created fail", index.contains("{\"path\":\"Added.txt\",\"state\":\"CREATED\""));
+            assertTrue("Mixed updated fail", index.contains("{\"path\":\"a2.txt\",\"state\":\"UPDATED\"") &&
+                    index.contains("{\"path\":\"B.txt\",\"state\":\"UPDATED\""));
+            assertTrue("Mixed deleted fail", index.contains("{\"path\":\"Del/x.txt\",\"state\":\"DELETED\""));
+            assertEquals("Mixed added fail", "Added.txt", zis.getNextEntry().getName());
+            assertEquals("Mixed delta name fail", "a2.txt.gdiff", zis.getNextEntry().getName());
+            assertArrayEquals("Mixed delta fail", "baz42".getBytes("UTF-8"),
+                    new GDiffPatcher().patch("baz".getBytes("UTF-8"), IOUtils.toByteArray(zis)));
+            assertEquals("Mixed skipped delta name fail", "B.txt.gdiff", zis.getNextEntry().getName());
+            assertArrayEquals("Mixed skipped delta fail", "foo42".getBytes("UTF-8"),
+                    new GDiffPatcher().patch("foo".getBytes("UTF-8"), IOUtils.toByteArray(zis)));
+            zis.close();
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testSquash() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File[] versions = new File[4];
+            for (int i = 0; i < versions.length; i++) {
+                versions[i] = new File(tmpdir, "v" + i);
+            }
+            byte[] big = new byte[50000];
+            new Random(42).nextBytes(big);
+            writeStringToFile(new File(versions[0], "unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(versions[0], "gone"), "bar", "UTF-8");
+            writeStringToFile(new File(versions[0], "reverted"), "baz", "UTF-8");
+            writeStringToFile(new File(versions[0], "docs/readme.txt"), "readme", "UTF-8");
+            writeByteArrayToFile(new File(versions[0], "big.bin"), big);
+            writeByteArrayToFile(new File(versions[0], "lib/foo-1.bin"), Arrays.copyOf(big, 30000));
+            // renames, deletion, creation and updates
+            writeStringToFile(new File(versions[1], "unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(versions[1], "reverted"), "ba42", "UTF-8");
+            writeStringToFile(new File(versions[1], "docs2/readme.txt"), "readme", "UTF-8");
+            writeStringToFile(new File(versions[1], "added"), "42", "UTF-8");
+            big[100] += 1;
+            writeByteArrayToFile(new File(versions[1], "big.bin"), big);
+            byte[] lib = Arrays.copyOf(big, 30000);
+            lib[200] += 1;
+            writeByteArrayToFile(new File(versions[1], "lib/foo-2.bin"), lib);
+            // updates of updated and created files, reverting, duplicates
+            writeStringToFile(new File(versions[2], "unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(versions[2], "reverted"), "baz", "UTF-8");
+            writeStringToFile(new File(versions[2], "docs2/readme.txt"), "readme", "UTF-8");
+            writeStringToFile(new File(versions[2], "added"), "4242", "UTF-8");
+            writeStringToFile(new File(versions[2], "dup1"), "dup", "UTF-8");
+            writeStringToFile(new File(versions[2], "dup2"), "dup", "UTF-8");
+            ByteArrayOutputStream inserted = new ByteArrayOutputStream();
+            inserted.write(big, 0, 20000);
+            inserted.write("inserted".getBytes("UTF-8"));
+            inserted.write(big, 20000, big.length - 20000);
+            big = inserted.toByteArray();
+            writeByteArrayToFile(new File(versions[2], "big.bin"), big);
+            writeByteArrayToFile(new File(versions[2], "lib/foo-2.bin"), lib);
+            // deleted file recreated
+            writeStringToFile(new File(versions[3], "unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(versions[3], "reverted"), "baz", "UTF-8");
+            writeStringToFile(new File(versions[3], "docs2/readme.txt"), "readme", "UTF-8");
+            writeStringToFile(new File(versions[3], "added"), "4242", "UTF-8");
+            writeStringToFile(new File(versions[3], "dup1"), "dup", "UTF-8");
+            writeStringToFile(new File(versions[3], "dup2"), "dup", "UTF-8");
+            writeStringToFile(new File(versions[3], "gone"), "back", "UTF-8");
+            big[40000] += 1;
+            writeByteArrayToFile(new File(versions[3], "big.bin"), big);
+            writeByteArrayToFile(new File(versions[3], "lib/foo-2.bin"), lib);
+            DirDeltaCreator creator = new DirDeltaCreator().withRenameDetection(true).withDeduplication(true);
+            List<File> patches = new ArrayList<File>();
+            for (int i = 1; i < versions.length; i++) {
+                File patch = new File(tmpdir, "patch" + i + (1 == i ? ".lz4" : ".zip"));
+                creator.withContainer(1 == i ? PatchContainer.LZ4 : PatchContainer.ZIP).create(versions[i - 1], versions[i], patch);
+                patches.add(patch);
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new DirPatchSquasher().squash(patches, baos);
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+            zis.getNextEntry();
+            List<IndexEntry> index = ImmutableList.copyOf(IndexCodec.read(zis));
+            Map<String, byte[]> entries = new HashMap<String, byte[]>();
+            for (ZipEntry en = zis.getNextEntry(); null != en; en = zis.getNextEntry()) {
+                entries.put(en.getName(), IOUtils.toByteArray(zis));
+            }
+            zis.close();
+            // each new file is built from old version and squashed patch
+            Map<String, IndexEntry.State> states = new HashMap<String, IndexEntry.State>();
+            for (IndexEntry en : index) {
+                states.put(en.path, en.state);
+                File file = new File(versions[3], en.path);
+                File source = new File(versions[0], null != en.sourcePath ? en.sourcePath : en.path);
+                switch (en.state) {
+                    case DELETED: assertTrue("Deleted fail: " + en.path, !file.exists()); continue;
+                    case CREATED: assertArrayEquals("Created fail: " + en.path, readFileToByteArray(file), entries.get(en.path)); continue;
+                    case DUPLICATED: assertArrayEquals("Duplicated fail: " + en.path, readFileToByteArray(file), readFileToByteArray(new File(versions[3], en.sourcePath))); continue;
+                }
+                byte[] expected = readFileToByteArray(file);
+                if(en.oldSha1.equals(en.newSha1)) {
+                    assertArrayEquals("Copy fail: " + en.path, expected, readFileToByteArray(source));
+                } else {
+                    byte[] delta = entries.get(en.path + ".gdiff");
+                    assertArrayEquals("Delta fail: " + en.path, expected, new GDiffPatcher().patch(readFileToByteArray(source), delta));
+                }
+            }
+            assertEquals("States fail", ImmutableMap.<String, IndexEntry.State>builder()
+                    .put("unchanged", IndexEntry.State.UNCHANGED)
+                    .put("reverted", IndexEntry.State.UNCHANGED)
+                    .put("docs2/readme.txt", IndexEntry.State.MOVED)
+                    .put("added", IndexEntry.State.CREATED)
+                    .put("dup1", IndexEntry.State.CREATED)
+                    .put("dup2", IndexEntry.State.DUPLICATED)
+                    .put("gone", IndexEntry.State.UPDATED)
+                    .put("big.bin", IndexEntry.State.UPDATED)
+                    .put("lib/foo-2.bin", IndexEntry.State.MOVED)
+                    .build(), states);
+            // composed delta copies unchanged parts from old version
+            assertTrue("Composed delta fail", entries.get("big.bin.gdiff").length < 1000);
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    private String readIndex(DirDeltaCreator creator, File source, File target) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        creator.create(source, target, TRUE, baos);
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        zis.getNextEntry();
+        StringBuilder sb = new StringBuilder(IOUtils.toString(zis, "UTF-8"));
+        for (ZipEntry en = zis.getNextEntry(); null != en; en = zis.getNextEntry()) {
+            sb.append(en.getName()).append("\n");
+        }
+        zis.close();
+        return sb.toString();
+    }
+
+    private void check(DirDeltaCreator creator) throws IOException, NoSuchProviderException, NoSuchAlgorithmException {
         File tmpdir = null;
         try {
             tmpdir = createTmpDir();
@@ -43,7 +802,7 @@ public class DiffTest {
             writeStringToFile(new File(target, "updated"), "ba42", "UTF-8");
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             // create diff
-            new DirDeltaCreator().create(source, target, TRUE, baos);
+            creator.create(source, target, TRUE, baos);
             // read diff as zip
             byte[] delta = baos.toByteArray();
             ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(delta));
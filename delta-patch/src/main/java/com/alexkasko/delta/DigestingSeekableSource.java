@@ -0,0 +1,105 @@
+package com.alexkasko.delta;
+
+import com.nothome.delta.SeekableSource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import static com.alexkasko.delta.HashUtils.hex;
+
+/**
+ * Seekable source wrapper that computes hash sum of the file while GDIFF patch reads it.
+ * Digest is maintained up to the watermark: bytes read past it are digested in place,
+ * gaps skipped by forward seeks are read and digested separately, regions below it are not
+ * digested again. Remaining tail is digested in {@link #finish()}, so each file byte
+ * is digested exactly once in order and mostly without additional reads.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class DigestingSeekableSource implements SeekableSource {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SeekableSource delegate;
+    private final long size;
+    private final MessageDigest digest;
+    private ByteBuffer gapBuffer;
+    private long position;
+    private long digested;
+
+    /**
+     * @param delegate source to read file from
+     * @param size file size
+     * @param algorithm digest algorithm
+     */
+    DigestingSeekableSource(SeekableSource delegate, long size, DigestAlgorithm algorithm) {
+        this.delegate = delegate;
+        this.size = size;
+        this.digest = algorithm.newDigest();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void seek(long pos) throws IOException {
+        this.position = pos;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(ByteBuffer bb) throws IOException {
+        int start = bb.position();
+        if(position > digested) digestUpTo(position);
+        delegate.seek(position);
+        int read = delegate.read(bb);
+        if(read <= 0) return read;
+        long end = position + read;
+        if(end > digested) {
+            ByteBuffer dup = bb.duplicate();
+            dup.limit(start + read);
+            dup.position(start + (int) (digested - position));
+            digest.update(dup);
+            digested = end;
+        }
+        position = end;
+        return read;
+    }
+
+    /**
+     * Digests file contents that weren't read by patch
+     *
+     * @return hash sum of the whole file in hex
+     * @throws IOException on io error
+     */
+    String finish() throws IOException {
+        digestUpTo(size);
+        return hex(digest.digest());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    private void digestUpTo(long pos) throws IOException {
+        if(null == gapBuffer) gapBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (digested < pos) {
+            gapBuffer.clear();
+            gapBuffer.limit((int) Math.min(BUFFER_SIZE, pos - digested));
+            delegate.seek(digested);
+            int read = delegate.read(gapBuffer);
+            if(read < 0) throw new EOFException("Unexpected end of file at position: " + digested);
+            gapBuffer.flip();
+            digest.update(gapBuffer);
+            digested += read;
+        }
+    }
+}
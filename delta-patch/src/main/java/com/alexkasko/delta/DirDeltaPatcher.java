@@ -1,33 +1,46 @@
 package com.alexkasko.delta;
 
-import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import com.nothome.delta.GDiffPatcher;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.nothome.delta.RandomAccessFileSeekableSource;
+import com.nothome.delta.SeekableSource;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.LineIterator;
-import org.apache.commons.lang.UnhandledException;
 
 import java.io.*;
-import java.lang.reflect.Type;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.channels.FileChannel;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.zip.ZipEntry;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipInputStream;
 
+import static com.alexkasko.delta.ConcurrencyUtils.Action;
+import static com.alexkasko.delta.ConcurrencyUtils.forEach;
+import static com.alexkasko.delta.ConcurrencyUtils.newExecutor;
 import static com.alexkasko.delta.HashUtils.hex;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
 import static org.apache.commons.io.FileUtils.openInputStream;
 import static org.apache.commons.io.FileUtils.openOutputStream;
-import static com.alexkasko.delta.IndexEntry.State.*;
-import static com.alexkasko.delta.HashUtils.computeSha1;
 
 /**
  * Patches directory with provided ZIP file or stream.
@@ -35,7 +48,7 @@ import static com.alexkasko.delta.HashUtils.computeSha1;
  * <ul>
  *  <li>takes directory to patch and patch file (or stream)</li>
  *  <li>reads '.index' file and using it for futher steps:</li>
- *  <li>checks hash sums for 'unchanged' files</li>
+ *  <li>checks hash sums for 'unchanged' files (depending on verification level)</li>
  *  <li>reads from stream 'added' files, puts them into directory checking hash sums</li>
  *  <li>check hash sums for 'updated' files</li>
  *  <li>reads '.gdiff' patches from stream, applies them, checks hash sums for applied files</li>
@@ -47,21 +60,260 @@ import static com.alexkasko.delta.HashUtils.computeSha1;
  * Date: 11/19/11
  */
 public class DirDeltaPatcher {
+    // old files of this size and larger are mapped into memory for patch application
+    private static final long MMAP_THRESHOLD = 16 * 1024 * 1024;
+
+    private File hashCacheFile;
+    private boolean randomAccess;
+    private int threads = 1;
+    private boolean streamingCheck;
+    private boolean streamingIndex;
+    private DeltaEngine engine = new JavaxDeltaEngine();
+    private boolean hardLinks;
+    private File journalFile;
+    private boolean staging;
+    private VerificationLevel verification = VerificationLevel.FULL;
+    private double sampleRate = 0.05;
+
+    /**
+     * Returns patcher that takes hash sums of files that weren't changed since previous run
+     * from specified cache file and updates that file with hash sums of patched files,
+     * this instance is not changed
+     *
+     * @param hashCacheFile hash cache file, will be created if not exists
+     * @return patcher with specified hash cache
+     */
+    public DirDeltaPatcher withHashCache(File hashCacheFile) {
+        checkArgument(null != hashCacheFile, "Provided hash cache file is null");
+        DirDeltaPatcher res = copy();
+        res.hashCacheFile = hashCacheFile;
+        return res;
+    }
+
+    /**
+     * Returns patcher that reads patch files through ZIP central directory fetching entries by name
+     * instead of reading them in order, doesn't affect patching from stream, this instance is not changed
+     *
+     * @param randomAccess random access flag
+     * @return patcher with specified random access flag
+     */
+    public DirDeltaPatcher withRandomAccess(boolean randomAccess) {
+        DirDeltaPatcher res = copy();
+        res.randomAccess = randomAccess;
+        return res;
+    }
 
     /**
-     * Applies patch file to directory
+     * Returns patcher that checks and deletes files using specified number of threads,
+     * created and updated files are also processed in parallel if patch is read with random access,
+     * first failure interrupts other threads, this instance is not changed
+     *
+     * @param threads number of worker threads, 1 means processing in calling thread
+     * @return patcher with specified number of threads
+     */
+    public DirDeltaPatcher withThreads(int threads) {
+        checkArgument(threads > 0, "Threads count must be positive, but was: %s", threads);
+        DirDeltaPatcher res = copy();
+        res.threads = threads;
+        return res;
+    }
+
+    /**
+     * Returns patcher that checks hash sums of 'updated' files while reading them for patch application
+     * instead of reading them separately before it. Patch is applied to the wrong file before
+     * the check fails in this mode, directory is not changed in this case. This instance is not changed
+     *
+     * @param streamingCheck streaming check flag
+     * @return patcher with specified streaming check flag
+     */
+    public DirDeltaPatcher withStreamingCheck(boolean streamingCheck) {
+        DirDeltaPatcher res = copy();
+        res.streamingCheck = streamingCheck;
+        return res;
+    }
+
+    /**
+     * Returns patcher that reads index lazily instead of loading it into memory before patching,
+     * index of streamed patch is kept in temporary file. Heap usage doesn't depend on files count,
+     * index must be grouped by entries states (as written by creator). This instance is not changed
+     *
+     * @param streamingIndex streaming index flag
+     * @return patcher with specified streaming index flag
+     */
+    public DirDeltaPatcher withStreamingIndex(boolean streamingIndex) {
+        DirDeltaPatcher res = copy();
+        res.streamingIndex = streamingIndex;
+        return res;
+    }
+
+    /**
+     * Returns patcher that applies GDIFF deltas with specified engine, this instance is not changed
+     *
+     * @param engine delta engine, {@link JavaxDeltaEngine} by default
+     * @return patcher with specified delta engine
+     */
+    public DirDeltaPatcher withDeltaEngine(DeltaEngine engine) {
+        checkArgument(null != engine, "Provided delta engine is null");
+        DirDeltaPatcher res = copy();
+        res.engine = engine;
+        return res;
+    }
+
+    /**
+     * Returns patcher that creates 'duplicated' files as hard links to files with the same content
+     * when file system supports it, such files share contents and must not be modified in place.
+     * Duplicates are copied otherwise. This instance is not changed
+     *
+     * @param hardLinks hard links flag, disabled by default
+     * @return patcher with specified hard links flag
+     */
+    public DirDeltaPatcher withHardLinks(boolean hardLinks) {
+        DirDeltaPatcher res = copy();
+        res.hardLinks = hardLinks;
+        return res;
+    }
+
+    /**
+     * Returns patcher that records applied entries into write-ahead journal file. Replaced and deleted files
+     * are kept as backups until patch is completed. If journal of interrupted patch exists, patch application
+     * is resumed: incomplete entries are undone, completed ones are skipped without checking them again.
+     * Journal and backups are deleted after successful patch, this instance is not changed
+     *
+     * @param journalFile journal file, should be outside of patched directory
+     * @return patcher with specified journal
+     */
+    public DirDeltaPatcher withJournal(File journalFile) {
+        checkArgument(null != journalFile, "Provided journal file is null");
+        DirDeltaPatcher res = copy();
+        res.journalFile = journalFile;
+        return res;
+    }
+
+    /**
+     * Returns patcher that builds new version of directory in sibling staging directory and swaps
+     * directories after successful patch. Files of directory are hard-linked into staging directory (copied
+     * if file system doesn't support hard links), patched files are written there, directory is not changed
+     * on failure. If directory is a symbolic link, link is atomically replaced with link to staging directory,
+     * otherwise directories are swapped with two renames. Old version is deleted after swap.
+     * Not supported with journal, this instance is not changed
+     *
+     * @param staging staging flag, disabled by default
+     * @return patcher with specified staging flag
+     */
+    public DirDeltaPatcher withStaging(boolean staging) {
+        DirDeltaPatcher res = copy();
+        res.staging = staging;
+        return res;
+    }
+
+    /**
+     * Returns patcher that checks 'unchanged' files with specified verification level,
+     * this instance is not changed
+     *
+     * @param verification verification level, {@link VerificationLevel#FULL} by default,
+     *                     {@link VerificationLevel#SIZE_MTIME} requires hash cache
+     * @return patcher with specified verification level
+     */
+    public DirDeltaPatcher withVerification(VerificationLevel verification) {
+        checkArgument(null != verification, "Provided verification level is null");
+        DirDeltaPatcher res = copy();
+        res.verification = verification;
+        return res;
+    }
+
+    /**
+     * Returns patcher that checks specified share of 'unchanged' files with {@link VerificationLevel#SAMPLED}
+     * verification level, this instance is not changed
+     *
+     * @param sampleRate share of checked files from 0 to 1, 0.05 by default
+     * @return patcher with specified sample rate
+     */
+    public DirDeltaPatcher withSampleRate(double sampleRate) {
+        checkArgument(sampleRate >= 0 && sampleRate <= 1, "Sample rate must be in [0, 1], but was: %s", sampleRate);
+        DirDeltaPatcher res = copy();
+        res.sampleRate = sampleRate;
+        return res;
+    }
+
+    /**
+     * Rolls back interrupted patch application using journal, all applied entries are undone
+     * and journal file is deleted
+     *
+     * @param dir patched directory
+     * @throws IOException on io problem or if journal doesn't exist
+     */
+    public void rollback(File dir) throws IOException {
+        checkState(null != journalFile, "Journal file is not specified");
+        PatchJournal.rollback(journalFile, dir);
+    }
+
+    /**
+     * Repairs corrupted files of directory using repair patch: patch with whole new versions of files
+     * and block hash sums, created from empty directory with {@link DirDeltaCreator#withBlockSize(int)}.
+     * Blocks of existing files are checked in parallel, only corrupted blocks are rewritten with blocks
+     * read from patch, missing files and files without block hash sums are rewritten whole if their hash sums
+     * differ. Files not listed in patch are not changed. Patch is read sequentially, journal and staging
+     * are not used in repair mode
+     *
+     * @param dir directory to repair
+     * @param patch ZIP or LZ4 repair patch file
+     * @return number of rewritten blocks, files without block hash sums are counted as single blocks
+     * @throws IOException on any io problem or if patch contains not only 'created' entries
+     */
+    public long repair(File dir, File patch) throws IOException {
+        if(!dir.isDirectory()) throw new IOException("Bad dir argument: " + dir);
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(openInputStream(patch));
+            PatchSource source = Lz4ContainerInputStream.isContainer(is) ?
+                    new Lz4PatchSource(new Lz4ContainerInputStream(is)) : new StreamPatchSource(new ZipInputStream(is));
+            return repair(dir, source);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Applies patch file to directory, ZIP or LZ4 container is detected automatically,
+     * LZ4 container is always read sequentially
      *
      * @param dir target directory
-     * @param patch ZIP patch file
+     * @param patch ZIP or LZ4 patch file
      * @throws IOException on any io or consistency problem
      */
     public void patch(File dir, File patch) throws IOException {
-        ZipInputStream zis = null;
-        try {
-            zis = new ZipInputStream(openInputStream(patch));
-            patch(dir, zis);
-        } finally {
-            IOUtils.closeQuietly(zis);
+        if(randomAccess && !isLz4Container(patch)) {
+            PatchSource source = null;
+            try {
+                source = new ZipFilePatchSource(patch);
+                patch(dir, source);
+            } finally {
+                IOUtils.closeQuietly(source);
+            }
+        } else {
+            InputStream is = null;
+            try {
+                is = openInputStream(patch);
+                patch(dir, is);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+    }
+
+    /**
+     * Applies patch stream to directory, ZIP or LZ4 container is detected automatically
+     *
+     * @param dir target directory
+     * @param patch ZIP or LZ4 patch stream, won't be closed
+     * @throws IOException on any io or consistency problem
+     */
+    public void patch(File dir, InputStream patch) throws IOException {
+        InputStream buffered = new BufferedInputStream(patch);
+        if(Lz4ContainerInputStream.isContainer(buffered)) {
+            patch(dir, new Lz4PatchSource(new Lz4ContainerInputStream(buffered)));
+        } else {
+            patch(dir, new ZipInputStream(buffered));
         }
     }
 
@@ -73,125 +325,735 @@ public class DirDeltaPatcher {
      * @throws IOException on any io or consistency problem
      */
     public void patch(File dir, ZipInputStream patch) throws IOException {
-        DeltaIndex index = readIndex(patch);
-        check(index.unchanged, dir);
-        create(index.created, dir, patch);
-        update(index.updated, dir, patch);
-        delete(index.deleted, dir);
-    }
-
-    private DeltaIndex readIndex(ZipInputStream patch) throws IOException {
-        ZipEntry indexEntry = patch.getNextEntry();
-        checkArgument(indexEntry.getName().startsWith(".index"), "Unexpected index file name: '{}', must start with '.index'");
-        LineIterator iter = IOUtils.lineIterator(patch, "UTF-8");
-        List<? extends IndexEntry> entries = ImmutableList.copyOf(Iterators.transform(iter, new IndexEntryMapper()));
-        patch.closeEntry();
+        patch(dir, new StreamPatchSource(patch));
+    }
+
+    private void patch(File dir, PatchSource patch) throws IOException {
+        checkState(VerificationLevel.SIZE_MTIME != verification || null != hashCacheFile,
+                "Hash cache is required for SIZE_MTIME verification");
+        HashCache cache = HashCache.load(hashCacheFile);
+        if(staging) {
+            patchStaged(dir, patch, cache);
+        } else {
+            apply(dir, patch, cache);
+        }
+        cache.save();
+    }
+
+    private long repair(File dir, PatchSource patch) throws IOException {
+        HashCache cache = HashCache.load(hashCacheFile);
+        ExecutorService executor = newExecutor(threads, "delta-repairer");
+        InputStream indexStream = null;
+        try {
+            // other entries of streamed patch follow the index one
+            indexStream = patch.openIndex();
+            IndexCodec.Entries entries = IndexCodec.read(indexStream);
+            List<IndexEntry> index = ImmutableList.copyOf(entries);
+            indexStream.close();
+            HashCache hashes = cache.withAlgorithm(entries.algorithm);
+            BlockVerifier verifier = new BlockVerifier(entries.algorithm, entries.blockSize, executor, threads * 2);
+            long repaired = 0;
+            for (IndexEntry en : index) {
+                if(!(en instanceof IndexEntry.Created)) throw new IOException(
+                        "Repair patch must contain only CREATED entries, found: " + en.state + " for file: " + en.path);
+                repaired += repair(new File(dir, en.path), (IndexEntry.Created) en, patch, hashes, verifier);
+            }
+            cache.save();
+            return repaired;
+        } finally {
+            IOUtils.closeQuietly(indexStream);
+            shutdown(executor);
+        }
+    }
+
+    private long repair(File file, IndexEntry.Created en, PatchSource patch, HashCache cache, BlockVerifier verifier) throws IOException {
+        InputStream entry = patch.openEntry(en.path);
+        try {
+            if(null != en.blocks && file.isFile()) {
+                Set<Integer> corrupted = verifier.corrupted(file, en.blocks);
+                if(!corrupted.isEmpty()) {
+                    verifier.rewrite(file, en, entry, corrupted);
+                }
+                cache.put(file, en.newSha1);
+                return corrupted.size();
+            }
+            String sha1 = file.isFile() ? cache.computeHash(file) : null;
+            if(en.newSha1.equals(sha1)) return 0;
+            if(file.isDirectory()) throw new IOException("Cannot repair file, directory exists: " + file);
+            String sha1new = copyStreamToFileWithDigest(entry, file, cache.algorithm());
+            if(!sha1new.equals(en.newSha1)) throw new IOException("Repair patch check failed for file: " + file);
+            cache.put(file, sha1new);
+            return null != en.blocks ? en.blocks.size() : 1;
+        } finally {
+            IOUtils.closeQuietly(entry);
+        }
+    }
+
+    // builds new version of directory next to it and swaps them, directory is not changed on failure
+    private void patchStaged(File dir, PatchSource patch, HashCache cache) throws IOException {
+        checkState(null == journalFile, "Journal is not supported in staging mode");
+        if(!dir.isDirectory()) throw new IOException("Bad dir argument: " + dir);
+        File abs = dir.getAbsoluteFile();
+        boolean symlink = java.nio.file.Files.isSymbolicLink(abs.toPath());
+        File current = symlink ? abs.toPath().toRealPath().toFile() : abs;
+        File staged = sibling(current, abs.getName());
+        boolean swapped = false;
+        try {
+            linkTree(current, staged);
+            cache.relocate(abs, staged);
+            apply(staged, patch, cache);
+            if(symlink) {
+                // link is replaced with rename, target is always valid
+                Path link = sibling(abs, abs.getName()).toPath();
+                java.nio.file.Files.createSymbolicLink(link, staged.toPath());
+                java.nio.file.Files.move(link, abs.toPath(), ATOMIC_MOVE);
+                swapped = true;
+                FileUtils.deleteDirectory(current);
+            } else {
+                // directory is absent between two renames, but never contains mixed version
+                File old = sibling(abs, abs.getName());
+                java.nio.file.Files.move(abs.toPath(), old.toPath(), ATOMIC_MOVE);
+                try {
+                    java.nio.file.Files.move(staged.toPath(), abs.toPath(), ATOMIC_MOVE);
+                } catch (IOException e) {
+                    java.nio.file.Files.move(old.toPath(), abs.toPath(), ATOMIC_MOVE);
+                    throw e;
+                }
+                swapped = true;
+                FileUtils.deleteDirectory(old);
+            }
+            cache.relocate(staged, abs);
+        } finally {
+            if(!swapped) FileUtils.deleteQuietly(staged);
+        }
+    }
+
+    private void apply(File dir, PatchSource patch, HashCache cache) throws IOException {
+        PatchJournal journal = null != journalFile ? PatchJournal.open(journalFile, dir) : PatchJournal.disabled();
+        ExecutorService executor = newExecutor(threads, "delta-patcher");
+        ExecutorService blocksExecutor = null;
+        InputStream indexStream = null;
+        IndexSpill spill = null;
+        try {
+            final IndexCodec.Entries entries;
+            if(!streamingIndex) {
+                entries = readIndex(patch);
+            } else if(patch.isRandomAccess()) {
+                // index is read along with other entries
+                indexStream = patch.openIndex();
+                entries = IndexCodec.read(indexStream);
+            } else {
+                // other entries of streamed patch follow the index one
+                spill = IndexSpill.create();
+                spill.copy(patch.openIndex());
+                entries = spill.iterator();
+            }
+            // files are checked with algorithm from index header
+            HashCache hashes = cache.withAlgorithm(entries.algorithm);
+            // blocks of single file are checked in parallel, checkers wait for them in another pool
+            if(entries.blockSize > 0) blocksExecutor = newExecutor(threads, "delta-patcher-blocks");
+            BlockVerifier verifier = new BlockVerifier(entries.algorithm, entries.blockSize, blocksExecutor, threads * 2);
+            PeekingIterator<IndexEntry> index = Iterators.peekingIterator(entries);
+            // entries of streamed patch can be read only in order
+            ExecutorService entriesExecutor = patch.isRandomAccess() ? executor : MoreExecutors.sameThreadExecutor();
+            int window = threads * 2;
+            // checks don't change directory, only their completion is journaled
+            if(VerificationLevel.NONE == verification || journal.isChecked()) {
+                // cache entries of not checked files are kept
+                for (Iterator<IndexEntry.Unchanged> it = new StateIterator<IndexEntry.Unchanged>(index, IndexEntry.Unchanged.class); it.hasNext(); ) {
+                    hashes.keep(new File(dir, it.next().path));
+                }
+            } else {
+                forEach(new StateIterator<IndexEntry.Unchanged>(index, IndexEntry.Unchanged.class), new Checker(dir, hashes, verifier), executor, window);
+                journal.checked();
+            }
+            // sources of copies and moves must be read before they are updated or deleted
+            forEach(new StateIterator<IndexEntry.CopiedFrom>(index, IndexEntry.CopiedFrom.class), journaled(new Copier(dir, patch, hashes, journal), dir, hashes, journal, patch), entriesExecutor, window);
+            forEach(new StateIterator<IndexEntry.Moved>(index, IndexEntry.Moved.class), journaled(new Mover(dir, patch, hashes, journal), dir, hashes, journal, patch), entriesExecutor, window);
+            forEach(new StateIterator<IndexEntry.Created>(index, IndexEntry.Created.class), journaled(new Creator(dir, patch, hashes, journal), dir, hashes, journal, patch), entriesExecutor, window);
+            forEach(new StateIterator<IndexEntry.Duplicated>(index, IndexEntry.Duplicated.class), journaled(new Duplicator(dir, hashes, journal), dir, hashes, journal, patch), executor, window);
+            forEach(new StateIterator<IndexEntry.Updated>(index, IndexEntry.Updated.class), journaled(new Updater(dir, patch, hashes, journal), dir, hashes, journal, patch), entriesExecutor, window);
+            forEach(new StateIterator<IndexEntry.Deleted>(index, IndexEntry.Deleted.class), journaled(new Deleter(dir, hashes, journal), dir, hashes, journal, patch), executor, window);
+            if(index.hasNext()) throw new IOException("Index entries are not grouped by state, unexpected entry: " + index.next().path);
+            journal.commit();
+        } finally {
+            IOUtils.closeQuietly(indexStream);
+            IOUtils.closeQuietly(spill);
+            shutdown(executor);
+            if(null != blocksExecutor) shutdown(blocksExecutor);
+            IOUtils.closeQuietly(journal);
+        }
+    }
+
+    // entries are regrouped in order of application
+    private IndexCodec.Entries readIndex(PatchSource patch) throws IOException {
+        InputStream is = null;
+        final IndexCodec.Entries read;
+        final List<? extends IndexEntry> entries;
+        try {
+            is = patch.openIndex();
+            read = IndexCodec.read(is);
+            entries = ImmutableList.copyOf(read);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
         ImmutableList<IndexEntry.Unchanged> unchanged = ImmutableList.copyOf(Iterables.filter(entries, IndexEntry.Unchanged.class));
         ImmutableList<IndexEntry.Created> created = ImmutableList.copyOf(Iterables.filter(entries, IndexEntry.Created.class));
         ImmutableList<IndexEntry.Updated> updated = ImmutableList.copyOf(Iterables.filter(entries, IndexEntry.Updated.class));
         ImmutableList<IndexEntry.Deleted> deleted = ImmutableList.copyOf(Iterables.filter(entries, IndexEntry.Deleted.class));
-        return new DeltaIndex(created, deleted, updated, unchanged);
+        ImmutableList<IndexEntry.Moved> moved = ImmutableList.copyOf(Iterables.filter(entries, IndexEntry.Moved.class));
+        ImmutableList<IndexEntry.CopiedFrom> copied = ImmutableList.copyOf(Iterables.filter(entries, IndexEntry.CopiedFrom.class));
+        ImmutableList<IndexEntry.Duplicated> duplicated = ImmutableList.copyOf(Iterables.filter(entries, IndexEntry.Duplicated.class));
+        DeltaIndex index = new DeltaIndex(created, deleted, updated, unchanged, moved, copied, duplicated);
+        return new IndexCodec.Entries(ImmutableList.<IndexEntry>copyOf(index.getAll()).iterator(), read.algorithm, read.blockSize);
+    }
+
+    // takes leading entries of specified state
+    private static class StateIterator<T extends IndexEntry> extends AbstractIterator<T> {
+        private final PeekingIterator<IndexEntry> index;
+        private final Class<T> state;
+
+        private StateIterator(PeekingIterator<IndexEntry> index, Class<T> state) {
+            this.index = index;
+            this.state = state;
+        }
+
+        @Override
+        protected T computeNext() {
+            if(index.hasNext() && state.isInstance(index.peek())) return state.cast(index.next());
+            return endOfData();
+        }
+    }
+
+    // checks and skips entries completed by previous run, applies others as journal operations
+    private static class Journaled<T extends IndexEntry> implements Action<T> {
+        private final Operation<T> operation;
+        private final File dir;
+        private final HashCache cache;
+        private final PatchJournal journal;
+        private final PatchSource patch;
+
+        private Journaled(Operation<T> operation, File dir, HashCache cache, PatchJournal journal, PatchSource patch) {
+            this.operation = operation;
+            this.dir = dir;
+            this.cache = cache;
+            this.journal = journal;
+            this.patch = patch;
+        }
+
+        @Override
+        public void apply(T en) throws IOException {
+            if(journal.isDone(en)) {
+                // entries of streamed patch must be read in order
+                String name = entryName(en);
+                if(null != name && !patch.isRandomAccess()) IOUtils.closeQuietly(patch.openEntry(name));
+                checkDone(en);
+                return;
+            }
+            int op = journal.begin(en);
+            operation.apply(en, op);
+            journal.done(op);
+        }
+
+        // changes of completed entry may be lost on crash before commit, patch should be rolled back then
+        private void checkDone(T en) throws IOException {
+            File file = new File(dir, en.path);
+            if(IndexEntry.State.DELETED == en.state) {
+                if(file.exists()) throw new IOException("Completed DELETED file exists: " + file);
+            } else if(!(file.isFile() && cache.computeHash(file).equals(en.newSha1))) {
+                throw new IOException("Completed " + en.state + " file check failed for file: " + file);
+            }
+        }
+    }
+
+    // checks and rewrites blocks of files
+    private static class BlockVerifier {
+        private final DigestAlgorithm algorithm;
+        private final int blockSize;
+        private final ExecutorService executor;
+        private final int window;
+
+        private BlockVerifier(DigestAlgorithm algorithm, int blockSize, ExecutorService executor, int window) {
+            this.algorithm = algorithm;
+            this.blockSize = blockSize;
+            this.executor = executor;
+            this.window = window;
+        }
+
+        // indexes of blocks with hash sums differing from expected ones, blocks are hashed in parallel
+        private Set<Integer> corrupted(File file, final List<String> blocks) throws IOException {
+            final Set<Integer> res = new ConcurrentSkipListSet<Integer>();
+            final FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                final long size = ch.size();
+                List<Integer> indexes = new ArrayList<Integer>();
+                for (int i = 0; i < blocks.size(); i++) {
+                    indexes.add(i);
+                }
+                forEach(indexes.iterator(), new Action<Integer>() {
+                    @Override
+                    public void apply(Integer index) throws IOException {
+                        long pos = (long) index * blockSize;
+                        boolean last = blocks.size() - 1 == index;
+                        // missing block or excess data after the last one
+                        if(pos >= size || (last && size - pos > blockSize)) {
+                            res.add(index);
+                            return;
+                        }
+                        int len = (int) Math.min(blockSize, size - pos);
+                        String hash = HashUtils.computeHash(ch, pos, len, algorithm);
+                        if(!hash.equals(blocks.get(index))) res.add(index);
+                    }
+                }, executor, window);
+                return res;
+            } finally {
+                IOUtils.closeQuietly(ch);
+            }
+        }
+
+        // writes specified blocks from whole file stream, file is truncated to stream length
+        private void rewrite(File file, IndexEntry en, InputStream stream, Set<Integer> corrupted) throws IOException {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                MessageDigest md = algorithm.newDigest();
+                byte[] buf = new byte[blockSize];
+                long pos = 0;
+                int index = 0;
+                int len;
+                // all blocks are read, stream may be not seekable
+                while ((len = ByteStreams.read(stream, buf, 0, blockSize)) > 0) {
+                    if(index >= en.blocks.size()) throw new IOException("Repair patch entry is longer than its blocks, file: " + file);
+                    if(corrupted.contains(index)) {
+                        md.update(buf, 0, len);
+                        if(!hex(md.digest()).equals(en.blocks.get(index))) throw new IOException(
+                                "Repair patch check failed for file: " + file + ", block: " + index);
+                        raf.seek(pos);
+                        raf.write(buf, 0, len);
+                    }
+                    pos += len;
+                    index += 1;
+                }
+                if(index != en.blocks.size()) throw new IOException("Repair patch entry is shorter than its blocks, file: " + file);
+                raf.setLength(pos);
+                raf.getFD().sync();
+            } finally {
+                IOUtils.closeQuietly(raf);
+            }
+        }
+    }
+
+    private interface Operation<T extends IndexEntry> {
+        /**
+         * @param en index entry
+         * @param op journal operation id
+         * @throws IOException on io or consistency problem
+         */
+        void apply(T en, int op) throws IOException;
     }
 
-    private void check(List<IndexEntry.Unchanged> index, File dir) throws IOException {
-        for (IndexEntry.Unchanged en : index) {
+    private class Checker implements Action<IndexEntry.Unchanged> {
+        private final File dir;
+        private final HashCache cache;
+        private final BlockVerifier verifier;
+
+        private Checker(File dir, HashCache cache, BlockVerifier verifier) {
+            this.dir = dir;
+            this.cache = cache;
+            this.verifier = verifier;
+        }
+
+        @Override
+        public void apply(IndexEntry.Unchanged en) throws IOException {
             File file = new File(dir, en.path);
             if(!(file.exists() && file.isFile())) throw new FileNotFoundException(file.toString());
-            String sha1 = computeSha1(file);
+            // cached hash sums are trusted on all levels except FULL
+            String sha1 = VerificationLevel.FULL == verification ? null : cache.lookup(file);
+            if(null == sha1) {
+                if(!isVerified(file)) return;
+                if(null != en.blocks) {
+                    Set<Integer> corrupted = verifier.corrupted(file, en.blocks);
+                    if(!corrupted.isEmpty()) throw new IOException("UNCHANGED file check failed for file: " + file +
+                            ", corrupted blocks: " + corrupted);
+                    cache.put(file, en.oldSha1);
+                    return;
+                }
+                sha1 = cache.rehash(file);
+            }
             if(!sha1.equals(en.oldSha1)) throw new IOException("UNCHANGED file check failed for file: " + file);
         }
+
+        // whether file without up-to-date cache entry should be read
+        private boolean isVerified(File file) {
+            switch (verification) {
+                // file was changed or not cached since previous run
+                case FULL:
+                case SIZE_MTIME: return true;
+                case SAMPLED: return ThreadLocalRandom.current().nextDouble() < sampleRate;
+                default: throw new IllegalStateException("Unexpected verification level: " + verification);
+            }
+        }
+    }
+
+    private class Copier implements Operation<IndexEntry.CopiedFrom> {
+        private final File dir;
+        private final PatchSource patch;
+        private final HashCache cache;
+        private final PatchJournal journal;
+
+        private Copier(File dir, PatchSource patch, HashCache cache, PatchJournal journal) {
+            this.dir = dir;
+            this.patch = patch;
+            this.cache = cache;
+            this.journal = journal;
+        }
+
+        @Override
+        public void apply(IndexEntry.CopiedFrom en, int op) throws IOException {
+            File source = new File(dir, en.sourcePath);
+            File file = new File(dir, en.path);
+            if (!source.exists()) throw new IOException("COPIED_FROM source file doesn't exist: " + source);
+            if (file.exists()) throw new IOException("COPIED_FROM file already exists: " + file);
+            buildFrom(source, file, en, patch, cache, journal, op);
+            cache.put(file, en.newSha1);
+        }
     }
 
-    private void create(List<IndexEntry.Created> index, File dir, ZipInputStream patch) throws IOException {
-        for (IndexEntry.Created en : index) {
-            ZipEntry entry = patch.getNextEntry();
-            checkState(en.path.equals(entry.getName()), "Index and zipstream unsynchronized, index: " + en.path + ", zipstream: " + entry.getName());
+    private class Mover implements Operation<IndexEntry.Moved> {
+        private final File dir;
+        private final PatchSource patch;
+        private final HashCache cache;
+        private final PatchJournal journal;
+
+        private Mover(File dir, PatchSource patch, HashCache cache, PatchJournal journal) {
+            this.dir = dir;
+            this.patch = patch;
+            this.cache = cache;
+            this.journal = journal;
+        }
+
+        @Override
+        public void apply(IndexEntry.Moved en, int op) throws IOException {
+            File source = new File(dir, en.sourcePath);
             File file = new File(dir, en.path);
-            if (file.exists()) throw new IOException("CREATED file already exists: " + file);
-            String sha1 = copyStreamToFileWithDigest(patch, file);
-            if (!sha1.equals(en.newSha1)) throw new IOException("CREATED file check failed for file: " + file);
-            patch.closeEntry();
+            if (!source.exists()) throw new IOException("MOVED source file doesn't exist: " + source);
+            if (file.exists()) throw new IOException("MOVED file already exists: " + file);
+            if (en.oldSha1.equals(en.newSha1)) {
+                String sha1 = cache.computeHash(source);
+                if (!sha1.equals(en.oldSha1)) throw new IOException("MOVED file check failed for source file: " + source);
+                Files.createParentDirs(file);
+                journal.rename(op, source, file);
+            } else {
+                buildFrom(source, file, en, patch, cache, journal, op);
+                journal.remove(op, source);
+            }
+            cache.remove(source);
+            cache.put(file, en.newSha1);
+        }
+    }
+
+    private class Creator implements Operation<IndexEntry.Created> {
+        private final File dir;
+        private final PatchSource patch;
+        private final HashCache cache;
+        private final PatchJournal journal;
+
+        private Creator(File dir, PatchSource patch, HashCache cache, PatchJournal journal) {
+            this.dir = dir;
+            this.patch = patch;
+            this.cache = cache;
+            this.journal = journal;
+        }
+
+        @Override
+        public void apply(IndexEntry.Created en, int op) throws IOException {
+            InputStream entry = patch.openEntry(en.path);
+            try {
+                File file = new File(dir, en.path);
+                if (file.exists()) throw new IOException("CREATED file already exists: " + file);
+                journal.created(op, file);
+                String sha1 = copyStreamToFileWithDigest(entry, file, cache.algorithm());
+                if (!sha1.equals(en.newSha1)) throw new IOException("CREATED file check failed for file: " + file);
+                cache.put(file, sha1);
+            } finally {
+                IOUtils.closeQuietly(entry);
+            }
         }
     }
 
-    private void update(List<IndexEntry.Updated> index, File dir, ZipInputStream patch) throws IOException {
-        for (IndexEntry.Updated en : index) {
-            ZipEntry entry = patch.getNextEntry();
-            checkState((en.path + ".gdiff").equals(entry.getName()), "Index and zipstream unsynchronized, index: " + en.path + ", zipstream: " + entry.getName());
+    private class Duplicator implements Operation<IndexEntry.Duplicated> {
+        private final File dir;
+        private final HashCache cache;
+        private final PatchJournal journal;
+
+        private Duplicator(File dir, HashCache cache, PatchJournal journal) {
+            this.dir = dir;
+            this.cache = cache;
+            this.journal = journal;
+        }
+
+        @Override
+        public void apply(IndexEntry.Duplicated en, int op) throws IOException {
+            File source = new File(dir, en.sourcePath);
             File file = new File(dir, en.path);
-            if (!file.exists()) throw new IOException("UPDATED file doesn't exist: " + file);
-            String sha1old = computeSha1(file);
-            if(!sha1old.equals(en.oldSha1)) throw new IOException("UPDATED file check failed for old file: " + file);
-            File patched = new File(dir, en.path + UUID.randomUUID().toString());
-            patch(file, patch, patched);
-            String sha1new = computeSha1(patched);
-            if(!sha1new.equals(en.newSha1)) throw new IOException("UPDATED file check failed for new file: " + file);
-            boolean deleted = file.delete();
-            checkState(deleted, "Delete file unsuccessful: " + file);
-            boolean renamed = patched.renameTo(file);
-            checkState(renamed, "Rename to file unsuccessful: " + file);
-            patch.closeEntry();
-        }
-    }
-
-    private void delete(List<IndexEntry.Deleted> index, File dir) throws IOException {
-        for (IndexEntry.Deleted en : index) {
+            if (!source.exists()) throw new IOException("DUPLICATED source file doesn't exist: " + source);
+            if (file.exists()) throw new IOException("DUPLICATED file already exists: " + file);
+            journal.created(op, file);
+            if (!(hardLinks && link(source, file))) {
+                InputStream is = new FileInputStream(source);
+                try {
+                    String sha1 = copyStreamToFileWithDigest(is, file, cache.algorithm());
+                    if (!sha1.equals(en.newSha1)) throw new IOException("DUPLICATED file check failed for file: " + file);
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+            }
+            cache.put(file, en.newSha1);
+        }
+    }
+
+    private class Updater implements Operation<IndexEntry.Updated> {
+        private final File dir;
+        private final PatchSource patch;
+        private final HashCache cache;
+        private final PatchJournal journal;
+
+        private Updater(File dir, PatchSource patch, HashCache cache, PatchJournal journal) {
+            this.dir = dir;
+            this.patch = patch;
+            this.cache = cache;
+            this.journal = journal;
+        }
+
+        @Override
+        public void apply(IndexEntry.Updated en, int op) throws IOException {
+            InputStream entry = patch.openEntry(en.path + ".gdiff");
+            File patched = null;
+            try {
+                File file = new File(dir, en.path);
+                if (!file.exists()) throw new IOException("UPDATED file doesn't exist: " + file);
+                // in streaming mode old file is hashed by the patch pass itself unless its hash is cached
+                String sha1old = streamingCheck ? cache.lookup(file) : cache.computeHash(file);
+                if(null != sha1old && !sha1old.equals(en.oldSha1)) throw new IOException("UPDATED file check failed for old file: " + file);
+                patched = new File(dir, en.path + UUID.randomUUID().toString());
+                journal.created(op, patched);
+                String sha1new;
+                SeekableSource source = openSource(file);
+                try {
+                    if (null == sha1old) {
+                        DigestingSeekableSource digesting = new DigestingSeekableSource(source, file.length(), cache.algorithm());
+                        sha1new = patch(digesting, entry, patched, cache.algorithm());
+                        sha1old = digesting.finish();
+                        if(!sha1old.equals(en.oldSha1)) throw new IOException("UPDATED file check failed for old file: " + file);
+                    } else {
+                        sha1new = patch(source, entry, patched, cache.algorithm());
+                    }
+                } finally {
+                    IOUtils.closeQuietly(source);
+                }
+                if(!sha1new.equals(en.newSha1)) throw new IOException("UPDATED file check failed for new file: " + file);
+                journal.remove(op, file);
+                journal.rename(op, patched, file);
+                cache.put(file, sha1new);
+            } finally {
+                IOUtils.closeQuietly(entry);
+                if(null != patched && patched.exists()) patched.delete();
+            }
+        }
+    }
+
+    private class Deleter implements Operation<IndexEntry.Deleted> {
+        private final File dir;
+        private final HashCache cache;
+        private final PatchJournal journal;
+
+        private Deleter(File dir, HashCache cache, PatchJournal journal) {
+            this.dir = dir;
+            this.cache = cache;
+            this.journal = journal;
+        }
+
+        @Override
+        public void apply(IndexEntry.Deleted en, int op) throws IOException {
             File file = new File(dir, en.path);
             if (!file.exists()) throw new IOException("DELETED file doesn't exist: " + file);
-            String sha1old = computeSha1(file);
+            String sha1old = cache.computeHash(file);
             if(!sha1old.equals(en.oldSha1)) throw new IOException("DELETED file check failed old file: " + file);
-            boolean deleted = file.delete();
-            checkState(deleted, "Cannot delete file: " + file);
+            journal.remove(op, file);
+            cache.remove(file);
         }
     }
 
-    private String copyStreamToFileWithDigest(InputStream stream, File file) throws IOException {
+    // copies or patches new file from source one and checks its hash sums
+    private void buildFrom(File source, File file, IndexEntry en, PatchSource patch, HashCache cache,
+                           PatchJournal journal, int op) throws IOException {
+        File patched = new File(file.getPath() + UUID.randomUUID().toString());
+        journal.created(op, patched);
+        try {
+            final String sha1new;
+            if (en.oldSha1.equals(en.newSha1)) {
+                // copied content is checked against the same hash sum
+                InputStream is = new FileInputStream(source);
+                try {
+                    sha1new = copyStreamToFileWithDigest(is, patched, cache.algorithm());
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+            } else {
+                String sha1old = cache.computeHash(source);
+                if(!sha1old.equals(en.oldSha1)) throw new IOException(en.state + " file check failed for source file: " + source);
+                Files.createParentDirs(patched);
+                InputStream entry = patch.openEntry(en.path + ".gdiff");
+                SeekableSource ss = openSource(source);
+                try {
+                    sha1new = patch(ss, entry, patched, cache.algorithm());
+                } finally {
+                    IOUtils.closeQuietly(ss);
+                    IOUtils.closeQuietly(entry);
+                }
+            }
+            if(!sha1new.equals(en.newSha1)) throw new IOException(en.state + " file check failed for new file: " + file);
+            journal.rename(op, patched, file);
+        } finally {
+            if(patched.exists()) patched.delete();
+        }
+    }
+
+    private String copyStreamToFileWithDigest(InputStream stream, File file, DigestAlgorithm algorithm) throws IOException {
         DigestOutputStream output = null;
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            OutputStream outputStream = new BufferedOutputStream(openOutputStream(file));
-            output = new DigestOutputStream(outputStream, md);
+            FileOutputStream fos = openOutputStream(file);
+            OutputStream outputStream = new BufferedOutputStream(fos);
+            output = new DigestOutputStream(outputStream, algorithm.newDigest());
             IOUtils.copyLarge(stream, output);
             output.flush();
+            syncJournaled(fos);
             byte[] bytes = output.getMessageDigest().digest();
             return hex(bytes);
-        } catch (NoSuchAlgorithmException e) {
-            throw new UnhandledException(e);
         } finally {
             IOUtils.closeQuietly(output);
         }
     }
 
-    private void patch(File file, InputStream patch, File patched) throws IOException {
-        OutputStream out = null;
-        RandomAccessFile raf = null;
+    private static SeekableSource openSource(File file) throws IOException {
+        if(file.length() >= MMAP_THRESHOLD) return new MappedSeekableSource(file);
+        return new RandomAccessFileSeekableSource(new RandomAccessFile(file, "r"));
+    }
+
+    private String patch(SeekableSource source, InputStream patch, File patched, DigestAlgorithm algorithm) throws IOException {
+        DigestOutputStream out = null;
         try {
-            raf = new RandomAccessFile(file, "r");
-            RandomAccessFileSeekableSource source = new RandomAccessFileSeekableSource(raf);
-            out = new BufferedOutputStream(new FileOutputStream(patched));
-            new GDiffPatcher().patch(source, patch, out);
+            FileOutputStream fos = new FileOutputStream(patched);
+            out = new DigestOutputStream(new BufferedOutputStream(fos), algorithm.newDigest());
+            engine.apply(source, patch, out);
+            out.flush();
+            syncJournaled(fos);
+            return hex(out.getMessageDigest().digest());
         } finally {
             IOUtils.closeQuietly(out);
-            IOUtils.closeQuietly(raf);
         }
     }
 
-    private class IndexEntryMapper implements Function<String, IndexEntry> {
-        private final Gson gson = new Gson();
+    // journaled files must be on disk before they are renamed or their operations are marked done
+    private void syncJournaled(FileOutputStream fos) throws IOException {
+        if(null != journalFile) fos.getFD().sync();
+    }
 
-        @Override
-        public IndexEntry apply(String input) {
-            Type mapType = new TypeToken<HashMap<String, String>>() {}.getType();
-            Map<String, String> map = gson.fromJson(input, mapType);
-            String state = map.get("state");
-            String path = map.get("path");
-            String oldSha1 = map.get("oldSha1");
-            String newSha1 = map.get("newSha1");
-            if(UNCHANGED.name().equals(state)) return new IndexEntry.Unchanged(path, oldSha1, newSha1);
-            if(CREATED.name().equals(state)) return new IndexEntry.Created(path, oldSha1, newSha1);
-            if(UPDATED.name().equals(state)) return new IndexEntry.Updated(path, oldSha1, newSha1);
-            if(DELETED.name().equals(state)) return new IndexEntry.Deleted(path, oldSha1, newSha1);
-            throw new IllegalStateException("Cannot parse index entry from line: " + input);
+    // returns false if file system doesn't support hard links
+    private static boolean link(File source, File file) throws IOException {
+        Files.createParentDirs(file);
+        try {
+            java.nio.file.Files.createLink(file.toPath(), source.toPath());
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (FileSystemException e) {
+            return false;
+        }
+    }
+
+    // hard-links files of directory into new directory, files are copied if file system doesn't support hard links
+    private static void linkTree(File dir, File staged) throws IOException {
+        final Path source = dir.toPath();
+        final Path target = staged.toPath();
+        java.nio.file.Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+                java.nio.file.Files.createDirectories(target.resolve(source.relativize(path)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                Path linked = target.resolve(source.relativize(path));
+                if(!(attrs.isRegularFile() && link(path.toFile(), linked.toFile()))) {
+                    java.nio.file.Files.copy(path, linked, NOFOLLOW_LINKS, COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static File sibling(File file, String name) {
+        return new File(file.getParentFile(), "." + name + "." + UUID.randomUUID().toString());
+    }
+
+    private static <T extends IndexEntry> Action<T> journaled(Operation<T> operation, File dir, HashCache cache,
+                                                              PatchJournal journal, PatchSource patch) {
+        return new Journaled<T>(operation, dir, cache, journal, patch);
+    }
+
+    // name of patch entry that belongs to index entry, null if there is no such entry
+    private static String entryName(IndexEntry en) {
+        switch (en.state) {
+            case CREATED: return en.path;
+            case UPDATED: return en.path + ".gdiff";
+            case MOVED:
+            case COPIED_FROM: return en.oldSha1.equals(en.newSha1) ? null : en.path + ".gdiff";
+            default: return null;
         }
     }
+
+    private static boolean isLz4Container(File patch) throws IOException {
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(openInputStream(patch));
+            return Lz4ContainerInputStream.isContainer(is);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    // waits for interrupted workers, directory must not be changed after patch call returns
+    private static void shutdown(ExecutorService executor) {
+        executor.shutdownNow();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if(executor.awaitTermination(1, TimeUnit.SECONDS)) return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private DirDeltaPatcher copy() {
+        DirDeltaPatcher res = new DirDeltaPatcher();
+        res.hashCacheFile = hashCacheFile;
+        res.randomAccess = randomAccess;
+        res.threads = threads;
+        res.streamingCheck = streamingCheck;
+        res.streamingIndex = streamingIndex;
+        res.engine = engine;
+        res.hardLinks = hardLinks;
+        res.journalFile = journalFile;
+        res.staging = staging;
+        res.verification = verification;
+        res.sampleRate = sampleRate;
+        return res;
+    }
 }
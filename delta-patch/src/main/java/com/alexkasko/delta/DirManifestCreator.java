@@ -0,0 +1,122 @@
+package com.alexkasko.delta;
+
+import com.google.common.base.Function;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOCase;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.IOFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.commons.lang.UnhandledException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+
+import static com.alexkasko.delta.ConcurrencyUtils.newExecutor;
+import static com.alexkasko.delta.ConcurrencyUtils.transformOrdered;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Writes manifest of directory: paths, sizes and SHA-1 hash sums of all files with optional
+ * rsync-like block signatures. Patch for this directory may be created from its manifest
+ * on another host without copying this directory there. Directory is walked in sorted order,
+ * heap usage doesn't depend on files count, files may be read in multiple threads.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+public class DirManifestCreator {
+    private int threads = 1;
+    private boolean signatures = true;
+
+    /**
+     * Returns creator that uses specified number of threads for reading files, this instance is not changed
+     *
+     * @param threads number of worker threads, {@code 1} (default) means reading in calling thread
+     * @return creator with specified threads count
+     */
+    public DirManifestCreator withThreads(int threads) {
+        checkArgument(threads > 0, "Threads count must be positive, but was: %s", threads);
+        DirManifestCreator res = copy();
+        res.threads = threads;
+        return res;
+    }
+
+    /**
+     * Returns creator that writes block signatures of files, signatures allow to write only changed
+     * parts of updated files into patch. Signatures take about {@code 12 / sqrt(size)} of file size,
+     * this instance is not changed
+     *
+     * @param signatures signatures flag, enabled by default
+     * @return creator with specified signatures flag
+     */
+    public DirManifestCreator withSignatures(boolean signatures) {
+        DirManifestCreator res = copy();
+        res.signatures = signatures;
+        return res;
+    }
+
+    /**
+     * Writes manifest file
+     *
+     * @param dir directory to describe
+     * @param manifest file to write manifest into
+     * @throws IOException on any io problem
+     */
+    public void create(File dir, File manifest) throws IOException {
+        OutputStream out = null;
+        try {
+            out = FileUtils.openOutputStream(manifest);
+            create(dir, TrueFileFilter.TRUE, out);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Writes manifest into provided output stream, stream is flushed but not closed
+     *
+     * @param dir directory to describe
+     * @param filter IO filter to select files
+     * @param manifest output stream to write manifest into
+     * @throws IOException on any io problem
+     */
+    public void create(File dir, IOFileFilter filter, OutputStream manifest) throws IOException {
+        if(!(null != dir && dir.exists() && dir.isDirectory())) throw new IOException("Bad dir argument");
+        ExecutorService executor = newExecutor(threads, "manifest-creator");
+        try {
+            Iterator<String> paths = new SortedFileIterator(dir, filter, IOCase.SENSITIVE);
+            Iterator<ManifestEntry> entries = transformOrdered(paths, new Describer(dir, signatures), executor, threads * 2);
+            ManifestCodec.write(entries, manifest);
+        } catch (UnhandledException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private DirManifestCreator copy() {
+        DirManifestCreator res = new DirManifestCreator();
+        res.threads = threads;
+        res.signatures = signatures;
+        return res;
+    }
+
+    private static class Describer implements Function<String, ManifestEntry> {
+        private final File parent;
+        private final boolean signatures;
+
+        private Describer(File parent, boolean signatures) {
+            this.parent = parent;
+            this.signatures = signatures;
+        }
+
+        @Override
+        public ManifestEntry apply(String path) {
+            return ManifestEntry.compute(new File(parent, path), path, signatures);
+        }
+    }
+}
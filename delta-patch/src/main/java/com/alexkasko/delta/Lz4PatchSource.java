@@ -0,0 +1,63 @@
+package com.alexkasko.delta;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Patch source reading LZ4 container strictly in order, entries must be opened in the same order
+ * they were written by creator
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class Lz4PatchSource implements PatchSource {
+    private final Lz4ContainerInputStream lis;
+
+    /**
+     * @param lis container stream, won't be closed by this source
+     */
+    Lz4PatchSource(Lz4ContainerInputStream lis) {
+        this.lis = lis;
+    }
+
+    @Override
+    public InputStream openIndex() throws IOException {
+        String name = lis.getNextEntry();
+        checkArgument(null != name && name.startsWith(".index"),
+                "Unexpected index file name: '%s', must start with '.index'", name);
+        return new EntryStream(lis);
+    }
+
+    @Override
+    public InputStream openEntry(String name) throws IOException {
+        String entry = lis.getNextEntry();
+        checkState(null != entry && name.equals(entry), "Index and container unsynchronized, index: " + name +
+                ", container: " + entry);
+        return new EntryStream(lis);
+    }
+
+    @Override
+    public boolean isRandomAccess() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // stream is owned by caller
+    }
+
+    private static class EntryStream extends FilterInputStream {
+        private EntryStream(Lz4ContainerInputStream lis) {
+            super(lis);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ((Lz4ContainerInputStream) in).closeEntry();
+        }
+    }
+}
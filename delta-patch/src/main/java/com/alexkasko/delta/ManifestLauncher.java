@@ -0,0 +1,63 @@
+package com.alexkasko.delta;
+
+import org.apache.commons.cli.*;
+
+import java.io.File;
+
+import static java.lang.System.out;
+
+/**
+ * Directory manifest launcher class, manifest is used to create patch
+ * without copying old version of directory to the build host
+ *
+ * @author alexkasko
+ * Date: 10/17/26
+ */
+public class ManifestLauncher {
+
+    private static final String HELP_OPTION = "help";
+    private static final String THREADS_OPTION = "threads";
+    private static final String NO_SIGNATURES_OPTION = "no-signatures";
+
+    /**
+     * app entry point
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        try {
+            options.addOption("h", HELP_OPTION, false, "show this page");
+            options.addOption("t", THREADS_OPTION, true, "number of threads for reading files, default: 1");
+            options.addOption(null, NO_SIGNATURES_OPTION, false, "write only hash sums without block signatures, updated files will be written into patch whole");
+            CommandLine cline = new GnuParser().parse(options, args);
+            String[] argList = cline.getArgs();
+            if (cline.hasOption(HELP_OPTION)) {
+                throw new ParseException("Printing help page:");
+            } else if(2 == argList.length) {
+                final int threads;
+                if (cline.hasOption(THREADS_OPTION)) {
+                    String val = cline.getOptionValue(THREADS_OPTION);
+                    threads = parsePositiveInt(val);
+                    if (threads <= 0) throw new ParseException("Invalid threads arg: [" + val + "], should be positive number");
+                } else threads = 1;
+                new DirManifestCreator()
+                        .withThreads(threads)
+                        .withSignatures(!cline.hasOption(NO_SIGNATURES_OPTION))
+                        .create(new File(argList[0]), new File(argList[1]));
+            } else {
+                throw new ParseException("Incorrect arguments received!");
+            }
+        } catch (ParseException e) {
+            HelpFormatter formatter = new HelpFormatter();
+            out.println(e.getMessage());
+            formatter.printHelp("java -cp delta-patch.jar com.alexkasko.delta.ManifestLauncher [-t threads] dir manifest.bin", options);
+        }
+    }
+
+    private static int parsePositiveInt(String val) {
+        try {
+            return Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.alexkasko.delta;
+
+import com.nothome.delta.SeekableSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Seekable source backed by memory mapped file, seeks and reads of GDIFF copy instructions
+ * don't require system calls. File is mapped lazily with fixed size windows, so files
+ * larger than 2GB are supported. Windows are unmapped on {@link #close()}.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class MappedSeekableSource implements SeekableSource {
+    private static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+    private final MappedByteBuffer[] windows;
+    private long position;
+
+    /**
+     * @param file file to read
+     * @throws IOException on io error
+     */
+    MappedSeekableSource(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param file file to read
+     * @param windowSize max size of single mapped region
+     * @throws IOException on io error
+     */
+    MappedSeekableSource(File file, int windowSize) throws IOException {
+        checkArgument(windowSize > 0, "Window size must be positive, but was: %s", windowSize);
+        this.channel = FileChannel.open(file.toPath(), READ);
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        this.windows = new MappedByteBuffer[(int) ((size + windowSize - 1) / windowSize)];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void seek(long pos) throws IOException {
+        this.position = pos;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(ByteBuffer bb) throws IOException {
+        if(position >= size) return -1;
+        int read = 0;
+        while (bb.hasRemaining() && position < size) {
+            int idx = (int) (position / windowSize);
+            MappedByteBuffer win = window(idx);
+            int offset = (int) (position - (long) idx * windowSize);
+            int len = Math.min(bb.remaining(), win.capacity() - offset);
+            win.clear();
+            win.position(offset);
+            win.limit(offset + len);
+            bb.put(win);
+            position += len;
+            read += len;
+        }
+        return read;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < windows.length; i++) {
+            MmapUtils.unmap(windows[i]);
+            windows[i] = null;
+        }
+        channel.close();
+    }
+
+    private MappedByteBuffer window(int idx) throws IOException {
+        MappedByteBuffer win = windows[idx];
+        if(null == win) {
+            long start = (long) idx * windowSize;
+            long len = Math.min(windowSize, size - start);
+            win = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+            windows[idx] = win;
+        }
+        return win;
+    }
+}
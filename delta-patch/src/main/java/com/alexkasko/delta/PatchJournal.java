@@ -0,0 +1,403 @@
+package com.alexkasko.delta;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Write-ahead journal of patch application. Each index entry is applied as an operation:
+ * created files, renames and removed files (renamed to backups) are recorded before they are done,
+ * completed operations are marked. Patch interrupted by crash is resumed from the same journal:
+ * incomplete operations are undone, completed entries are skipped after checking their files.
+ * Checks of 'unchanged' files don't change directory and are recorded once for all files.
+ * Not committed patch may be rolled back by undoing all recorded operations in reverse order.
+ * Backups are deleted on commit. Journal format:
+ * <pre>
+ *  int magic, UTF directory path, records: {byte type, int operation, type-specific fields}
+ * </pre>
+ * Records are flushed immediately and synced to disk before the file system changes they describe,
+ * written files must be synced by caller before they are renamed or marked done. Directories
+ * changed by operations are synced before commit. Keys of completed entries and changed directories
+ * are kept in memory. Instances are thread-safe.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class PatchJournal implements Closeable {
+    // "DPJ" + version
+    private static final int MAGIC = 0x44504A01;
+    private static final int BEGIN = 1;
+    private static final int CREATED = 2;
+    private static final int RENAMED = 3;
+    private static final int BACKUP = 4;
+    private static final int DONE = 5;
+    private static final int ABORTED = 6;
+    private static final int COMMIT = 7;
+    private static final int CHECKED = 8;
+
+    private final File file;
+    private final Set<String> done;
+    private final List<File> backups;
+    private final Set<File> dirs = new HashSet<File>();
+    private final AtomicInteger ops;
+    private final boolean checked;
+    private FileOutputStream fos;
+    private DataOutputStream out;
+
+    private PatchJournal(File file, Set<String> done, List<File> backups, int lastOp, boolean checked) {
+        this.file = file;
+        this.done = done;
+        this.backups = backups;
+        this.ops = new AtomicInteger(lastOp);
+        this.checked = checked;
+    }
+
+    /**
+     * Returns journal that doesn't record anything, files are deleted instead of backing up
+     *
+     * @return disabled journal
+     */
+    static PatchJournal disabled() {
+        return new PatchJournal(null, Collections.<String>emptySet(), Collections.<File>emptyList(), 0, false);
+    }
+
+    /**
+     * Creates new journal or resumes existing one undoing its incomplete operations
+     *
+     * @param file journal file
+     * @param dir directory being patched
+     * @return opened journal
+     * @throws IOException on io error or if journal belongs to another directory or is already committed
+     */
+    static PatchJournal open(File file, File dir) throws IOException {
+        if(!file.exists()) {
+            PatchJournal res = new PatchJournal(file, new HashSet<String>(), new ArrayList<File>(), 0, false);
+            Files.createParentDirs(file);
+            res.openOutput(0);
+            res.out.writeInt(MAGIC);
+            res.out.writeUTF(dir.getAbsolutePath());
+            res.sync();
+            return res;
+        }
+        Contents con = read(file, dir);
+        if(con.committed) throw new IOException("Patch in journal is already committed, journal should be removed: " + file);
+        Set<String> done = new HashSet<String>();
+        List<File> backups = new ArrayList<File>();
+        Set<Integer> incomplete = new HashSet<Integer>();
+        for (Record re : con.records) {
+            if(BEGIN == re.type) incomplete.add(re.op);
+            else if(DONE == re.type) {
+                incomplete.remove(re.op);
+                done.add(con.keys.get(re.op));
+            } else if(ABORTED == re.type) incomplete.remove(re.op);
+            else if(BACKUP == re.type) backups.add(re.target);
+        }
+        undo(con.records, incomplete);
+        PatchJournal res = new PatchJournal(file, done, backups, con.lastOp, con.checked);
+        res.openOutput(con.length);
+        for (Integer op : incomplete) {
+            res.write(ABORTED, op);
+        }
+        res.sync();
+        return res;
+    }
+
+    /**
+     * Undoes all operations recorded in journal and deletes it
+     *
+     * @param file journal file
+     * @param dir directory being patched
+     * @throws IOException on io error or if journal belongs to another directory or is already committed
+     */
+    static void rollback(File file, File dir) throws IOException {
+        if(!file.exists()) throw new FileNotFoundException(file.toString());
+        Contents con = read(file, dir);
+        if(con.committed) throw new IOException("Patch in journal is already committed, cannot roll back: " + file);
+        Set<Integer> ops = new HashSet<Integer>(con.keys.keySet());
+        for (Record re : con.records) {
+            if(ABORTED == re.type) ops.remove(re.op);
+        }
+        undo(con.records, ops);
+        boolean deleted = file.delete();
+        checkState(deleted, "Delete file unsuccessful: " + file);
+    }
+
+    /**
+     * @param en index entry
+     * @return whether entry was completed by previous run
+     */
+    boolean isDone(IndexEntry en) {
+        return done.contains(key(en));
+    }
+
+    /**
+     * @return whether 'unchanged' files were checked by previous run
+     */
+    boolean isChecked() {
+        return checked;
+    }
+
+    /**
+     * Marks all 'unchanged' files checked
+     *
+     * @throws IOException on io error
+     */
+    void checked() throws IOException {
+        if(null == file) return;
+        synchronized (this) {
+            write(CHECKED, 0);
+        }
+    }
+
+    /**
+     * Starts operation for specified entry
+     *
+     * @param en index entry
+     * @return operation id
+     * @throws IOException on io error
+     */
+    int begin(IndexEntry en) throws IOException {
+        if(null == file) return 0;
+        int op = ops.incrementAndGet();
+        synchronized (this) {
+            out.writeByte(BEGIN);
+            out.writeInt(op);
+            out.writeUTF(key(en));
+            out.flush();
+        }
+        return op;
+    }
+
+    /**
+     * Records that specified file is going to be created
+     *
+     * @param op operation id
+     * @param created file that doesn't exist yet
+     * @throws IOException on io error
+     */
+    void created(int op, File created) throws IOException {
+        if(null == file) return;
+        synchronized (this) {
+            write(CREATED, op, created);
+            sync();
+            dirs.add(created.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /**
+     * Records rename and renames file
+     *
+     * @param op operation id
+     * @param from source file
+     * @param to target file
+     * @throws IOException on io error
+     */
+    void rename(int op, File from, File to) throws IOException {
+        if(null != file) synchronized (this) {
+            write(RENAMED, op, from, to);
+            sync();
+            dirs.add(from.getAbsoluteFile().getParentFile());
+            dirs.add(to.getAbsoluteFile().getParentFile());
+        }
+        boolean renamed = from.renameTo(to);
+        checkState(renamed, "Rename to file unsuccessful: " + to);
+    }
+
+    /**
+     * Removes file, file is renamed to backup until commit if journal is enabled
+     *
+     * @param op operation id
+     * @param removed file to remove
+     * @throws IOException on io error
+     */
+    void remove(int op, File removed) throws IOException {
+        if(null == file) {
+            boolean deleted = removed.delete();
+            checkState(deleted, "Delete file unsuccessful: " + removed);
+            return;
+        }
+        File backup = new File(removed.getPath() + UUID.randomUUID().toString());
+        synchronized (this) {
+            write(BACKUP, op, removed, backup);
+            sync();
+            backups.add(backup);
+            dirs.add(removed.getAbsoluteFile().getParentFile());
+        }
+        boolean renamed = removed.renameTo(backup);
+        checkState(renamed, "Rename to file unsuccessful: " + backup);
+    }
+
+    /**
+     * Marks operation completed
+     *
+     * @param op operation id
+     * @throws IOException on io error
+     */
+    void done(int op) throws IOException {
+        if(null == file) return;
+        synchronized (this) {
+            write(DONE, op);
+        }
+    }
+
+    /**
+     * Marks patch completed, deletes backups and journal file. Changed directories are synced first,
+     * so renames of completed operations cannot be lost after backups are deleted
+     *
+     * @throws IOException on io error
+     */
+    synchronized void commit() throws IOException {
+        if(null == file) return;
+        for (File dir : dirs) {
+            syncDir(dir);
+        }
+        write(COMMIT, 0);
+        sync();
+        for (File fi : backups) {
+            if(fi.exists()) {
+                boolean deleted = fi.delete();
+                checkState(deleted, "Delete file unsuccessful: " + fi);
+            }
+        }
+        close();
+        boolean deleted = file.delete();
+        checkState(deleted, "Delete file unsuccessful: " + file);
+    }
+
+    /**
+     * Closes journal file, journal is kept on disk
+     */
+    @Override
+    public synchronized void close() {
+        IOUtils.closeQuietly(out);
+        IOUtils.closeQuietly(fos);
+    }
+
+    // truncates partially written trailing record
+    private void openOutput(long length) throws IOException {
+        fos = new FileOutputStream(file, true);
+        FileChannel channel = fos.getChannel();
+        channel.truncate(length);
+        channel.position(length);
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+    }
+
+    private void write(int type, int op, File... files) throws IOException {
+        out.writeByte(type);
+        out.writeInt(op);
+        for (File fi : files) {
+            out.writeUTF(fi.getPath());
+        }
+        out.flush();
+    }
+
+    private void sync() throws IOException {
+        out.flush();
+        fos.getFD().sync();
+    }
+
+    // directories cannot be opened for syncing on some platforms, their entries are synced by file system there
+    private static void syncDir(File dir) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+    }
+
+    // undoes records of specified operations in reverse order
+    private static void undo(List<Record> records, Set<Integer> ops) throws IOException {
+        for (ListIterator<Record> it = records.listIterator(records.size()); it.hasPrevious(); ) {
+            Record re = it.previous();
+            if(!ops.contains(re.op)) continue;
+            if(CREATED == re.type) {
+                if(re.source.exists()) {
+                    boolean deleted = re.source.delete();
+                    checkState(deleted, "Delete file unsuccessful: " + re.source);
+                }
+            } else if(RENAMED == re.type || BACKUP == re.type) {
+                if(re.target.exists() && !re.source.exists()) {
+                    Files.createParentDirs(re.source);
+                    boolean renamed = re.target.renameTo(re.source);
+                    checkState(renamed, "Rename to file unsuccessful: " + re.source);
+                }
+            }
+        }
+    }
+
+    private static Contents read(File file, File dir) throws IOException {
+        Contents res = new Contents();
+        CountingInputStream counting = null;
+        try {
+            counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            DataInputStream in = new DataInputStream(counting);
+            if(MAGIC != in.readInt()) throw new IOException("Invalid journal file: " + file);
+            String path = in.readUTF();
+            if(!dir.getAbsolutePath().equals(path)) throw new IOException("Journal was written for another directory: " + path);
+            res.length = counting.getCount();
+            try {
+                for (int type = in.read(); type >= 0; type = in.read()) {
+                    int op = in.readInt();
+                    if(CREATED == type) {
+                        res.records.add(new Record(type, op, new File(in.readUTF()), null));
+                    } else if(RENAMED == type || BACKUP == type) {
+                        res.records.add(new Record(type, op, new File(in.readUTF()), new File(in.readUTF())));
+                    } else if(BEGIN == type) {
+                        res.keys.put(op, in.readUTF());
+                        res.records.add(new Record(type, op, null, null));
+                    } else if(DONE == type || ABORTED == type || COMMIT == type || CHECKED == type) {
+                        res.committed |= COMMIT == type;
+                        res.checked |= CHECKED == type;
+                        res.records.add(new Record(type, op, null, null));
+                    } else throw new IOException("Invalid journal record type: " + type);
+                    res.lastOp = Math.max(res.lastOp, op);
+                    res.length = counting.getCount();
+                }
+            } catch (EOFException e) {
+                // record was not written completely, nothing was done after it
+            }
+            return res;
+        } finally {
+            IOUtils.closeQuietly(counting);
+        }
+    }
+
+    private static String key(IndexEntry en) {
+        return en.state + ":" + en.path + ":" + en.sourcePath + ":" + en.oldSha1 + ":" + en.newSha1;
+    }
+
+    private static class Contents {
+        private final List<Record> records = new ArrayList<Record>();
+        private final Map<Integer, String> keys = new HashMap<Integer, String>();
+        private boolean committed;
+        private boolean checked;
+        private int lastOp;
+        private long length;
+    }
+
+    private static class Record {
+        private final int type;
+        private final int op;
+        private final File source;
+        private final File target;
+
+        private Record(int type, int op, File source, File target) {
+            this.type = type;
+            this.op = op;
+            this.source = source;
+            this.target = target;
+        }
+    }
+}
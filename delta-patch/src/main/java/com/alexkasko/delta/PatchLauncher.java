@@ -15,6 +15,18 @@ import static java.lang.System.out;
 public class PatchLauncher {
 
     private static final String HELP_OPTION = "help";
+    private static final String HASH_CACHE_OPTION = "hash-cache";
+    private static final String RANDOM_ACCESS_OPTION = "random-access";
+    private static final String THREADS_OPTION = "threads";
+    private static final String STREAMING_CHECK_OPTION = "streaming-check";
+    private static final String STREAMING_INDEX_OPTION = "streaming-index";
+    private static final String HARD_LINKS_OPTION = "hard-links";
+    private static final String JOURNAL_OPTION = "journal";
+    private static final String ROLLBACK_OPTION = "rollback";
+    private static final String STAGING_OPTION = "staging";
+    private static final String VERIFY_OPTION = "verify";
+    private static final String SAMPLE_RATE_OPTION = "sample-rate";
+    private static final String REPAIR_OPTION = "repair";
 
     /**
      * app entry point
@@ -23,19 +35,109 @@ public class PatchLauncher {
         Options options = new Options();
         try {
             options.addOption("h", HELP_OPTION, false, "show this page");
+            options.addOption(null, HASH_CACHE_OPTION, true, "hash sums cache file to reuse between runs");
+            options.addOption("r", RANDOM_ACCESS_OPTION, false, "read patch entries by name instead of reading them in order");
+            options.addOption("t", THREADS_OPTION, true, "number of threads for checking and applying patch entries, default: 1");
+            options.addOption(null, STREAMING_CHECK_OPTION, false, "check updated files hash sums while applying patches to them");
+            options.addOption(null, STREAMING_INDEX_OPTION, false, "read index lazily without loading it into memory");
+            options.addOption(null, HARD_LINKS_OPTION, false, "create duplicated files as hard links when file system supports them");
+            options.addOption("j", JOURNAL_OPTION, true, "journal file to resume or roll back interrupted patch application");
+            options.addOption(null, ROLLBACK_OPTION, false, "roll back interrupted patch application using journal");
+            options.addOption(null, STAGING_OPTION, false, "build new version in staging directory and swap it with patched one");
+            options.addOption(null, VERIFY_OPTION, true, "verification level of unchanged files [full/size-mtime/sampled/none], size-mtime requires hash cache, default: full");
+            options.addOption(null, SAMPLE_RATE_OPTION, true, "share of unchanged files checked with sampled verification, default: 0.05");
+            options.addOption(null, REPAIR_OPTION, false, "repair corrupted files using repair patch with block hash sums");
             CommandLine cline = new GnuParser().parse(options, args);
             String[] argList = cline.getArgs();
+            final int threads;
+            if (cline.hasOption(THREADS_OPTION)) {
+                String val = cline.getOptionValue(THREADS_OPTION);
+                threads = parsePositiveInt(val);
+                if (threads <= 0) throw new ParseException("Invalid threads arg: [" + val + "], should be positive number");
+            } else threads = 1;
             if (cline.hasOption(HELP_OPTION)) {
                 throw new ParseException("Printing help page:");
+            } else if(cline.hasOption(ROLLBACK_OPTION)) {
+                if(!cline.hasOption(JOURNAL_OPTION)) throw new ParseException("Rollback requires journal file");
+                if(1 != argList.length) throw new ParseException("Incorrect arguments received!");
+                new DirDeltaPatcher()
+                        .withJournal(new File(cline.getOptionValue(JOURNAL_OPTION)))
+                        .rollback(new File(argList[0]));
+            } else if(cline.hasOption(REPAIR_OPTION)) {
+                if(cline.hasOption(STAGING_OPTION) || cline.hasOption(JOURNAL_OPTION)) throw new ParseException("Journal and staging are not supported in repair mode");
+                if(2 != argList.length) throw new ParseException("Incorrect arguments received!");
+                DirDeltaPatcher patcher = new DirDeltaPatcher().withThreads(threads);
+                if (cline.hasOption(HASH_CACHE_OPTION)) {
+                    patcher = patcher.withHashCache(new File(cline.getOptionValue(HASH_CACHE_OPTION)));
+                }
+                long repaired = patcher.repair(new File(argList[0]), new File(argList[1]));
+                out.println("Blocks repaired: " + repaired);
+            } else if(cline.hasOption(STAGING_OPTION) && cline.hasOption(JOURNAL_OPTION)) {
+                throw new ParseException("Journal is not supported in staging mode");
             } else if(2 == argList.length) {
-                new DirDeltaPatcher().patch(new File(argList[0]), new File(argList[1]));
+                final VerificationLevel verification;
+                if (cline.hasOption(VERIFY_OPTION)) {
+                    String val = cline.getOptionValue(VERIFY_OPTION);
+                    if ("full".equalsIgnoreCase(val)) {
+                        verification = VerificationLevel.FULL;
+                    } else if ("size-mtime".equalsIgnoreCase(val)) {
+                        verification = VerificationLevel.SIZE_MTIME;
+                    } else if ("sampled".equalsIgnoreCase(val)) {
+                        verification = VerificationLevel.SAMPLED;
+                    } else if ("none".equalsIgnoreCase(val)) {
+                        verification = VerificationLevel.NONE;
+                    } else {
+                        throw new ParseException("Invalid verify arg: [" + val + "], should be [full], [size-mtime], [sampled] or [none]");
+                    }
+                } else verification = VerificationLevel.FULL;
+                if (VerificationLevel.SIZE_MTIME == verification && !cline.hasOption(HASH_CACHE_OPTION)) {
+                    throw new ParseException("Size-mtime verification requires hash cache");
+                }
+                final double sampleRate;
+                if (cline.hasOption(SAMPLE_RATE_OPTION)) {
+                    String val = cline.getOptionValue(SAMPLE_RATE_OPTION);
+                    sampleRate = parseRate(val);
+                    if (!(sampleRate >= 0 && sampleRate <= 1)) throw new ParseException("Invalid sample rate arg: [" + val + "], should be number from 0 to 1");
+                } else sampleRate = 0.05;
+                DirDeltaPatcher patcher = new DirDeltaPatcher()
+                        .withRandomAccess(cline.hasOption(RANDOM_ACCESS_OPTION))
+                        .withThreads(threads)
+                        .withStreamingCheck(cline.hasOption(STREAMING_CHECK_OPTION))
+                        .withStreamingIndex(cline.hasOption(STREAMING_INDEX_OPTION))
+                        .withHardLinks(cline.hasOption(HARD_LINKS_OPTION))
+                        .withStaging(cline.hasOption(STAGING_OPTION))
+                        .withVerification(verification)
+                        .withSampleRate(sampleRate);
+                if (cline.hasOption(HASH_CACHE_OPTION)) {
+                    patcher = patcher.withHashCache(new File(cline.getOptionValue(HASH_CACHE_OPTION)));
+                }
+                if (cline.hasOption(JOURNAL_OPTION)) {
+                    patcher = patcher.withJournal(new File(cline.getOptionValue(JOURNAL_OPTION)));
+                }
+                patcher.patch(new File(argList[0]), new File(argList[1]));
             } else {
                 throw new ParseException("Incorrect arguments received!");
             }
         } catch (ParseException e) {
             HelpFormatter formatter = new HelpFormatter();
             out.println(e.getMessage());
-            formatter.printHelp("java -jar delta-patch.jar dir patch.zip", options);
+            formatter.printHelp("java -jar delta-patch.jar [-r] [-t threads] [-j journal.bin] dir patch.zip", options);
+        }
+    }
+
+    private static int parsePositiveInt(String val) {
+        try {
+            return Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static double parseRate(String val) {
+        try {
+            return Double.parseDouble(val);
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 }
@@ -0,0 +1,39 @@
+package com.alexkasko.delta;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Source of patch entries, index entry is always read first
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+interface PatchSource extends Closeable {
+
+    /**
+     * Opens '.index' file contents, returned stream must be closed by caller
+     *
+     * @return index stream
+     * @throws IOException on io error or if index is missing
+     */
+    InputStream openIndex() throws IOException;
+
+    /**
+     * Opens patch entry contents, returned stream must be closed by caller
+     * before opening next entry
+     *
+     * @param name entry name
+     * @return entry stream
+     * @throws IOException on io error or if entry is missing
+     */
+    InputStream openEntry(String name) throws IOException;
+
+    /**
+     * Whether entries may be opened in any order and from multiple threads
+     *
+     * @return random access flag
+     */
+    boolean isRandomAccess();
+}
@@ -0,0 +1,65 @@
+package com.alexkasko.delta;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Patch source reading ZIP stream strictly in order, entries must be opened in the same order
+ * they were written by creator
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class StreamPatchSource implements PatchSource {
+    private final ZipInputStream zis;
+
+    /**
+     * @param zis patch stream, won't be closed by this source
+     */
+    StreamPatchSource(ZipInputStream zis) {
+        this.zis = zis;
+    }
+
+    @Override
+    public InputStream openIndex() throws IOException {
+        ZipEntry indexEntry = zis.getNextEntry();
+        checkArgument(null != indexEntry && indexEntry.getName().startsWith(".index"),
+                "Unexpected index file name: '%s', must start with '.index'", null != indexEntry ? indexEntry.getName() : null);
+        return new EntryStream(zis);
+    }
+
+    @Override
+    public InputStream openEntry(String name) throws IOException {
+        ZipEntry entry = zis.getNextEntry();
+        checkState(null != entry && name.equals(entry.getName()), "Index and zipstream unsynchronized, index: " + name +
+                ", zipstream: " + (null != entry ? entry.getName() : null));
+        return new EntryStream(zis);
+    }
+
+    @Override
+    public boolean isRandomAccess() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // stream is owned by caller
+    }
+
+    private static class EntryStream extends FilterInputStream {
+        private EntryStream(ZipInputStream zis) {
+            super(zis);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ((ZipInputStream) in).closeEntry();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.alexkasko.delta;
+
+/**
+ * Verification levels of 'unchanged' files, files of other states are always checked
+ * because patcher reads, replaces or deletes them. Files with up-to-date hash cache entries
+ * are checked without reading them on {@link #SIZE_MTIME} and {@link #SAMPLED} levels.
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+public enum VerificationLevel {
+    /**
+     * All files are read and their hash sums are checked, hash cache entries are not trusted
+     */
+    FULL,
+    /**
+     * Hash cache is used as stored manifest: files are hashed only if their size, modification time
+     * or inode differ from cached ones or if they are not cached yet, hash cache is required
+     */
+    SIZE_MTIME,
+    /**
+     * Hash sums of randomly sampled files are checked, other files are only checked for existence
+     */
+    SAMPLED,
+    /**
+     * Files are not checked at all
+     */
+    NONE
+}
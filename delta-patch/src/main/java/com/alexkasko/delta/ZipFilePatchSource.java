@@ -0,0 +1,55 @@
+package com.alexkasko.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Patch source reading local ZIP file through its central directory,
+ * entries are fetched by name in any order, thread-safe
+ *
+ * User: alexkasko
+ * Date: 10/17/26
+ */
+class ZipFilePatchSource implements PatchSource {
+    private final ZipFile zip;
+
+    /**
+     * @param patch patch ZIP file
+     * @throws IOException on io error
+     */
+    ZipFilePatchSource(File patch) throws IOException {
+        this.zip = new ZipFile(patch);
+    }
+
+    @Override
+    public InputStream openIndex() throws IOException {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        ZipEntry indexEntry = entries.hasMoreElements() ? entries.nextElement() : null;
+        checkArgument(null != indexEntry && indexEntry.getName().startsWith(".index"),
+                "Unexpected index file name: '%s', must start with '.index'", null != indexEntry ? indexEntry.getName() : null);
+        return zip.getInputStream(indexEntry);
+    }
+
+    @Override
+    public InputStream openEntry(String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if(null == entry) throw new IOException("Entry not found in patch: " + name);
+        return zip.getInputStream(entry);
+    }
+
+    @Override
+    public boolean isRandomAccess() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+}
@@ -1,19 +1,44 @@
 package com.alexkasko.delta;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.nothome.delta.SeekableSource;
+import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import static java.lang.System.currentTimeMillis;
 import static java.lang.System.getProperty;
 import static junit.framework.Assert.assertTrue;
+import static org.apache.commons.io.FileUtils.copyInputStreamToFile;
 import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.commons.io.FileUtils.readFileToByteArray;
+import static org.apache.commons.io.FileUtils.readFileToString;
+import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
 import static org.apache.commons.io.FileUtils.writeStringToFile;
 import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static com.alexkasko.delta.HashUtils.computeSha1;
 
 /**
@@ -51,6 +76,626 @@ public class PatchTest {
         }
     }
 
+    @Test
+    public void testInputStream() throws IOException {
+        check(new DirDeltaPatcher(), false);
+    }
+
+    @Test
+    public void testRandomAccess() throws IOException {
+        check(new DirDeltaPatcher().withRandomAccess(true), true);
+    }
+
+    @Test
+    public void testThreads() throws IOException {
+        check(new DirDeltaPatcher().withRandomAccess(true).withThreads(4), true);
+        check(new DirDeltaPatcher().withThreads(4), false);
+    }
+
+    @Test
+    public void testStreamingCheck() throws IOException {
+        check(new DirDeltaPatcher().withStreamingCheck(true), false);
+    }
+
+    @Test
+    public void testStreamingCheckFail() throws IOException {
+        File tmpdir = null;
+        InputStream diff = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            assertTrue("Cannot create tmp directory", source.mkdirs());
+            writeStringToFile(new File(source, "unchanged"), "foo", "UTF-8");
+            writeStringToFile(new File(source, "deleted"), "bar", "UTF-8");
+            File updated = new File(source, "updated");
+            writeStringToFile(updated, "bax", "UTF-8");
+            diff = PatchTest.class.getResourceAsStream("/diff.zip");
+            try {
+                new DirDeltaPatcher().withStreamingCheck(true).patch(source, new ZipInputStream(diff));
+                fail("Old file check passed");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("UPDATED file check failed for old file"));
+            }
+            assertEquals("Updated fail", "bax", readFileToString(updated, "UTF-8"));
+            assertEquals("Files count fail", 4, source.listFiles().length);
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+            closeQuietly(diff);
+        }
+    }
+
+    @Test
+    public void testStreamingIndex() throws IOException {
+        check(new DirDeltaPatcher().withStreamingIndex(true), false);
+        check(new DirDeltaPatcher().withStreamingIndex(true).withRandomAccess(true).withThreads(4), true);
+    }
+
+    @Test
+    public void testMappedSource() throws IOException {
+        File tmpdir = null;
+        SeekableSource source = null;
+        try {
+            tmpdir = createTmpDir();
+            Random random = new Random(42);
+            byte[] data = new byte[100000];
+            random.nextBytes(data);
+            File file = new File(tmpdir, "data");
+            writeByteArrayToFile(file, data);
+            DigestingSeekableSource digesting = new DigestingSeekableSource(new MappedSeekableSource(file, 4096), data.length, DigestAlgorithm.SHA1);
+            source = digesting;
+            ByteBuffer bb = ByteBuffer.allocate(10000);
+            for (int i = 0; i < 100; i++) {
+                int pos = random.nextInt(data.length);
+                source.seek(pos);
+                bb.clear();
+                bb.limit(1 + random.nextInt(bb.capacity()));
+                int read = source.read(bb);
+                assertEquals("Read fail", Math.min(bb.limit(), data.length - pos), read);
+                assertArrayEquals("Data fail", Arrays.copyOfRange(data, pos, pos + read), Arrays.copyOf(bb.array(), read));
+            }
+            source.seek(data.length);
+            assertEquals("EOF fail", -1, source.read(bb));
+            assertEquals("Digest fail", computeSha1(file), digesting.finish());
+        } finally {
+            closeQuietly(source);
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testBinaryIndex() throws IOException {
+        check(new DirDeltaPatcher(), false, binaryDiff());
+        check(new DirDeltaPatcher().withRandomAccess(true), true, binaryDiff());
+        check(new DirDeltaPatcher().withStreamingIndex(true), false, binaryDiff());
+    }
+
+    @Test
+    public void testDeltaEngine() throws IOException {
+        check(new DirDeltaPatcher().withDeltaEngine(new RollingHashDeltaEngine()), false);
+        check(new DirDeltaPatcher().withDeltaEngine(new RollingHashDeltaEngine()).withRandomAccess(true), true);
+    }
+
+    @Test
+    public void testLz4Container() throws IOException {
+        check(new DirDeltaPatcher(), false, lz4Diff());
+        check(new DirDeltaPatcher(), true, lz4Diff());
+        check(new DirDeltaPatcher().withRandomAccess(true).withThreads(4), true, lz4Diff());
+        check(new DirDeltaPatcher().withStreamingIndex(true), false, lz4Diff());
+    }
+
+    @Test
+    public void testRenames() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            // patch with plain copy, plain move and patched move
+            File gen = new File(tmpdir, "gen");
+            byte[] jar = new byte[50000];
+            new Random(42).nextBytes(jar);
+            File oldJar = new File(gen, "foo-1.2.jar");
+            writeByteArrayToFile(oldJar, jar);
+            jar[42] += 1;
+            File newJar = new File(gen, "foo-1.3.jar");
+            writeByteArrayToFile(newJar, jar);
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            new JavaxDeltaEngine().compute(oldJar, newJar, delta);
+            String foo = "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33";
+            String bar = "62cdb7020ff920e5aa642c3d4066950dd1f01f4d";
+            for (IndexFormat format : IndexFormat.values()) {
+                byte[] patch = zipPatch(ImmutableList.of(
+                        new IndexEntry.CopiedFrom("copy/unchanged", "unchanged", bar, bar),
+                        new IndexEntry.Moved("docs2/readme.txt", "docs/readme.txt", foo, foo),
+                        new IndexEntry.Moved("lib/foo-1.3.jar", "lib/foo-1.2.jar", computeSha1(oldJar), computeSha1(newJar))), format,
+                        ImmutableMap.of("lib/foo-1.3.jar.gdiff", delta.toByteArray()));
+                File diffFile = new File(tmpdir, "diff.zip");
+                writeByteArrayToFile(diffFile, patch);
+                for (DirDeltaPatcher patcher : new DirDeltaPatcher[]{
+                        new DirDeltaPatcher(),
+                        new DirDeltaPatcher().withRandomAccess(true).withThreads(4)}) {
+                    File dir = new File(tmpdir, "dir");
+                    writeStringToFile(new File(dir, "unchanged"), "bar", "UTF-8");
+                    writeStringToFile(new File(dir, "docs/readme.txt"), "foo", "UTF-8");
+                    copyInputStreamToFile(new FileInputStream(oldJar), new File(dir, "lib/foo-1.2.jar"));
+                    patcher.patch(dir, diffFile);
+                    assertEquals("Unchanged fail", bar, computeSha1(new File(dir, "unchanged")));
+                    assertEquals("Copy fail", bar, computeSha1(new File(dir, "copy/unchanged")));
+                    assertTrue("Move source fail", !new File(dir, "docs/readme.txt").exists());
+                    assertEquals("Move fail", foo, computeSha1(new File(dir, "docs2/readme.txt")));
+                    assertTrue("Patched move source fail", !new File(dir, "lib/foo-1.2.jar").exists());
+                    assertEquals("Patched move fail", computeSha1(newJar), computeSha1(new File(dir, "lib/foo-1.3.jar")));
+                    deleteDirectory(dir);
+                }
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testDuplicates() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            String foo = "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33";
+            byte[] patch = zipPatch(ImmutableList.of(
+                    new IndexEntry.Created("a/lib.bin", "", foo),
+                    new IndexEntry.Duplicated("b/lib.bin", "a/lib.bin", "", foo),
+                    new IndexEntry.Duplicated("copy.bin", "a/lib.bin", "", foo)), IndexFormat.BINARY,
+                    ImmutableMap.of("a/lib.bin", "foo".getBytes("UTF-8")));
+            for (boolean hardLinks : new boolean[]{false, true}) {
+                File dir = new File(tmpdir, "dir");
+                assertTrue("Cannot create tmp directory", dir.mkdirs());
+                new DirDeltaPatcher().withHardLinks(hardLinks).withThreads(4)
+                        .patch(dir, new ByteArrayInputStream(patch));
+                File first = new File(dir, "a/lib.bin");
+                File duplicate = new File(dir, "b/lib.bin");
+                assertEquals("Created fail", foo, computeSha1(first));
+                assertEquals("Duplicated fail", foo, computeSha1(duplicate));
+                assertEquals("Duplicated copy fail", foo, computeSha1(new File(dir, "copy.bin")));
+                assertEquals("Hard link fail", hardLinks, java.nio.file.Files.isSameFile(first.toPath(), duplicate.toPath()));
+                deleteDirectory(dir);
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testDigestAlgorithm() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            // hashes of "foo" and "bar"
+            String[][] hashes = {
+                    {"2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae", "fcde2b2edba56bf408601fb721fe9b5c338d10ee429ea04fae5511b68fbf8fb9"},
+                    {"6145f501578671e2877dba2be487af7e", "04e63afddb583692c056bc4845d74f24"}};
+            DigestAlgorithm[] algorithms = {DigestAlgorithm.SHA256, DigestAlgorithm.MURMUR3_128};
+            for (int i = 0; i < algorithms.length; i++) {
+                for (IndexFormat format : IndexFormat.values()) {
+                    for (String hash : hashes[i]) {
+                        byte[] patch = zipPatch(ImmutableList.of(new IndexEntry.Created("foo.txt", "", hash)),
+                                format, algorithms[i], 0, ImmutableMap.of("foo.txt", "foo".getBytes("UTF-8")));
+                        File dir = new File(tmpdir, "dir");
+                        assertTrue("Cannot create tmp directory", dir.mkdirs());
+                        try {
+                            new DirDeltaPatcher().patch(dir, new ByteArrayInputStream(patch));
+                            assertEquals("Digest check fail", hashes[i][0], hash);
+                            assertEquals("Created fail", hash, HashUtils.computeHash(new File(dir, "foo.txt"), algorithms[i]));
+                        } catch (IOException e) {
+                            // hash of other content
+                            assertEquals("Digest check fail", hashes[i][1], hash);
+                        }
+                        deleteDirectory(dir);
+                    }
+                }
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testVerificationLevel() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            String foo = "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33";
+            File dir = new File(tmpdir, "dir");
+            writeStringToFile(new File(dir, "unchanged"), "foo", "UTF-8");
+            // index expects "foo" in corrupted file
+            File corrupted = new File(dir, "corrupted");
+            writeStringToFile(corrupted, "bar", "UTF-8");
+            assertTrue("Mtime fail", corrupted.setLastModified(currentTimeMillis() - 10000));
+            byte[] patch = zipPatch(ImmutableList.of(
+                    new IndexEntry.Unchanged("corrupted", foo, foo),
+                    new IndexEntry.Unchanged("unchanged", foo, foo)), IndexFormat.JSON, ImmutableMap.<String, byte[]>of());
+            File cacheFile = new File(tmpdir, "hashes.bin");
+            DirDeltaPatcher patcher = new DirDeltaPatcher().withThreads(2);
+            assertTrue("Full fail", !patches(patcher, dir, patch));
+            assertTrue("None fail", patches(patcher.withVerification(VerificationLevel.NONE), dir, patch));
+            assertTrue("Sampled none fail", patches(patcher.withVerification(VerificationLevel.SAMPLED).withSampleRate(0), dir, patch));
+            assertTrue("Sampled all fail", !patches(patcher.withVerification(VerificationLevel.SAMPLED).withSampleRate(1), dir, patch));
+            try {
+                patcher.withVerification(VerificationLevel.SIZE_MTIME).patch(dir, new ByteArrayInputStream(patch));
+                fail("Hash cache check passed");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            // files without stored attributes are read
+            DirDeltaPatcher sizeMtime = patcher.withVerification(VerificationLevel.SIZE_MTIME).withHashCache(cacheFile);
+            assertTrue("Size mtime fail", !patches(sizeMtime, dir, patch));
+            HashCache cache = HashCache.load(cacheFile);
+            cache.put(corrupted, computeSha1(corrupted));
+            cache.save();
+            assertTrue("Cached fail", !patches(sizeMtime, dir, patch));
+            // cached hash sum is trusted while file attributes match
+            HashCache stale = HashCache.load(cacheFile);
+            stale.put(corrupted, foo);
+            stale.save();
+            assertTrue("Stale cache fail", patches(sizeMtime, dir, patch));
+            // cache entries are kept when files are not checked
+            assertTrue("None cache fail", patches(patcher.withVerification(VerificationLevel.NONE).withHashCache(cacheFile), dir, patch));
+            assertTrue("Kept cache fail", patches(sizeMtime, dir, patch));
+            // file changed since it was cached
+            assertTrue("Mtime fail", corrupted.setLastModified(currentTimeMillis() - 20000));
+            assertTrue("Changed fail", !patches(sizeMtime, dir, patch));
+            // cached file modified with preserved mtime is detected only by full check
+            File modified = new File(dir, "unchanged");
+            assertTrue("Mtime fail", modified.setLastModified(currentTimeMillis() - 10000));
+            HashCache cached = HashCache.load(cacheFile);
+            cached.put(modified, foo);
+            cached.save();
+            long mtime = modified.lastModified();
+            writeStringToFile(modified, "baz", "UTF-8");
+            assertTrue("Mtime fail", modified.setLastModified(mtime));
+            byte[] modifiedPatch = zipPatch(ImmutableList.of(new IndexEntry.Unchanged("unchanged", foo, foo)),
+                    IndexFormat.JSON, ImmutableMap.<String, byte[]>of());
+            assertTrue("Modified size mtime fail", patches(sizeMtime, dir, modifiedPatch));
+            assertTrue("Modified full fail", !patches(patcher.withHashCache(cacheFile), dir, modifiedPatch));
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    private static boolean patches(DirDeltaPatcher patcher, File dir, byte[] patch) {
+        try {
+            patcher.patch(dir, new ByteArrayInputStream(patch));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testBlockCheck() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            byte[] data = new byte[5000];
+            new Random(42).nextBytes(data);
+            BlockDigester digester = new BlockDigester(DigestAlgorithm.SHA1, 1024);
+            digester.update(data, 0, data.length);
+            List<String> blocks = digester.finish();
+            assertEquals("Blocks count fail", 5, blocks.size());
+            String sha1 = HashUtils.hex(DigestAlgorithm.SHA1.newDigest().digest(data));
+            File dir = new File(tmpdir, "dir");
+            File file = new File(dir, "big.bin");
+            for (IndexFormat format : IndexFormat.values()) {
+                byte[] patch = zipPatch(ImmutableList.of(new IndexEntry.Unchanged("big.bin", sha1, sha1, blocks)),
+                        format, DigestAlgorithm.SHA1, 1024, ImmutableMap.<String, byte[]>of());
+                writeByteArrayToFile(file, data);
+                new DirDeltaPatcher().withThreads(2).patch(dir, new ByteArrayInputStream(patch));
+                byte[] corrupted = data.clone();
+                corrupted[1500] += 1;
+                writeByteArrayToFile(file, corrupted);
+                try {
+                    new DirDeltaPatcher().withThreads(2).patch(dir, new ByteArrayInputStream(patch));
+                    fail("Corrupted block check passed");
+                } catch (IOException e) {
+                    assertTrue("Message fail: " + e.getMessage(), e.getMessage().contains("corrupted blocks: [1]"));
+                }
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testRepair() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            byte[] data = new byte[5000];
+            new Random(42).nextBytes(data);
+            BlockDigester digester = new BlockDigester(DigestAlgorithm.SHA1, 1024);
+            digester.update(data, 0, data.length);
+            List<String> blocks = digester.finish();
+            String sha1 = HashUtils.hex(DigestAlgorithm.SHA1.newDigest().digest(data));
+            String foo = "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33";
+            // repair patch contains full new versions of all files
+            File patch = new File(tmpdir, "repair.zip");
+            writeByteArrayToFile(patch, zipPatch(ImmutableList.of(
+                    new IndexEntry.Created("big.bin", "", sha1, blocks),
+                    new IndexEntry.Created("foo.txt", "", foo)), IndexFormat.BINARY, DigestAlgorithm.SHA1, 1024,
+                    ImmutableMap.of("big.bin", data, "foo.txt", "foo".getBytes("UTF-8"))));
+            File dir = new File(tmpdir, "dir");
+            File file = new File(dir, "big.bin");
+            byte[] corrupted = data.clone();
+            corrupted[1500] += 1;
+            corrupted[3500] += 1;
+            writeByteArrayToFile(file, corrupted);
+            DirDeltaPatcher patcher = new DirDeltaPatcher().withThreads(2);
+            assertEquals("Repaired fail", 3, patcher.repair(dir, patch));
+            assertArrayEquals("Blocks fail", data, readFileToByteArray(file));
+            assertEquals("Created fail", "foo", readFileToString(new File(dir, "foo.txt"), "UTF-8"));
+            assertEquals("Intact fail", 0, patcher.repair(dir, patch));
+            // truncated file
+            writeByteArrayToFile(file, Arrays.copyOf(data, 2500));
+            assertEquals("Truncated fail", 3, patcher.repair(dir, patch));
+            assertArrayEquals("Truncated blocks fail", data, readFileToByteArray(file));
+            // excess data after last block
+            writeByteArrayToFile(file, Arrays.copyOf(data, 6000));
+            assertEquals("Excess fail", 1, patcher.repair(dir, patch));
+            assertArrayEquals("Excess blocks fail", data, readFileToByteArray(file));
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testManifest() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File dir = new File(tmpdir, "dir");
+            byte[] big = new byte[200000];
+            new Random(42).nextBytes(big);
+            File bigFile = new File(dir, "lib/big.bin");
+            writeByteArrayToFile(bigFile, big);
+            writeStringToFile(new File(dir, "foo"), "foo", "UTF-8");
+            for (DirManifestCreator creator : new DirManifestCreator[]{
+                    new DirManifestCreator(),
+                    new DirManifestCreator().withThreads(4),
+                    new DirManifestCreator().withSignatures(false)}) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                creator.create(dir, TrueFileFilter.TRUE, baos);
+                List<ManifestEntry> entries = ImmutableList.copyOf(ManifestCodec.read(new ByteArrayInputStream(baos.toByteArray())));
+                assertEquals("Entries fail", 2, entries.size());
+                ManifestEntry foo = entries.get(0);
+                assertEquals("Path fail", "foo", foo.path);
+                assertEquals("Size fail", 3, foo.size);
+                assertEquals("Hash fail", "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33", foo.sha1);
+                assertEquals("Small blocks fail", 0, foo.blocks());
+                ManifestEntry bigEntry = entries.get(1);
+                assertEquals("Nested path fail", "lib/big.bin", bigEntry.path);
+                assertEquals("Big hash fail", computeSha1(bigFile), bigEntry.sha1);
+                if(0 == bigEntry.blockSize) {
+                    assertEquals("Disabled signatures fail", 0, bigEntry.blocks());
+                } else {
+                    assertEquals("Blocks fail", big.length / bigEntry.blockSize, bigEntry.blocks());
+                    assertEquals("Weak hash fail", RollingHash.hash(big, bigEntry.blockSize, bigEntry.blockSize), bigEntry.weak[1]);
+                    assertEquals("Strong hash fail", ManifestEntry.strongHash(big, bigEntry.blockSize, bigEntry.blockSize), bigEntry.strong[1]);
+                }
+            }
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testJournal() throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            assertTrue("Cannot create tmp directory", source.mkdirs());
+            File unchanged = new File(source, "unchanged");
+            writeStringToFile(unchanged, "foo", "UTF-8");
+            File deleted = new File(source, "deleted");
+            writeStringToFile(deleted, "bar", "UTF-8");
+            File updated = new File(source, "updated");
+            writeStringToFile(updated, "baz", "UTF-8");
+            File added = new File(source, "added");
+            File journal = new File(tmpdir, "journal.bin");
+            DirDeltaPatcher patcher = new DirDeltaPatcher().withJournal(journal);
+            DirDeltaPatcher failing = patcher.withDeltaEngine(new FailingDeltaEngine());
+            // interrupted twice, then rolled back
+            interruptedPatch(failing, source);
+            assertTrue("Added fail", added.exists());
+            interruptedPatch(failing, source);
+            patcher.rollback(source);
+            assertTrue("Journal delete fail", !journal.exists());
+            assertEquals("Rollback files count fail", 3, source.listFiles().length);
+            assertEquals("Rollback deleted fail", "bar", readFileToString(deleted, "UTF-8"));
+            assertEquals("Rollback updated fail", "baz", readFileToString(updated, "UTF-8"));
+            // interrupted, then resumed after file of completed entry was truncated by crash
+            interruptedPatch(failing, source);
+            writeStringToFile(added, "", "UTF-8");
+            InputStream truncated = PatchTest.class.getResourceAsStream("/diff.zip");
+            try {
+                patcher.patch(source, truncated);
+                fail("Completed entry check fail");
+            } catch (IOException e) {
+                assertTrue("Completed entry message fail", e.getMessage().startsWith("Completed CREATED file check failed"));
+            } finally {
+                closeQuietly(truncated);
+            }
+            patcher.rollback(source);
+            assertTrue("Rollback added fail", !added.exists());
+            // interrupted, then resumed, checks of unchanged files are not repeated
+            interruptedPatch(failing, source);
+            writeStringToFile(unchanged, "foo1", "UTF-8");
+            InputStream diff = PatchTest.class.getResourceAsStream("/diff.zip");
+            try {
+                patcher.patch(source, diff);
+            } finally {
+                closeQuietly(diff);
+            }
+            assertTrue("Journal delete fail", !journal.exists());
+            assertEquals("Files count fail", 3, source.listFiles().length);
+            assertEquals("Updated fail", "020d4b62f2af4547cdf0c28e2fd937bfc28a3787", computeSha1(updated));
+            assertEquals("Added fail", "92cfceb39d57d914ed8b14d0e37643de0797ae56", computeSha1(added));
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    @Test
+    public void testStaging() throws IOException {
+        check(new DirDeltaPatcher().withStaging(true), false);
+        check(new DirDeltaPatcher().withStaging(true).withRandomAccess(true).withThreads(4), true);
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            File source = new File(tmpdir, "source");
+            assertTrue("Cannot create tmp directory", source.mkdirs());
+            File unchanged = new File(source, "unchanged");
+            writeStringToFile(unchanged, "foo", "UTF-8");
+            writeStringToFile(new File(source, "deleted"), "bar", "UTF-8");
+            File updated = new File(source, "updated");
+            writeStringToFile(updated, "baz", "UTF-8");
+            // failed patch doesn't change directory
+            interruptedPatch(new DirDeltaPatcher().withStaging(true).withDeltaEngine(new FailingDeltaEngine()), source);
+            assertEquals("Staging cleanup fail", 1, tmpdir.listFiles().length);
+            assertEquals("Files count fail", 3, source.listFiles().length);
+            assertEquals("Updated fail", "baz", readFileToString(updated, "UTF-8"));
+            // symbolic link is switched to new version
+            Path link = new File(tmpdir, "current").toPath();
+            java.nio.file.Files.createSymbolicLink(link, source.toPath());
+            InputStream diff = PatchTest.class.getResourceAsStream("/diff.zip");
+            try {
+                new DirDeltaPatcher().withStaging(true).patch(link.toFile(), diff);
+            } finally {
+                closeQuietly(diff);
+            }
+            assertTrue("Link fail", java.nio.file.Files.isSymbolicLink(link));
+            assertTrue("Old version delete fail", !source.exists());
+            assertEquals("Linked files count fail", 3, link.toFile().listFiles().length);
+            assertEquals("Linked unchanged fail", "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33", computeSha1(new File(link.toFile(), "unchanged")));
+            assertEquals("Linked updated fail", "020d4b62f2af4547cdf0c28e2fd937bfc28a3787", computeSha1(new File(link.toFile(), "updated")));
+            assertEquals("Linked added fail", "92cfceb39d57d914ed8b14d0e37643de0797ae56", computeSha1(new File(link.toFile(), "added")));
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+        }
+    }
+
+    private void check(DirDeltaPatcher patcher, boolean fromFile) throws IOException {
+        check(patcher, fromFile, PatchTest.class.getResourceAsStream("/diff.zip"));
+    }
+
+    private void check(DirDeltaPatcher patcher, boolean fromFile, InputStream diff) throws IOException {
+        File tmpdir = null;
+        try {
+            tmpdir = createTmpDir();
+            // prepare source dir
+            File source = new File(tmpdir, "source");
+            assertTrue("Cannot create tmp directory", source.mkdirs());
+            File unchanged = new File(source, "unchanged");
+            writeStringToFile(unchanged, "foo", "UTF-8");
+            writeStringToFile(new File(source, "deleted"), "bar", "UTF-8");
+            File updated = new File(source, "updated");
+            writeStringToFile(updated, "baz", "UTF-8");
+            File added = new File(source, "added");
+            // apply patch
+            if (fromFile) {
+                File diffFile = new File(tmpdir, "diff.zip");
+                copyInputStreamToFile(diff, diffFile);
+                patcher.patch(source, diffFile);
+            } else {
+                patcher.patch(source, diff);
+            }
+            // check results
+            assertEquals("Files count fail", 3, source.listFiles().length);
+            assertEquals("Unchanged fail", "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33", computeSha1(unchanged));
+            assertEquals("Updated fail", "020d4b62f2af4547cdf0c28e2fd937bfc28a3787", computeSha1(updated));
+            assertEquals("Added fail", "92cfceb39d57d914ed8b14d0e37643de0797ae56", computeSha1(added));
+        } finally {
+            if(null != tmpdir) deleteDirectory(tmpdir);
+            closeQuietly(diff);
+        }
+    }
+
+    // test patch with index converted to binary format
+    private static InputStream binaryDiff() throws IOException {
+        Map<String, byte[]> entries = diffEntries();
+        Iterator<byte[]> it = entries.values().iterator();
+        List<IndexEntry> index = ImmutableList.copyOf(IndexCodec.read(new ByteArrayInputStream(it.next())));
+        it.remove();
+        return new ByteArrayInputStream(zipPatch(index, IndexFormat.BINARY, entries));
+    }
+
+    // test patch converted to LZ4 container
+    private static InputStream lz4Diff() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Lz4ContainerOutputStream los = new Lz4ContainerOutputStream(baos);
+        for (Map.Entry<String, byte[]> en : diffEntries().entrySet()) {
+            los.putNextEntry(en.getKey(), true);
+            los.write(en.getValue());
+            los.closeEntry();
+        }
+        los.close();
+        return new ByteArrayInputStream(baos.toByteArray());
+    }
+
+    // entries of test patch in order, index is the first one
+    private static Map<String, byte[]> diffEntries() throws IOException {
+        ZipInputStream zis = new ZipInputStream(PatchTest.class.getResourceAsStream("/diff.zip"));
+        try {
+            Map<String, byte[]> res = new LinkedHashMap<String, byte[]>();
+            for (ZipEntry en = zis.getNextEntry(); null != en; en = zis.getNextEntry()) {
+                res.put(en.getName(), toByteArray(zis));
+            }
+            return res;
+        } finally {
+            closeQuietly(zis);
+        }
+    }
+
+    private static byte[] zipPatch(List<? extends IndexEntry> index, IndexFormat format, Map<String, byte[]> entries) throws IOException {
+        return zipPatch(index, format, DigestAlgorithm.SHA1, 0, entries);
+    }
+
+    // ZIP patch with index of provided entries followed by patch entries
+    private static byte[] zipPatch(List<? extends IndexEntry> index, IndexFormat format, DigestAlgorithm algorithm,
+                                   int blockSize, Map<String, byte[]> entries) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(baos);
+        zos.putNextEntry(new ZipEntry(".index"));
+        IndexCodec.write(index.iterator(), zos, format, algorithm, blockSize);
+        zos.closeEntry();
+        for (Map.Entry<String, byte[]> en : entries.entrySet()) {
+            zos.putNextEntry(new ZipEntry(en.getKey()));
+            zos.write(en.getValue());
+            zos.closeEntry();
+        }
+        zos.close();
+        return baos.toByteArray();
+    }
+
+    private void interruptedPatch(DirDeltaPatcher patcher, File dir) throws IOException {
+        InputStream diff = PatchTest.class.getResourceAsStream("/diff.zip");
+        try {
+            patcher.patch(dir, diff);
+            fail("Patch was not interrupted");
+        } catch (IOException e) {
+            assertEquals("Interrupted", e.getMessage());
+        } finally {
+            closeQuietly(diff);
+        }
+    }
+
+    private static class FailingDeltaEngine implements DeltaEngine {
+        @Override
+        public void compute(File source, File target, OutputStream delta) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void apply(SeekableSource source, InputStream delta, OutputStream target) throws IOException {
+            throw new IOException("Interrupted");
+        }
+    }
+
     private File createTmpDir() {
         File baseDir = new File(getProperty("java.io.tmpdir"));
         String baseName = getClass().getName() + "_" + currentTimeMillis() + ".tmp";